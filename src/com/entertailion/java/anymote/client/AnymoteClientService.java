@@ -15,16 +15,21 @@
 
 package com.entertailion.java.anymote.client;
 
+import java.io.IOException;
 import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.List;
 
+import com.entertailion.java.anymote.client.WarmConnectionPool.WarmConnection;
 import com.entertailion.java.anymote.connection.ConnectingTask;
 import com.entertailion.java.anymote.connection.ConnectingTask.ConnectionListener;
 import com.entertailion.java.anymote.connection.KeyStoreManager;
 import com.entertailion.java.anymote.connection.TvDevice;
 import com.entertailion.java.anymote.connection.TvDiscoveryService;
+import com.entertailion.java.anymote.util.Constants;
 import com.entertailion.java.anymote.util.Log;
+import com.entertailion.java.anymote.util.Message;
+import com.entertailion.java.anymote.util.MessageThread;
 import com.entertailion.java.anymote.util.Platform;
 
 /**
@@ -34,16 +39,21 @@ import com.entertailion.java.anymote.util.Platform;
  */
 public class AnymoteClientService implements ConnectionListener, DeviceSelectListener {
     private static final String LOG_TAG = "AnymoteConnectionService";
+    private static final int PIN_REQUIRED = 1;
     private static AnymoteClientService instance;
     private ArrayList<ClientListener> clientListeners;
     private ConnectingTask connectingTask;
     private Platform platform;
     private TvDiscoveryService tvDiscovery;
     private TvDevice target;
+    private TvDevice lastConnected;
     private KeyStoreManager keyStoreManager;
     private AnymoteSender anymoteSender;
     private List<TvDevice> trackedDevices = new ArrayList<TvDevice>();
     private InputListener inputListener;
+    private WarmConnectionPool warmPool;
+    private ConnectFuture pendingConnect;
+    private PinRequestThread pinRequestThread;
 
     private AnymoteClientService(Platform platform) {
     	this.platform = platform;
@@ -63,6 +73,9 @@ public class AnymoteClientService implements ConnectionListener, DeviceSelectLis
 
     private void initialize() {
         clientListeners = new ArrayList<ClientListener>();
+        pinRequestThread = new PinRequestThread();
+        pinRequestThread.setDaemon(true);
+        pinRequestThread.start();
 
         try {
             keyStoreManager = new KeyStoreManager();
@@ -72,6 +85,9 @@ public class AnymoteClientService implements ConnectionListener, DeviceSelectLis
             System.exit(1);
             return;
         }
+
+        // loads the devices cached by earlier runs and revalidates them
+        getTvDiscovery();
     }
 
     /**
@@ -93,7 +109,8 @@ public class AnymoteClientService implements ConnectionListener, DeviceSelectLis
      * 
      * @param device the device to connect to.
      * @param activity which uses the connection.
-     * @return {@code true} if already connected to the specified device.
+     * @return {@code true} if already connected to the specified device, or
+     *         a warm connection to it was available.
      */
     public boolean connectDevice(TvDevice device) {
         if (target != null && target.equals(device)) {
@@ -106,12 +123,106 @@ public class AnymoteClientService implements ConnectionListener, DeviceSelectLis
         }
 
         target = null;
+        WarmConnectionPool pool = warmPool;
+        if (pool != null) {
+            WarmConnection connection = pool.take(device, this);
+            if (connection != null) {
+                connectingTask = connection.getConnectingTask();
+                onConnected(device, connection.getAnymoteSender());
+                return true;
+            }
+        }
         connectingTask = new ConnectingTask(device, keyStoreManager, platform);
         connectingTask.setConnectionListener(this);
         connectingTask.start();
         return false;
     }
 
+    /**
+     * Initiate new connection to specified TV device, and return its pending
+     * result.
+     * 
+     * @param device the device to connect to.
+     * @return the pending connection.
+     * @see #connectAsync(TvDevice, long)
+     */
+    public ConnectFuture connectAsync(TvDevice device) {
+        return connectAsync(device, 0);
+    }
+
+    /**
+     * Initiate new connection to specified TV device, and return its pending
+     * result. Concurrent calls for the same device share one connection
+     * attempt and get the same future; its deadline is the one given by the
+     * first call. A call for another device supersedes the pending attempt,
+     * whose future then fails.
+     * 
+     * @param device the device to connect to.
+     * @param timeout ms until the attempt fails with a timeout, 0 for none.
+     * @return the pending connection.
+     */
+    public ConnectFuture connectAsync(TvDevice device, long timeout) {
+        ConnectFuture future;
+        ConnectFuture superseded = null;
+        synchronized (this) {
+            if (pendingConnect != null && pendingConnect.getDevice().equals(device)) {
+                return pendingConnect;
+            }
+            future = new ConnectFuture(this, device, timeout);
+            if (anymoteSender != null && device.equals(target)) {
+                future.complete(anymoteSender);
+                return future;
+            }
+            superseded = pendingConnect;
+            pendingConnect = future;
+        }
+        if (superseded != null) {
+            superseded.fail(new IOException("Superseded by connection to " + device));
+        }
+        if (connectDevice(device)) {
+            completePendingConnect(device, anymoteSender);
+        }
+        return future;
+    }
+
+    /**
+     * Called by a pending connection which was cancelled or timed out.
+     * 
+     * @param future the abandoned connection.
+     */
+    void abandonConnect(ConnectFuture future) {
+        synchronized (this) {
+            if (pendingConnect != future) {
+                return;
+            }
+            pendingConnect = null;
+        }
+        cancelConnection();
+    }
+
+    private void completePendingConnect(TvDevice device, AnymoteSender sender) {
+        ConnectFuture future;
+        synchronized (this) {
+            future = pendingConnect;
+            if (future == null || !future.getDevice().equals(device)) {
+                return;
+            }
+            pendingConnect = null;
+        }
+        future.complete(sender);
+    }
+
+    private void failPendingConnect(Throwable failure) {
+        ConnectFuture future;
+        synchronized (this) {
+            future = pendingConnect;
+            pendingConnect = null;
+        }
+        if (future != null) {
+            future.fail(failure);
+        }
+    }
+
     /**
      * Re-establish connection to current target.
      */
@@ -124,6 +235,17 @@ public class AnymoteClientService implements ConnectionListener, DeviceSelectLis
         }
     }
 
+    /**
+     * Drops the current connection, or the pending connection attempt, and
+     * notifies the client listeners.
+     */
+    public void disconnect() {
+        cancelConnection();
+        if (target != null) {
+            onConnectionDisconnected();
+        }
+    }
+
     /**
      * The TV device that is connected.
      * 
@@ -133,6 +255,28 @@ public class AnymoteClientService implements ConnectionListener, DeviceSelectLis
         return target;
     }
 
+    /**
+     * The devices found by the last device selection.
+     * 
+     * @return tracked TV devices.
+     */
+    public List<TvDevice> getTrackedDevices() {
+        return trackedDevices;
+    }
+
+    /**
+     * The devices with a warm connection ready.
+     * 
+     * @return warm TV devices, empty if warm standby is disabled.
+     */
+    public List<TvDevice> getWarmDevices() {
+        WarmConnectionPool pool = warmPool;
+        if (pool == null) {
+            return new ArrayList<TvDevice>();
+        }
+        return pool.getWarmDevices();
+    }
+
     /**
      * Adds client listeners.
      * 
@@ -159,6 +303,14 @@ public class AnymoteClientService implements ConnectionListener, DeviceSelectLis
             connectingTask.cancel();
             connectingTask = null;
         }
+        ConnectFuture future;
+        synchronized (this) {
+            future = pendingConnect;
+            pendingConnect = null;
+        }
+        if (future != null) {
+            future.cancel(false);
+        }
     }
     
     /**
@@ -174,12 +326,23 @@ public class AnymoteClientService implements ConnectionListener, DeviceSelectLis
      * Called when connecting task successfully established connection.
      */
     public void onConnected(TvDevice device, AnymoteSender anymoteSender) {
+        if (SenderStats.isEnabled() && lastConnected != null
+                && lastConnected.getPort() == device.getPort()
+                && lastConnected.getAddress().equals(device.getAddress())) {
+            anymoteSender.getStats().onReconnect();
+        }
+        lastConnected = device;
         target = device;
         this.anymoteSender = anymoteSender;
+        WarmConnectionPool pool = warmPool;
+        if (pool != null) {
+            pool.setInUse(device, anymoteSender);
+        }
         // Broadcast new connection.
         for (ClientListener listener : (ArrayList<ClientListener>)clientListeners.clone()) {
             listener.onConnected(anymoteSender);
         }
+        completePendingConnect(device, anymoteSender);
     }
 
     public AnymoteSender getAnymoteSender() {
@@ -201,19 +364,24 @@ public class AnymoteClientService implements ConnectionListener, DeviceSelectLis
 
     @Override
     public void onSecretRequired(final PinListener pinListener) {
-    	Thread thread = new Thread(new Runnable() { // important to be a thread
+        // the input listener may block on the user, so keep it off the pairing threads
+        pinRequestThread.sendMessage(pinRequestThread.obtainMessage(PIN_REQUIRED, pinListener));
+    }
 
-			@Override
-			public void run() {
-				if (inputListener!=null) {
-					inputListener.onPinRequired(pinListener);
-				} else {
-					pinListener.onCancel();
-				}
-			}
-    		
-    	});
-    	thread.start();
+    /**
+     * Delivers PIN requests to the input listener one at a time. Pairing
+     * sessions waiting for a PIN hold no thread, so one thread serves any
+     * number of them.
+     */
+    private class PinRequestThread extends MessageThread {
+        public void handleMessage(Message message) {
+            PinListener pinListener = (PinListener) message.obj;
+            if (inputListener != null) {
+                inputListener.onPinRequired(pinListener);
+            } else {
+                pinListener.onCancel();
+            }
+        }
     }
 
     @Override
@@ -222,6 +390,7 @@ public class AnymoteClientService implements ConnectionListener, DeviceSelectLis
         for (ClientListener listener : (ArrayList<ClientListener>)clientListeners.clone()) {
             listener.onConnectionFailed();
         }
+        failPendingConnect(new IOException("Connection failed"));
     }
 
     @Override
@@ -239,6 +408,7 @@ public class AnymoteClientService implements ConnectionListener, DeviceSelectLis
 			
 					try {
 						trackedDevices = getTvDiscovery().discoverTvs();
+						warmDevices(trackedDevices);
 					} catch (Exception e) {
 						Log.e(LOG_TAG, "selectDevice failed", e);
 					}
@@ -249,6 +419,47 @@ public class AnymoteClientService implements ConnectionListener, DeviceSelectLis
     	thread.start();
     }
 
+    /**
+     * Enables or disables warm standby. When enabled, discovered devices that
+     * are already paired are connected to in the background, so that
+     * selecting one of them connects immediately. Devices are warmed as
+     * discovery finds them, and kept warm for as long as it keeps seeing
+     * them.
+     * 
+     * @param enabled {@code true} to keep warm connections.
+     */
+    public synchronized void setWarmStandby(boolean enabled) {
+        if (enabled && warmPool == null) {
+            warmPool = new WarmConnectionPool(keyStoreManager, platform,
+                    Constants.integer.warm_pool_size, Constants.integer.warm_idle_timeout);
+            if (target != null && anymoteSender != null) {
+                warmPool.setInUse(target, anymoteSender);
+            }
+            warmPool.setDeviceRegistry(getTvDiscovery().getRegistry());
+        } else if (!enabled && warmPool != null) {
+            warmPool.shutdown();
+            warmPool = null;
+        }
+    }
+
+    /**
+     * Feeds discovered devices to the warm connection pool, if warm standby is
+     * enabled.
+     * 
+     * @param devices discovered devices.
+     */
+    private void warmDevices(List<TvDevice> devices) {
+        WarmConnectionPool pool = warmPool;
+        if (pool == null || devices == null) {
+            return;
+        }
+        for (TvDevice device : devices) {
+            if (!device.equals(target)) {
+                pool.warm(device);
+            }
+        }
+    }
+
     /**
      * DeviceSelectListener callback
      * @see com.entertailion.java.anymote.client.DeviceSelectListener#onDeviceSelected(com.entertailion.java.anymote.connection.TvDevice)
@@ -16,6 +16,9 @@
 package com.entertailion.java.anymote.client;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import javax.net.ssl.SSLSocket;
 
@@ -25,6 +28,7 @@ import com.entertailion.java.anymote.connection.ConnectingTask;
 import com.entertailion.java.anymote.util.Log;
 import com.entertailion.java.anymote.util.Message;
 import com.entertailion.java.anymote.util.MessageThread;
+import com.entertailion.java.anymote.util.Trace;
 import com.google.anymote.Key.Action;
 import com.google.anymote.Key.Code;
 import com.google.anymote.Messages.FlingResult;
@@ -55,7 +59,7 @@ public final class AnymoteSender implements MessageReceiver {
     private final ErrorListener errorListener;
 
     /** Sender for Anymote protocol */
-    private DeviceAdapter deviceAdapter;
+    private volatile DeviceAdapter deviceAdapter;
 
     /** ACK manager (ping etc) */
     private AckManager ackManager;
@@ -64,6 +68,15 @@ public final class AnymoteSender implements MessageReceiver {
 
     private MessageSenderThread mMessageSenderThread;
 
+    /** Listener for latency measurement, or null */
+    private volatile SendListener sendListener;
+
+    /** Enqueue times of the pings written and not acknowledged yet */
+    private final Queue<Long> pendingPings = new ConcurrentLinkedQueue<Long>();
+
+    /** Statistics of this session, recorded while {@link SenderStats} is enabled */
+    private final SenderStats stats = new SenderStats(TYPE_NAMES);
+
     private static final int KEY = 1;
     private static final int KEYPRESS = 2;
     private static final int SCROLL = 3;
@@ -73,6 +86,11 @@ public final class AnymoteSender implements MessageReceiver {
     private static final int MOUSEMOVE = 7;
     private static final int CONNECT = 8;
     private static final int PING = 9;
+
+    /** Names of the message types, for statistics */
+    static final String[] TYPE_NAMES = {
+            "none", "key", "keypress", "scroll", "data", "url", "click", "mousemove", "connect",
+            "ping" };
     
     private class AnymoteKeyEvent {
         Code code;
@@ -84,6 +102,29 @@ public final class AnymoteSender implements MessageReceiver {
         }
     }
 
+    /**
+     * Listener for the progress of messages through the sender, for latency
+     * measurement. Times are {@link System#nanoTime()} values.
+     */
+    public interface SendListener {
+        /**
+         * Called on the sender thread once a message has been written to the
+         * socket.
+         * 
+         * @param enqueuedAt time the message was queued.
+         */
+        void onMessageSent(long enqueuedAt);
+
+        /**
+         * Called when the TV acknowledged a ping. Events are not acknowledged
+         * by the protocol, so pings sent between them measure the round trip
+         * through the queue.
+         * 
+         * @param enqueuedAt time the ping was queued.
+         */
+        void onPingAcked(long enqueuedAt);
+    }
+
     /**
      * Constructor
      * 
@@ -99,6 +140,9 @@ public final class AnymoteSender implements MessageReceiver {
         };
         ackManager = new AckManager(new Listener() {
             public void onTimeout() {
+                if (SenderStats.isEnabled()) {
+                    stats.onAckTimeout();
+                }
                 ackManager.stop();
                 onConnectionError();
             }
@@ -122,15 +166,22 @@ public final class AnymoteSender implements MessageReceiver {
 
     private boolean instantiateProtocol(SSLSocket sslSocket) {
         disconnect();
+        // acks of pings sent on an earlier connection will not come
+        pendingPings.clear();
 
         try {
+            if (SenderStats.isEnabled()) {
+                stats.onConnect();
+            }
+            OutputStream out = stats.countBytes(sslSocket.getOutputStream());
             deviceAdapter = AnymoteFactory.getDeviceAdapter(
-                    this, sslSocket.getInputStream(), sslSocket.getOutputStream(), errorListener);
+                    this, sslSocket.getInputStream(), out, errorListener);
         } catch (IOException e) {
             Log.d(LOG_TAG, "Unable to create sender", e);
             deviceAdapter = null;
             return false;
         }
+        stats.onOpened();
 
         sendConnect();
         ackManager.start();
@@ -148,6 +199,7 @@ public final class AnymoteSender implements MessageReceiver {
         if (deviceAdapter != null) {
             deviceAdapter.stop();
             deviceAdapter = null;
+            stats.onClosed();
             return true;
         }
         return false;
@@ -159,6 +211,37 @@ public final class AnymoteSender implements MessageReceiver {
     public void destroy() {
         disconnect();
         ackManager.quit();
+        mMessageSenderThread.terminate();
+        mMessageSenderThread.interrupt();
+        stats.retire();
+    }
+
+    /**
+     * @return {@code true} if the sender has a connection to the TV.
+     */
+    public boolean isConnected() {
+        return deviceAdapter != null;
+    }
+
+    /**
+     * @return number of messages waiting to be sent.
+     */
+    public int getQueueDepth() {
+        return mMessageSenderThread.getQueueSize();
+    }
+
+    /**
+     * @return pings sent since the last ack.
+     */
+    public int getLostAcks() {
+        return ackManager.getLostAcks();
+    }
+
+    /**
+     * @return statistics of this session.
+     */
+    public SenderStats getStats() {
+        return stats;
     }
 
     private void onConnectionError() {
@@ -237,13 +320,15 @@ public final class AnymoteSender implements MessageReceiver {
      *            mouse movement.
      * @param deltaY the delta between intial and final y positions of the the
      *            mouse movement.
+     * @return {@code false} if the movement was added to a mouse move still
+     *         waiting to be sent.
      */
-    public void sendMoveRelative(final int deltaX, final int deltaY) {
+    public boolean sendMoveRelative(final int deltaX, final int deltaY) {
         final Message msg = Message.obtain();
         msg.arg1 = deltaX;
         msg.arg2 = deltaY;
         msg.what = MOUSEMOVE;
-        mMessageSenderThread.sendMessage(msg);
+        return mMessageSenderThread.post(msg);
     }
 
     /**
@@ -253,13 +338,15 @@ public final class AnymoteSender implements MessageReceiver {
      *            scroll movement.
      * @param deltaY the delta between intial and final y positions of the the
      *            scroll movement.
+     * @return {@code false} if the movement was added to a scroll still
+     *         waiting to be sent.
      */
-    public void sendScroll(final int deltaX, final int deltaY) {
+    public boolean sendScroll(final int deltaX, final int deltaY) {
         final Message msg = Message.obtain();
         msg.arg1 = deltaX;
         msg.arg2 = deltaY;
         msg.what = SCROLL;
-        mMessageSenderThread.sendMessage(msg);
+        return mMessageSenderThread.post(msg);
     }
 
     /**
@@ -271,6 +358,16 @@ public final class AnymoteSender implements MessageReceiver {
         mMessageSenderThread.sendMessage(msg);
     }
 
+    /**
+     * Sets the listener for latency measurement.
+     * 
+     * @param listener send listener, or null to stop measuring.
+     */
+    public void setSendListener(SendListener listener) {
+        pendingPings.clear();
+        sendListener = listener;
+    }
+
     private void sendConnect() {
         final Message msg = Message.obtain();
         msg.what = CONNECT;
@@ -278,10 +375,75 @@ public final class AnymoteSender implements MessageReceiver {
         mMessageSenderThread.sendMessage(msg);
     }
 
+    /**
+     * Sends the queued messages. A mouse move or scroll queued right behind
+     * another of its type is added to it rather than queued, so that a slow
+     * connection does not fall behind the pointer.
+     */
     private class MessageSenderThread extends MessageThread {
+        private final Object tailLock = new Object();
+
+        /**
+         * Last message queued, until it is taken; guarded by tailLock.
+         */
+        private Message tail;
+
+        @Override
+        public void sendMessage(Message msg) {
+            post(msg);
+        }
+
+        /**
+         * Queues a message, or adds it to the last one queued.
+         *
+         * @return {@code false} if the message was added to the last one.
+         */
+        boolean post(Message msg) {
+            boolean measured = SenderStats.isEnabled();
+            if (measured) {
+                stats.onEnqueued(msg.what);
+            }
+            synchronized (tailLock) {
+                if (tail != null && tail.what == msg.what
+                        && (msg.what == MOUSEMOVE || msg.what == SCROLL)) {
+                    tail.arg1 += msg.arg1;
+                    tail.arg2 += msg.arg2;
+                    if (measured) {
+                        stats.onCoalesced(msg.what);
+                    }
+                    return false;
+                }
+                super.sendMessage(msg);
+                tail = msg;
+                return true;
+            }
+        }
+
         public void handleMessage(Message msg) {
-            if (deviceAdapter == null)
+            synchronized (tailLock) {
+                // its deltas are final from here on
+                if (tail == msg) {
+                    tail = null;
+                }
+            }
+            boolean measured = SenderStats.isEnabled();
+            long start = 0;
+            if (measured) {
+                start = System.nanoTime();
+                stats.onDequeued(msg.what, getQueueSize(), start - msg.when);
+            }
+            if (deviceAdapter == null) {
+                if (measured) {
+                    stats.onDropped(msg.what);
+                }
                 return;
+            }
+            SendListener listener = sendListener;
+            if ((listener != null || measured) && msg.what == PING) {
+                // the ack may arrive before the send returns
+                pendingPings.add(msg.when);
+            }
+            long traceStart = Trace.start();
             switch (msg.what) {
                 case KEYPRESS:
                     deviceAdapter.sendKeyEvent((Code) msg.obj, Action.DOWN);
@@ -312,11 +474,29 @@ public final class AnymoteSender implements MessageReceiver {
                 case CONNECT:
                     deviceAdapter.sendConnect((ConnectInfo)msg.obj);
             }
+            Trace.end(Trace.Event.SEND, traceStart, TYPE_NAMES[msg.what]);
+            if (measured) {
+                stats.onSent(msg.what, System.nanoTime() - start);
+            }
+            if (listener != null) {
+                listener.onMessageSent(msg.when);
+            }
         }
     }
 
     public void onAck() {
         ackManager.onAck();
+        SendListener listener = sendListener;
+        boolean measured = SenderStats.isEnabled();
+        if (listener != null || measured) {
+            Long enqueuedAt = pendingPings.poll();
+            if (measured) {
+                stats.onAck(enqueuedAt != null ? System.nanoTime() - enqueuedAt : -1);
+            }
+            if (listener != null && enqueuedAt != null) {
+                listener.onPingAcked(enqueuedAt);
+            }
+        }
     }
 
     public void onData(String type, String data) {
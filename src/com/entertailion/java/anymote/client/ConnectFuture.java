@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2012 ENTERTAILION, LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.entertailion.java.anymote.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.entertailion.java.anymote.connection.TvDevice;
+import com.entertailion.java.anymote.util.Log;
+
+/**
+ * The pending result of {@link AnymoteClientService#connectAsync(TvDevice)}.
+ * <p>
+ * Completes with the {@link AnymoteSender} of the new connection, or fails
+ * with the reason the connection was not made: an {@link java.io.IOException}
+ * if connecting failed or was superseded by a connection to another device,
+ * or a {@link TimeoutException} if the deadline passed. Cancelling the future
+ * cancels the connection attempt.
+ */
+public class ConnectFuture implements Future<AnymoteSender> {
+    private static final String LOG_TAG = "ConnectFuture";
+
+    /**
+     * Timer shared by all futures to enforce their deadlines.
+     */
+    private static final Timer deadlineTimer = new Timer("ConnectFuture", true);
+
+    /**
+     * Listener called once the future is done.
+     */
+    public interface Listener {
+        /**
+         * Called on the thread that completed the future, or on the calling
+         * thread if the future was already done when the listener was added.
+         *
+         * @param future the completed future.
+         */
+        void onComplete(ConnectFuture future);
+    }
+
+    private final AnymoteClientService service;
+    private final TvDevice device;
+    private final CountDownLatch doneLatch;
+    private final List<Listener> listeners;
+    private TimerTask deadlineTask;
+    private boolean done;
+    private boolean cancelled;
+    private AnymoteSender anymoteSender;
+    private Throwable failure;
+
+    /**
+     * Constructor
+     *
+     * @param service the service making the connection.
+     * @param device the device to connect to.
+     * @param timeout ms until the attempt fails with a timeout, 0 for none.
+     */
+    ConnectFuture(AnymoteClientService service, TvDevice device, long timeout) {
+        this.service = service;
+        this.device = device;
+        doneLatch = new CountDownLatch(1);
+        listeners = new ArrayList<Listener>();
+        if (timeout > 0) {
+            deadlineTask = new TimerTask() {
+                @Override
+                public void run() {
+                    if (fail(new TimeoutException("Timed out connecting to " + ConnectFuture.this.device))) {
+                        ConnectFuture.this.service.abandonConnect(ConnectFuture.this);
+                    }
+                }
+            };
+            deadlineTimer.schedule(deadlineTask, timeout);
+        }
+    }
+
+    /**
+     * Returns the device being connected to.
+     *
+     * @return TV device.
+     */
+    public TvDevice getDevice() {
+        return device;
+    }
+
+    /**
+     * Adds a listener called once the future is done.
+     *
+     * @param listener completion listener.
+     */
+    public void addListener(Listener listener) {
+        synchronized (this) {
+            if (!done) {
+                listeners.add(listener);
+                return;
+            }
+        }
+        notifyListener(listener);
+    }
+
+    /**
+     * Completes the future with the new connection.
+     *
+     * @param anymoteSender proxy for the connection.
+     * @return {@code true} if this call completed the future.
+     */
+    boolean complete(AnymoteSender anymoteSender) {
+        synchronized (this) {
+            if (done) {
+                return false;
+            }
+            this.anymoteSender = anymoteSender;
+            done = true;
+        }
+        finish();
+        return true;
+    }
+
+    /**
+     * Fails the future.
+     *
+     * @param failure the reason the connection was not made.
+     * @return {@code true} if this call completed the future.
+     */
+    boolean fail(Throwable failure) {
+        synchronized (this) {
+            if (done) {
+                return false;
+            }
+            this.failure = failure;
+            done = true;
+        }
+        finish();
+        return true;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        synchronized (this) {
+            if (done) {
+                return false;
+            }
+            cancelled = true;
+            done = true;
+        }
+        finish();
+        service.abandonConnect(this);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    @Override
+    public AnymoteSender get() throws InterruptedException, ExecutionException {
+        doneLatch.await();
+        return getResult();
+    }
+
+    @Override
+    public AnymoteSender get(long timeout, TimeUnit unit) throws InterruptedException,
+            ExecutionException, TimeoutException {
+        if (!doneLatch.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return getResult();
+    }
+
+    private synchronized AnymoteSender getResult() throws ExecutionException {
+        if (cancelled) {
+            throw new CancellationException();
+        }
+        if (failure != null) {
+            throw new ExecutionException(failure);
+        }
+        return anymoteSender;
+    }
+
+    private void finish() {
+        if (deadlineTask != null) {
+            deadlineTask.cancel();
+        }
+        doneLatch.countDown();
+        List<Listener> pending;
+        synchronized (this) {
+            pending = new ArrayList<Listener>(listeners);
+            listeners.clear();
+        }
+        for (Listener listener : pending) {
+            notifyListener(listener);
+        }
+    }
+
+    private void notifyListener(Listener listener) {
+        try {
+            listener.onComplete(this);
+        } catch (RuntimeException e) {
+            Log.e(LOG_TAG, "Listener failed", e);
+        }
+    }
+}
@@ -0,0 +1,703 @@
+/*
+ * Copyright (C) 2012 ENTERTAILION, LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.entertailion.java.anymote.client;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.entertailion.java.anymote.util.Histogram;
+import com.entertailion.java.anymote.util.StripedCounter;
+
+/**
+ * Counters and latency histograms of an {@link AnymoteSender} session.
+ * <p>
+ * Messages are counted by type as they are queued, written, dropped for
+ * lack of a connection, or coalesced, i.e. merged into a mouse move or scroll
+ * still waiting in the queue.
+ * Histograms track the queue depth seen by each message, the time it waited
+ * in the queue, the time taken to write it, and the round trip of pings.
+ * Bytes written, connects, acks and ack timeouts are counted too, and
+ * reconnects, i.e. connections the client service made to the device it was
+ * connected to last. Times are in ns.
+ * <p>
+ * Recording is off until {@link #setEnabled(boolean)} turns it on. While it
+ * is off the sender reads one volatile flag per message and per socket
+ * write, and messages still get the timestamp the message queue gives
+ * every message.
+ * <p>
+ * Each session can be read with {@link AnymoteSender#getStats()}, and all
+ * sessions, past and present, with {@link #getAggregate()}. A session joins
+ * the aggregate when it first connects, or when it is destroyed if it never
+ * connected. {@link #getSessionCount()} counts the sessions connected now.
+ * Readers that poll, such as a metrics endpoint, can sum the live counters
+ * into an {@link Aggregate} they keep, with {@link #getAggregate(Aggregate)},
+ * rather than take snapshots.
+ */
+public final class SenderStats {
+
+    private static final int BYTES_WRITTEN = 0;
+    private static final int CONNECTS = 1;
+    private static final int RECONNECTS = 2;
+    private static final int ACKS = 3;
+    private static final int ACK_TIMEOUTS = 4;
+    private static final int TOTALS = 5;
+
+    private static final int ENQUEUED = 0;
+    private static final int SENT = 1;
+    private static final int DROPPED = 2;
+    private static final int COALESCED = 3;
+    private static final int COUNTS = 4;
+
+    private static final int QUEUE_DEPTH = 0;
+    private static final int DWELL_TIME = 1;
+    private static final int SERVICE_TIME = 2;
+    private static final int ACK_RTT = 3;
+    private static final int HISTOGRAMS = 4;
+
+    private static volatile boolean enabled;
+
+    /**
+     * Sessions which have connected and are not destroyed yet.
+     */
+    private static final List<SenderStats> sessions = new CopyOnWriteArrayList<SenderStats>();
+    private static int connectedSessions;
+
+    /**
+     * Counts of the destroyed sessions; guarded by sessions.
+     */
+    private static final Aggregate retired = new Aggregate();
+
+    private final String[] types;
+    private final StripedCounter enqueued;
+    private final StripedCounter sent;
+    private final StripedCounter dropped;
+    private final StripedCounter coalesced;
+    private final StripedCounter totals;
+    private final Histogram queueDepth;
+    private final Histogram dwellTime;
+    private final Histogram serviceTime;
+    private final Histogram ackRtt;
+    private boolean registered;
+    private boolean connected;
+    private boolean destroyed;
+
+    /**
+     * Constructor
+     *
+     * @param types names of the message types, indexed by type.
+     */
+    SenderStats(String[] types) {
+        this.types = types;
+        enqueued = new StripedCounter(types.length);
+        sent = new StripedCounter(types.length);
+        dropped = new StripedCounter(types.length);
+        coalesced = new StripedCounter(types.length);
+        totals = new StripedCounter(TOTALS);
+        queueDepth = new Histogram();
+        dwellTime = new Histogram();
+        serviceTime = new Histogram();
+        ackRtt = new Histogram();
+    }
+
+    /**
+     * @return {@code true} if statistics are recorded.
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Turns recording on or off for all sessions. Counts recorded so far are
+     * kept.
+     *
+     * @param enabled {@code true} to record statistics.
+     */
+    public static void setEnabled(boolean enabled) {
+        SenderStats.enabled = enabled;
+    }
+
+    /**
+     * @return number of sessions connected to a TV.
+     */
+    public static int getSessionCount() {
+        synchronized (sessions) {
+            return connectedSessions;
+        }
+    }
+
+    /**
+     * @return statistics of all sessions, including closed ones.
+     */
+    public static Snapshot getAggregate() {
+        Aggregate aggregate = new Aggregate();
+        getAggregate(aggregate);
+        return aggregate.snapshot();
+    }
+
+    /**
+     * Sums the statistics of all sessions, including closed ones, into an
+     * aggregate which the caller keeps from one reading to the next. Nothing
+     * is allocated.
+     *
+     * @param aggregate aggregate to overwrite; must not be read meanwhile.
+     */
+    public static void getAggregate(Aggregate aggregate) {
+        synchronized (sessions) {
+            aggregate.clear();
+            aggregate.add(retired);
+            for (SenderStats stats : sessions) {
+                aggregate.add(stats);
+            }
+        }
+    }
+
+    /**
+     * Counts the session as connected, adding it to the aggregate on its
+     * first connection.
+     */
+    void onOpened() {
+        synchronized (sessions) {
+            if (destroyed) {
+                return;
+            }
+            if (!registered) {
+                registered = true;
+                sessions.add(this);
+            }
+            if (!connected) {
+                connected = true;
+                connectedSessions++;
+            }
+        }
+    }
+
+    /**
+     * Counts the session as disconnected. Its counts stay in the aggregate.
+     */
+    void onClosed() {
+        synchronized (sessions) {
+            if (connected) {
+                connected = false;
+                connectedSessions--;
+            }
+        }
+    }
+
+    /**
+     * Moves the counts of a destroyed session into the aggregate, including
+     * those of a session which never connected, such as dropped messages.
+     */
+    void retire() {
+        synchronized (sessions) {
+            if (destroyed) {
+                return;
+            }
+            destroyed = true;
+            onClosed();
+            sessions.remove(this);
+            retired.add(this);
+        }
+    }
+
+    void onEnqueued(int type) {
+        enqueued.increment(type);
+    }
+
+    void onCoalesced(int type) {
+        coalesced.increment(type);
+    }
+
+    void onDropped(int type) {
+        dropped.increment(type);
+    }
+
+    /**
+     * Records a message taken from the queue.
+     *
+     * @param type message type.
+     * @param depth messages left in the queue.
+     * @param dwell ns the message waited in the queue.
+     */
+    void onDequeued(int type, int depth, long dwell) {
+        queueDepth.record(depth);
+        dwellTime.record(dwell);
+    }
+
+    /**
+     * Records a message written to the socket.
+     *
+     * @param type message type.
+     * @param service ns taken to write it.
+     */
+    void onSent(int type, long service) {
+        sent.increment(type);
+        serviceTime.record(service);
+    }
+
+    void onConnect() {
+        totals.increment(CONNECTS);
+    }
+
+    /**
+     * Records that the session replaced a connection to the same device.
+     */
+    void onReconnect() {
+        totals.increment(RECONNECTS);
+    }
+
+    void onAck(long rtt) {
+        totals.increment(ACKS);
+        if (rtt >= 0) {
+            ackRtt.record(rtt);
+        }
+    }
+
+    void onAckTimeout() {
+        totals.increment(ACK_TIMEOUTS);
+    }
+
+    /**
+     * Wraps the stream written by the sender, counting the bytes written
+     * while recording is on.
+     *
+     * @param out socket stream.
+     * @return counting stream.
+     */
+    OutputStream countBytes(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                if (enabled) {
+                    totals.increment(BYTES_WRITTEN);
+                }
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                if (enabled) {
+                    totals.add(BYTES_WRITTEN, len);
+                }
+            }
+        };
+    }
+
+    /**
+     * @return copy of the statistics recorded so far.
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(types, new long[][] {
+                enqueued.get(), sent.get(), dropped.get(), coalesced.get() }, totals.get(),
+                new Histogram.Snapshot[] {
+                        queueDepth.snapshot(), dwellTime.snapshot(), serviceTime.snapshot(),
+                        ackRtt.snapshot() });
+    }
+
+    /**
+     * Statistics of several sessions, summed in place. Reading it takes no
+     * copies, so one aggregate can serve any number of readings.
+     */
+    public static final class Aggregate {
+        private final String[] types = AnymoteSender.TYPE_NAMES;
+        private final long[][] counts = new long[COUNTS][types.length];
+        private final long[] totals = new long[TOTALS];
+        private final Histogram[] histograms = new Histogram[HISTOGRAMS];
+
+        /**
+         * Constructor
+         */
+        public Aggregate() {
+            for (int i = 0; i < HISTOGRAMS; i++) {
+                histograms[i] = new Histogram();
+            }
+        }
+
+        void clear() {
+            for (long[] values : counts) {
+                Arrays.fill(values, 0);
+            }
+            Arrays.fill(totals, 0);
+            for (Histogram histogram : histograms) {
+                histogram.reset();
+            }
+        }
+
+        void add(SenderStats stats) {
+            stats.enqueued.addTo(counts[ENQUEUED]);
+            stats.sent.addTo(counts[SENT]);
+            stats.dropped.addTo(counts[DROPPED]);
+            stats.coalesced.addTo(counts[COALESCED]);
+            stats.totals.addTo(totals);
+            stats.queueDepth.addTo(histograms[QUEUE_DEPTH]);
+            stats.dwellTime.addTo(histograms[DWELL_TIME]);
+            stats.serviceTime.addTo(histograms[SERVICE_TIME]);
+            stats.ackRtt.addTo(histograms[ACK_RTT]);
+        }
+
+        void add(Aggregate other) {
+            for (int i = 0; i < COUNTS; i++) {
+                for (int type = 0; type < types.length; type++) {
+                    counts[i][type] += other.counts[i][type];
+                }
+            }
+            for (int i = 0; i < TOTALS; i++) {
+                totals[i] += other.totals[i];
+            }
+            for (int i = 0; i < HISTOGRAMS; i++) {
+                other.histograms[i].addTo(histograms[i]);
+            }
+        }
+
+        /**
+         * @return copy of the aggregate.
+         */
+        public Snapshot snapshot() {
+            long[][] countsCopy = new long[COUNTS][];
+            for (int i = 0; i < COUNTS; i++) {
+                countsCopy[i] = counts[i].clone();
+            }
+            Histogram.Snapshot[] histogramsCopy = new Histogram.Snapshot[HISTOGRAMS];
+            for (int i = 0; i < HISTOGRAMS; i++) {
+                histogramsCopy[i] = histograms[i].snapshot();
+            }
+            return new Snapshot(types, countsCopy, totals.clone(), histogramsCopy);
+        }
+
+        /**
+         * @return number of message types.
+         */
+        public int getTypeCount() {
+            return types.length;
+        }
+
+        /**
+         * @param type message type.
+         * @return name of the type, such as {@code "mousemove"}.
+         */
+        public String getTypeName(int type) {
+            return types[type];
+        }
+
+        /**
+         * @param type message type.
+         * @return messages of the type queued.
+         */
+        public long getEnqueued(int type) {
+            return counts[ENQUEUED][type];
+        }
+
+        /**
+         * @param type message type.
+         * @return messages of the type written to the socket.
+         */
+        public long getSent(int type) {
+            return counts[SENT][type];
+        }
+
+        /**
+         * @param type message type.
+         * @return messages of the type discarded for lack of a connection.
+         */
+        public long getDropped(int type) {
+            return counts[DROPPED][type];
+        }
+
+        /**
+         * @param type message type.
+         * @return messages of the type merged into one still queued.
+         */
+        public long getCoalesced(int type) {
+            return counts[COALESCED][type];
+        }
+
+        /**
+         * @return bytes written to the socket.
+         */
+        public long getBytesWritten() {
+            return totals[BYTES_WRITTEN];
+        }
+
+        /**
+         * @return connections made, reconnects included.
+         */
+        public long getConnects() {
+            return totals[CONNECTS];
+        }
+
+        /**
+         * @return connections to the device the client service was
+         *         connected to last.
+         */
+        public long getReconnects() {
+            return totals[RECONNECTS];
+        }
+
+        /**
+         * @return acks received.
+         */
+        public long getAcks() {
+            return totals[ACKS];
+        }
+
+        /**
+         * @return connections given up for lack of acks.
+         */
+        public long getAckTimeouts() {
+            return totals[ACK_TIMEOUTS];
+        }
+
+        /**
+         * @return messages left in the queue as each message was taken.
+         */
+        public Histogram getQueueDepth() {
+            return histograms[QUEUE_DEPTH];
+        }
+
+        /**
+         * @return ns messages waited in the queue.
+         */
+        public Histogram getDwellTime() {
+            return histograms[DWELL_TIME];
+        }
+
+        /**
+         * @return ns taken to write messages to the socket.
+         */
+        public Histogram getServiceTime() {
+            return histograms[SERVICE_TIME];
+        }
+
+        /**
+         * @return ns from queueing a ping to its ack.
+         */
+        public Histogram getAckRtt() {
+            return histograms[ACK_RTT];
+        }
+    }
+
+    /**
+     * Immutable copy of the statistics of one or more sessions.
+     */
+    public static final class Snapshot {
+        private final String[] types;
+        private final long[][] counts;
+        private final long[] totals;
+        private final Histogram.Snapshot[] histograms;
+
+        Snapshot(String[] types, long[][] counts, long[] totals, Histogram.Snapshot[] histograms) {
+            this.types = types;
+            this.counts = counts;
+            this.totals = totals;
+            this.histograms = histograms;
+        }
+
+        /**
+         * @param other statistics to add, of sessions with the same message
+         *            types.
+         * @return statistics of both.
+         */
+        public Snapshot add(Snapshot other) {
+            long[][] sumCounts = new long[counts.length][types.length];
+            for (int i = 0; i < counts.length; i++) {
+                for (int type = 0; type < types.length; type++) {
+                    sumCounts[i][type] = counts[i][type] + other.counts[i][type];
+                }
+            }
+            long[] sumTotals = new long[totals.length];
+            for (int i = 0; i < totals.length; i++) {
+                sumTotals[i] = totals[i] + other.totals[i];
+            }
+            Histogram.Snapshot[] sumHistograms = new Histogram.Snapshot[histograms.length];
+            for (int i = 0; i < histograms.length; i++) {
+                sumHistograms[i] = histograms[i].add(other.histograms[i]);
+            }
+            return new Snapshot(types, sumCounts, sumTotals, sumHistograms);
+        }
+
+        /**
+         * @return number of message types.
+         */
+        public int getTypeCount() {
+            return types.length;
+        }
+
+        /**
+         * @param type message type.
+         * @return name of the type, such as {@code "mousemove"}.
+         */
+        public String getTypeName(int type) {
+            return types[type];
+        }
+
+        /**
+         * @param type message type.
+         * @return messages of the type queued.
+         */
+        public long getEnqueued(int type) {
+            return counts[ENQUEUED][type];
+        }
+
+        /**
+         * @param type message type.
+         * @return messages of the type written to the socket.
+         */
+        public long getSent(int type) {
+            return counts[SENT][type];
+        }
+
+        /**
+         * @param type message type.
+         * @return messages of the type discarded for lack of a connection.
+         */
+        public long getDropped(int type) {
+            return counts[DROPPED][type];
+        }
+
+        /**
+         * @param type message type.
+         * @return messages of the type merged into one still queued.
+         */
+        public long getCoalesced(int type) {
+            return counts[COALESCED][type];
+        }
+
+        /**
+         * @return messages of all types queued.
+         */
+        public long getEnqueued() {
+            return sum(counts[ENQUEUED]);
+        }
+
+        /**
+         * @return messages of all types written to the socket.
+         */
+        public long getSent() {
+            return sum(counts[SENT]);
+        }
+
+        /**
+         * @return messages of all types discarded for lack of a connection.
+         */
+        public long getDropped() {
+            return sum(counts[DROPPED]);
+        }
+
+        /**
+         * @return messages of all types merged into one still queued.
+         */
+        public long getCoalesced() {
+            return sum(counts[COALESCED]);
+        }
+
+        /**
+         * @return bytes written to the socket.
+         */
+        public long getBytesWritten() {
+            return totals[BYTES_WRITTEN];
+        }
+
+        /**
+         * @return connections made, reconnects included.
+         */
+        public long getConnects() {
+            return totals[CONNECTS];
+        }
+
+        /**
+         * @return connections to the device the client service was
+         *         connected to last.
+         */
+        public long getReconnects() {
+            return totals[RECONNECTS];
+        }
+
+        /**
+         * @return acks received.
+         */
+        public long getAcks() {
+            return totals[ACKS];
+        }
+
+        /**
+         * @return connections given up for lack of acks.
+         */
+        public long getAckTimeouts() {
+            return totals[ACK_TIMEOUTS];
+        }
+
+        /**
+         * @return messages left in the queue as each message was taken.
+         */
+        public Histogram.Snapshot getQueueDepth() {
+            return histograms[QUEUE_DEPTH];
+        }
+
+        /**
+         * @return ns messages waited in the queue.
+         */
+        public Histogram.Snapshot getDwellTime() {
+            return histograms[DWELL_TIME];
+        }
+
+        /**
+         * @return ns taken to write messages to the socket.
+         */
+        public Histogram.Snapshot getServiceTime() {
+            return histograms[SERVICE_TIME];
+        }
+
+        /**
+         * @return ns from queueing a ping to its ack.
+         */
+        public Histogram.Snapshot getAckRtt() {
+            return histograms[ACK_RTT];
+        }
+
+        private static long sum(long[] values) {
+            long sum = 0;
+            for (long value : values) {
+                sum += value;
+            }
+            return sum;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            builder.append("enqueued=").append(getEnqueued()).append(" sent=").append(getSent())
+                    .append(" dropped=").append(getDropped()).append(" coalesced=")
+                    .append(getCoalesced()).append(" bytes=").append(getBytesWritten())
+                    .append(" connects=").append(getConnects()).append(" reconnects=")
+                    .append(getReconnects()).append(" acks=").append(getAcks())
+                    .append(" ackTimeouts=").append(getAckTimeouts());
+            appendHistogram(builder, "dwell", getDwellTime());
+            appendHistogram(builder, "service", getServiceTime());
+            appendHistogram(builder, "ackRtt", getAckRtt());
+            builder.append(" maxQueueDepth=").append(getQueueDepth().getMax());
+            return builder.toString();
+        }
+
+        private static void appendHistogram(StringBuilder builder, String name,
+                Histogram.Snapshot histogram) {
+            builder.append(' ').append(name).append(" p50/p99=")
+                    .append(histogram.getPercentile(0.5) / 1000).append('/')
+                    .append(histogram.getPercentile(0.99) / 1000).append("us");
+        }
+    }
+}
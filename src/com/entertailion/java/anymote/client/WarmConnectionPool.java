@@ -0,0 +1,430 @@
+/*
+ * Copyright (C) 2012 ENTERTAILION, LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.entertailion.java.anymote.client;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import com.entertailion.java.anymote.connection.ConnectingTask;
+import com.entertailion.java.anymote.connection.ConnectingTask.ConnectionListener;
+import com.entertailion.java.anymote.connection.DeviceRegistry;
+import com.entertailion.java.anymote.connection.KeyStoreManager;
+import com.entertailion.java.anymote.connection.TvDevice;
+import com.entertailion.java.anymote.util.Log;
+import com.entertailion.java.anymote.util.Platform;
+
+/**
+ * Keeps idle, authenticated connections to already paired Google TV devices,
+ * so that connecting to one of them does not have to wait for TCP, TLS and
+ * the Anymote CONNECT.
+ * <p>
+ * Connections are made in the background, only to devices the key store has
+ * a certificate for, and never start a pairing session. When the pool is
+ * full the least recently warmed connection is closed, and connections that
+ * have not been warmed again within the idle timeout are closed by a periodic
+ * sweep.
+ * <p>
+ * Given a {@link DeviceRegistry}, the pool warms the devices it reports, and
+ * each sighting of a device in the registry counts as warming it again. The
+ * sweep also warms again, while there is room, recently seen devices whose
+ * connection was lost.
+ */
+public class WarmConnectionPool {
+    private static final String LOG_TAG = "WarmConnectionPool";
+
+    /**
+     * Frequency of idle connection sweeps.
+     */
+    private static final int SWEEP_INTERVAL_MS = 30 * 1000;
+
+    private final KeyStoreManager keyStoreManager;
+    private final Platform platform;
+    private final int maxConnections;
+    private final long idleTimeout;
+
+    /**
+     * Warm connections keyed by device address and port, in access order.
+     */
+    private final LinkedHashMap<String, WarmConnection> connections;
+
+    /**
+     * Live connections to devices taken from the pool or connected to
+     * otherwise, which are not warmed.
+     */
+    private final HashMap<String, AnymoteSender> inUse;
+
+    /**
+     * Registry whose devices are warmed, or {@code null}.
+     */
+    private DeviceRegistry registry;
+
+    /**
+     * Timer to close idle connections.
+     */
+    private final Timer sweepTimer;
+
+    /**
+     * Warms the devices the registry reports.
+     */
+    private final DeviceRegistry.Listener registryListener = new DeviceRegistry.Listener() {
+        public void onDeviceAdded(TvDevice device) {
+            warm(device);
+        }
+
+        public void onDeviceUpdated(TvDevice device) {
+            warm(device);
+        }
+
+        public void onDeviceLost(TvDevice device) {
+            evict(device);
+        }
+    };
+
+    /**
+     * Constructor
+     *
+     * @param keyStoreManager key store with the certificates of paired devices.
+     * @param platform platform used for the connections.
+     * @param maxConnections maximum number of warm connections.
+     * @param idleTimeout ms a connection is kept without being warmed again.
+     */
+    public WarmConnectionPool(KeyStoreManager keyStoreManager, Platform platform,
+            int maxConnections, long idleTimeout) {
+        this.keyStoreManager = keyStoreManager;
+        this.platform = platform;
+        this.maxConnections = maxConnections;
+        this.idleTimeout = idleTimeout;
+        connections = new LinkedHashMap<String, WarmConnection>(16, 0.75f, true);
+        inUse = new HashMap<String, AnymoteSender>();
+        sweepTimer = new Timer("WarmConnectionPool", true);
+        sweepTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                sweep();
+            }
+        }, SWEEP_INTERVAL_MS, SWEEP_INTERVAL_MS);
+    }
+
+    /**
+     * Warms the devices of a registry as they are seen, instead of only those
+     * passed to {@link #warm(TvDevice)}.
+     *
+     * @param registry registry of discovered devices, or {@code null} to stop
+     *            following one.
+     */
+    public synchronized void setDeviceRegistry(DeviceRegistry registry) {
+        if (this.registry != null) {
+            this.registry.removeListener(registryListener);
+        }
+        this.registry = registry;
+        if (registry != null) {
+            registry.addListener(registryListener);
+            for (TvDevice device : registry.getDevices()) {
+                warm(device);
+            }
+        }
+    }
+
+    /**
+     * Starts background connections to the given devices, or refreshes the
+     * connections that already exist.
+     *
+     * @param devices discovered devices.
+     */
+    public synchronized void warm(List<TvDevice> devices) {
+        for (TvDevice device : devices) {
+            warm(device);
+        }
+    }
+
+    /**
+     * Starts a background connection to the device, or refreshes the existing
+     * one.
+     *
+     * @param device discovered device.
+     */
+    public synchronized void warm(TvDevice device) {
+        String key = keyOf(device);
+        WarmConnection connection = connections.get(key);
+        if (connection != null) {
+            connection.lastWarmed = System.currentTimeMillis();
+            return;
+        }
+        if (isInUse(key) || !keyStoreManager.hasCertificate(device)) {
+            return;
+        }
+        connection = new WarmConnection(device);
+        connections.put(key, connection);
+        while (connections.size() > maxConnections) {
+            Iterator<WarmConnection> eldest = connections.values().iterator();
+            WarmConnection evicted = eldest.next();
+            eldest.remove();
+            Log.d(LOG_TAG, "Evicting " + evicted.device.getName() + "; pool is full");
+            evicted.close();
+        }
+        connection.task.start();
+    }
+
+    /**
+     * Removes an established connection to the device from the pool and hands
+     * it to a new connection listener. A loss of the connection which races
+     * with this call either prevents the hand-over or is reported to the new
+     * listener.
+     *
+     * @param device the device to connect to.
+     * @param listener the listener that receives the connection's further
+     *            state changes.
+     * @return the connection, or {@code null} if none is established.
+     */
+    public synchronized WarmConnection take(TvDevice device, ConnectionListener listener) {
+        String key = keyOf(device);
+        WarmConnection connection = connections.get(key);
+        if (connection == null || connection.anymoteSender == null) {
+            return null;
+        }
+        connections.remove(key);
+        AnymoteSender sender = connection.anymoteSender;
+        if (!sender.isConnected()) {
+            // lost, and its callback waits for this lock
+            connection.close();
+            return null;
+        }
+        connection.owner = listener;
+        inUse.put(key, sender);
+        Log.d(LOG_TAG, "Using warm connection to " + device.getName());
+        return connection;
+    }
+
+    /**
+     * Records a connection to a device made outside the pool, so that the
+     * device is not warmed while the connection lasts.
+     *
+     * @param device the connected device.
+     * @param sender the connection.
+     */
+    public synchronized void setInUse(TvDevice device, AnymoteSender sender) {
+        String key = keyOf(device);
+        inUse.put(key, sender);
+        WarmConnection connection = connections.get(key);
+        if (connection != null && connection.anymoteSender != sender) {
+            connections.remove(key);
+            connection.close();
+        }
+    }
+
+    /**
+     * Closes the warm connection to the device, if there is one.
+     *
+     * @param device the device.
+     */
+    public synchronized void evict(TvDevice device) {
+        WarmConnection connection = connections.remove(keyOf(device));
+        if (connection != null) {
+            connection.close();
+        }
+    }
+
+    /**
+     * Closes all warm connections and stops the sweeps.
+     */
+    public synchronized void shutdown() {
+        sweepTimer.cancel();
+        setDeviceRegistry(null);
+        for (WarmConnection connection : connections.values()) {
+            connection.close();
+        }
+        connections.clear();
+    }
+
+    /**
+     * Returns the devices which currently have an established warm connection.
+     *
+     * @return list of devices.
+     */
+    public synchronized List<TvDevice> getWarmDevices() {
+        List<TvDevice> devices = new ArrayList<TvDevice>();
+        for (WarmConnection connection : connections.values()) {
+            if (connection.anymoteSender != null) {
+                devices.add(connection.device);
+            }
+        }
+        return devices;
+    }
+
+    /**
+     * Closes connections which have not been warmed, or seen in the registry,
+     * within the idle timeout, then warms again the devices seen within it
+     * while there is room.
+     */
+    private synchronized void sweep() {
+        long now = System.currentTimeMillis();
+        Iterator<WarmConnection> it = connections.values().iterator();
+        while (it.hasNext()) {
+            WarmConnection connection = it.next();
+            long lastSeen = connection.lastWarmed;
+            if (registry != null) {
+                lastSeen = Math.max(lastSeen, registry.getLastSeen(connection.device));
+            }
+            if (now - lastSeen > idleTimeout) {
+                it.remove();
+                Log.d(LOG_TAG, "Evicting idle connection to " + connection.device.getName());
+                connection.close();
+            }
+        }
+        if (registry == null) {
+            return;
+        }
+        for (TvDevice device : registry.getDevices()) {
+            if (connections.size() >= maxConnections) {
+                break;
+            }
+            if (now - registry.getLastSeen(device) <= idleTimeout) {
+                warm(device);
+            }
+        }
+    }
+
+    /**
+     * @return {@code true} if the device has a live connection outside the
+     *         pool.
+     */
+    private boolean isInUse(String key) {
+        AnymoteSender sender = inUse.get(key);
+        if (sender != null && !sender.isConnected()) {
+            inUse.remove(key);
+            sender = null;
+        }
+        return sender != null;
+    }
+
+    /**
+     * Drops a connection that failed or was lost while in the pool. The
+     * caller closes it, so that its sender threads end.
+     *
+     * @return the listener the connection was handed to, which is to be
+     *         told instead, or {@code null} if it is still in the pool.
+     */
+    private synchronized ConnectionListener remove(WarmConnection connection) {
+        if (connection.owner != null) {
+            return connection.owner;
+        }
+        String key = keyOf(connection.device);
+        if (connections.get(key) == connection) {
+            connections.remove(key);
+        }
+        connection.anymoteSender = null;
+        return null;
+    }
+
+    private static String keyOf(TvDevice device) {
+        return device.getAddress().getHostAddress() + ":" + device.getPort();
+    }
+
+    /**
+     * A background connection to a single device. It stays the listener of
+     * its task once taken, and passes the task's callbacks on to the listener
+     * it was handed to.
+     */
+    public final class WarmConnection implements ConnectionListener {
+        private final TvDevice device;
+        private final ConnectingTask task;
+        private volatile AnymoteSender anymoteSender;
+        private long lastWarmed;
+
+        /**
+         * Listener the connection was handed to; guarded by the pool.
+         */
+        private ConnectionListener owner;
+
+        WarmConnection(TvDevice device) {
+            this.device = device;
+            lastWarmed = System.currentTimeMillis();
+            task = new ConnectingTask(device, keyStoreManager, platform);
+            task.setPairingAllowed(false);
+            task.setConnectionListener(this);
+        }
+
+        /**
+         * Returns the device this connection is made to.
+         *
+         * @return TV device.
+         */
+        public TvDevice getDevice() {
+            return device;
+        }
+
+        /**
+         * Returns the task that owns the connection.
+         *
+         * @return connecting task.
+         */
+        public ConnectingTask getConnectingTask() {
+            return task;
+        }
+
+        /**
+         * Returns the proxy to send Anymote messages over this connection.
+         *
+         * @return Anymote sender.
+         */
+        public AnymoteSender getAnymoteSender() {
+            return anymoteSender;
+        }
+
+        private void close() {
+            anymoteSender = null;
+            task.cancel();
+        }
+
+        public void attemptToConnect(TvDevice device) {
+        }
+
+        public void onConnected(TvDevice device, AnymoteSender anymoteSender) {
+            Log.d(LOG_TAG, "Warm connection to " + device.getName() + " established");
+            this.anymoteSender = anymoteSender;
+        }
+
+        public void onConnectionFailed() {
+            ConnectionListener owner = remove(this);
+            if (owner != null) {
+                owner.onConnectionFailed();
+                return;
+            }
+            Log.d(LOG_TAG, "Warm connection to " + device.getName() + " failed");
+            close();
+        }
+
+        public void onSecretRequired(PinListener pinListener) {
+            pinListener.onCancel();
+        }
+
+        public void onConnectionPairing() {
+        }
+
+        public void onConnectionDisconnected() {
+            ConnectionListener owner = remove(this);
+            if (owner != null) {
+                owner.onConnectionDisconnected();
+                return;
+            }
+            Log.d(LOG_TAG, "Warm connection to " + device.getName() + " lost");
+            close();
+        }
+    }
+}
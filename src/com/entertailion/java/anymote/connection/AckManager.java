@@ -19,6 +19,7 @@ import com.entertailion.java.anymote.client.AnymoteSender;
 import com.entertailion.java.anymote.util.Log;
 import com.entertailion.java.anymote.util.Message;
 import com.entertailion.java.anymote.util.MessageThread;
+import com.entertailion.java.anymote.util.Trace;
 
 /**
  * This class manages the requests for acknowledgments that are sent to the
@@ -82,6 +83,13 @@ public final class AckManager {
         handler.sendEmptyMessage(Action.ACK.ordinal());
     }
 
+    /**
+     * @return pings sent since the last ack.
+     */
+    public int getLostAcks() {
+        return handler.lostAcks;
+    }
+
     /**
      * Starts monitoring connection to Anymote server.
      */
@@ -132,7 +140,12 @@ public final class AckManager {
          * Duration between two ack requests.
          */
         private static final int PING_PERIOD = 3 * 1000;
-        private int lostAcks;
+        private volatile int lostAcks;
+
+        /**
+         * Trace start of the oldest unacked ping, 0 if none.
+         */
+        private long pingStart;
 
         /**
          * Max number of missing requests in a row that indicade conneciton lost
@@ -166,6 +179,9 @@ public final class AckManager {
         }
 
         private void handlePing() {
+            if (pingStart == 0) {
+                pingStart = Trace.start();
+            }
             sender.sendPing();
             sendMessageDelayed(obtainMessage(Action.PING.ordinal()), PING_PERIOD);
             ++lostAcks;
@@ -176,16 +192,21 @@ public final class AckManager {
 
         private void handleStart() {
             lostAcks = 0;
+            pingStart = 0;
             handlePing();
         }
 
         private void handleTimeout() {
             removeMessages(Action.PING, Action.ACK);
+            Trace.end(Trace.Event.ACK, pingStart, "timeout");
+            pingStart = 0;
             connectionTimeout();
         }
 
         private void handleAck() {
             lostAcks = 0;
+            Trace.end(Trace.Event.ACK, pingStart, null);
+            pingStart = 0;
         }
 
         private void removeMessages(Action... actions) {
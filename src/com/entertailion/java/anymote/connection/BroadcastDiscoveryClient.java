@@ -25,6 +25,7 @@ import java.util.Timer;
 import java.util.TimerTask;
 
 import com.entertailion.java.anymote.util.Log;
+import com.entertailion.java.anymote.util.Trace;
 
 /**
  * An implementation of a trivial broadcast discovery protocol.
@@ -40,12 +41,7 @@ public class BroadcastDiscoveryClient implements Runnable {
     /**
      * UDP port to send probe messages to.
      */
-    private static final int BROADCAST_SERVER_PORT = 9101;
-
-    /**
-     * Frequency of probe messages.
-     */
-    private static final int PROBE_INTERVAL_MS = 2000;
+    static final int BROADCAST_SERVER_PORT = 9101;
 
     /**
      * Command name for a discovery request.
@@ -57,15 +53,20 @@ public class BroadcastDiscoveryClient implements Runnable {
      */
     private final Inet4Address mBroadcastAddress;
 
+    /**
+     * Port of the discovery responders.
+     */
+    private final int mServerPort;
+
     /**
      * Timer to send probes.
      */
     private final Timer mProbeTimer;
 
     /**
-     * TimerTask to send probes.
+     * Decides when probes are sent.
      */
-    private final TimerTask mProbeTimerTask;
+    private final ProbeScheduler mProbeScheduler;
 
     /**
      * Send/receive socket.
@@ -73,11 +74,12 @@ public class BroadcastDiscoveryClient implements Runnable {
     private final DatagramSocket mSocket;
     private DeviceDiscoveredListener mListener;
     private final String mServiceName;
+    private final DiscoveryResponseParser mParser;
 
     /**
      * Broadcast advertisement response to listener.
      */
-    public final class BroadcastAdvertisement {
+    public static final class BroadcastAdvertisement {
 
         /**
          * Name of the service.
@@ -147,8 +149,22 @@ public class BroadcastDiscoveryClient implements Runnable {
      * @param service The name of service we are looking for.
      */
     public BroadcastDiscoveryClient(Inet4Address broadcastAddress, String service) {
+        this(broadcastAddress, service, BROADCAST_SERVER_PORT);
+    }
+
+    /**
+     * Constructor
+     * 
+     * @param broadcastAddress destination address for probes.
+     * @param service The name of service we are looking for.
+     * @param serverPort port the responders listen on.
+     */
+    public BroadcastDiscoveryClient(Inet4Address broadcastAddress, String service,
+            int serverPort) {
         mBroadcastAddress = broadcastAddress;
+        mServerPort = serverPort;
         mServiceName = service;
+        mParser = new DiscoveryResponseParser(service);
 
         try {
             // binds to random port
@@ -160,12 +176,7 @@ public class BroadcastDiscoveryClient implements Runnable {
         }
 
         mProbeTimer = new Timer();
-        mProbeTimerTask = new TimerTask() {
-                @Override
-            public void run() {
-                BroadcastDiscoveryClient.this.sendProbe();
-            }
-        };
+        mProbeScheduler = new ProbeScheduler();
         Log.i(LOG_TAG, "Starting client on address " + mBroadcastAddress);
     }
 
@@ -173,11 +184,12 @@ public class BroadcastDiscoveryClient implements Runnable {
         Log.i(LOG_TAG, "Broadcast client thread starting.");
         byte[] buffer = new byte[256];
 
-        mProbeTimer.schedule(mProbeTimerTask, 0, PROBE_INTERVAL_MS);
+        scheduleProbe(0);
 
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
         while (true) {
             try {
-                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                packet.setLength(buffer.length);
                 mSocket.receive(packet);
                 handleResponsePacket(packet);
             } catch (InterruptedIOException e) {
@@ -188,21 +200,51 @@ public class BroadcastDiscoveryClient implements Runnable {
                 break;
             }
         }
-        Log.i(LOG_TAG, "Exiting client loop.");
+        Log.i(LOG_TAG, "Exiting client loop: " + mProbeScheduler);
         mProbeTimer.cancel();
     }
 
     /**
-     * Sends a single broadcast discovery request.
+     * Schedules the next probe.
+     * 
+     * @param delay ms until the probe is sent.
+     */
+    private void scheduleProbe(long delay) {
+        try {
+            mProbeTimer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    sendProbe();
+                }
+            }, delay);
+        } catch (IllegalStateException e) {
+            // stopped
+        }
+    }
+
+    /**
+     * Sends a single broadcast discovery request, and schedules the next one.
      */
     private void sendProbe() {
         DatagramPacket packet = makeRequestPacket(mServiceName, mSocket.getLocalPort());
+        long start = Trace.start();
         try {
             mSocket.send(packet);
         } catch (IOException e) {
             Log.e(LOG_TAG, "Exception sending broadcast probe", e);
-            return;
         }
+        Trace.end(Trace.Event.DISCOVERY_PROBE, start, "broadcast");
+        scheduleProbe(mProbeScheduler.onProbe(1));
+    }
+
+    /**
+     * Returns the probe scheduler, which also counts probes and responding
+     * devices.
+     * 
+     * @return probe scheduler.
+     */
+    public ProbeScheduler getProbeScheduler() {
+        return mProbeScheduler;
     }
 
     /**
@@ -222,45 +264,42 @@ public class BroadcastDiscoveryClient implements Runnable {
      * @return a new DatagramPacket
      */
     private DatagramPacket makeRequestPacket(String serviceName, int responsePort) {
-        String message = COMMAND_DISCOVER + " " + serviceName + " " + responsePort + "\n";
-        byte[] buf = message.getBytes();
+        byte[] buf = makeRequest(serviceName, responsePort);
         DatagramPacket packet =
-                new DatagramPacket(buf, buf.length, mBroadcastAddress, BROADCAST_SERVER_PORT);
+                new DatagramPacket(buf, buf.length, mBroadcastAddress, mServerPort);
         return packet;
     }
 
+    /**
+     * Constructs the payload of a probe.
+     * 
+     * @param serviceName the service name to discover
+     * @param responsePort the udp port number for replies
+     * @return probe message
+     */
+    static byte[] makeRequest(String serviceName, int responsePort) {
+        String message = COMMAND_DISCOVER + " " + serviceName + " " + responsePort + "\n";
+        return message.getBytes();
+    }
+
     /**
      * Parse a received packet, and notify the main thread if valid.
      * 
      * @param packet The locally-received DatagramPacket
      */
     private void handleResponsePacket(DatagramPacket packet) {
-        String strPacket = new String(packet.getData(), 0, packet.getLength());
-        String tokens[] = strPacket.trim().split("\\s+");
-
-        if (tokens.length != 3) {
-            Log.w(LOG_TAG, "Malformed response: expected 3 tokens, got " + tokens.length);
+        if (!mParser.parse(packet.getData(), packet.getOffset(), packet.getLength())
+                || mListener == null) {
             return;
         }
-
-        BroadcastAdvertisement advert;
-        try {
-            String serviceType = tokens[0];
-            if (!serviceType.equals(mServiceName)) {
-                return;
-            }
-            String serviceName = tokens[1];
-            int port = Integer.parseInt(tokens[2]);
-            Inet4Address addr = (Inet4Address) packet.getAddress();
+        Inet4Address addr = (Inet4Address) packet.getAddress();
+        String serviceName = mParser.getName();
+        mProbeScheduler.onResponse(serviceName);
+        int port = mParser.getPort();
+        if (Log.isLoggable(LOG_TAG, Log.VERBOSE)) {
             Log.v(LOG_TAG, "Broadcast response: " + serviceName + ", " + addr + ", " + port);
-            advert = new BroadcastAdvertisement(serviceName, addr, port);
-        } catch (NumberFormatException e) {
-            return;
-        }
-
-        if (mListener != null) {
-            mListener.onDeviceDiscovered(advert);
         }
+        mListener.onDeviceDiscovered(new BroadcastAdvertisement(serviceName, addr, port));
     }
 
     /**
@@ -0,0 +1,555 @@
+/*
+ * Copyright (C) 2012 ENTERTAILION, LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.entertailion.java.anymote.connection;
+
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import com.entertailion.java.anymote.client.PinListener;
+import com.entertailion.java.anymote.connection.ConnectingTask.PairingStatus;
+import com.entertailion.java.anymote.util.Log;
+import com.entertailion.java.anymote.util.Platform;
+
+/**
+ * Pairs an inventory of Google TV devices for fleet provisioning.
+ * <p>
+ * At most a fixed number of pairing sessions run at once. PINs come from a
+ * {@link SecretProvider}; sessions waiting for a PIN hold no thread. Pairings
+ * that fail to connect are retried with exponential backoff. Certificates of
+ * paired devices are committed to the {@link KeyStoreManager} in groups, so
+ * the key store is written once per group instead of once per device, and a
+ * device is reported as paired only once its certificate is committed.
+ */
+public class BulkPairingOrchestrator {
+    private static final String LOG_TAG = "BulkPairingOrchestrator";
+
+    /**
+     * Delay before the first retry; doubled for every further retry.
+     */
+    private static final int RETRY_DELAY_MS = 1000;
+
+    /**
+     * Upper bound of the retry delay.
+     */
+    private static final int MAX_RETRY_DELAY_MS = 30 * 1000;
+
+    /**
+     * Source of pairing secrets.
+     */
+    public interface SecretProvider {
+        /**
+         * Called when a device shows its secret. The provider answers through
+         * the PIN listener, from any thread and at any later time.
+         *
+         * @param device the device being paired.
+         * @param pinListener listener to give the secret to, or to cancel.
+         */
+        void onSecretRequired(TvDevice device, PinListener pinListener);
+    }
+
+    /**
+     * Listener for provisioning progress.
+     */
+    public interface Listener {
+        /**
+         * Called when a device is done, successfully or not.
+         *
+         * @param result the result for the device.
+         */
+        void onDeviceComplete(Result result);
+
+        /**
+         * Called once all devices are done.
+         *
+         * @param report the provisioning report.
+         */
+        void onComplete(Report report);
+    }
+
+    /**
+     * Pairing result of a single device.
+     */
+    public static final class Result {
+        private final TvDevice device;
+        private final PairingStatus status;
+        private final int attempts;
+        private final long latency;
+        private final long elapsed;
+
+        Result(TvDevice device, PairingStatus status, int attempts, long latency, long elapsed) {
+            this.device = device;
+            this.status = status;
+            this.attempts = attempts;
+            this.latency = latency;
+            this.elapsed = elapsed;
+        }
+
+        /**
+         * @return the device.
+         */
+        public TvDevice getDevice() {
+            return device;
+        }
+
+        /**
+         * @return result of the last pairing attempt.
+         */
+        public PairingStatus getStatus() {
+            return status;
+        }
+
+        /**
+         * @return number of pairing attempts made.
+         */
+        public int getAttempts() {
+            return attempts;
+        }
+
+        /**
+         * @return ms taken by the last pairing attempt.
+         */
+        public long getLatency() {
+            return latency;
+        }
+
+        /**
+         * @return ms from the first attempt until the device was done,
+         *         including retries and backoff.
+         */
+        public long getElapsed() {
+            return elapsed;
+        }
+
+        @Override
+        public String toString() {
+            return device.getName() + " [" + device.getAddress() + ":" + device.getPort() + "] "
+                    + status + " after " + attempts + " attempt(s), " + latency + "ms ("
+                    + elapsed + "ms total)";
+        }
+    }
+
+    /**
+     * Summary of a provisioning run.
+     */
+    public static final class Report {
+        private final List<Result> results;
+        private final long elapsed;
+        private final int paired;
+        private final long[] latencies;
+
+        Report(List<Result> results, long elapsed) {
+            this.results = Collections.unmodifiableList(results);
+            this.elapsed = elapsed;
+            int count = 0;
+            for (Result result : results) {
+                if (result.getStatus() == PairingStatus.PAIRING_SUCCESS) {
+                    count++;
+                }
+            }
+            paired = count;
+            latencies = new long[count];
+            int i = 0;
+            for (Result result : results) {
+                if (result.getStatus() == PairingStatus.PAIRING_SUCCESS) {
+                    latencies[i++] = result.getLatency();
+                }
+            }
+            Arrays.sort(latencies);
+        }
+
+        /**
+         * @return results of all devices, in completion order.
+         */
+        public List<Result> getResults() {
+            return results;
+        }
+
+        /**
+         * @return ms taken by the whole run.
+         */
+        public long getElapsed() {
+            return elapsed;
+        }
+
+        /**
+         * @return number of devices paired.
+         */
+        public int getPairedCount() {
+            return paired;
+        }
+
+        /**
+         * @return devices paired per minute.
+         */
+        public double getThroughput() {
+            return elapsed > 0 ? paired * 60000.0 / elapsed : 0;
+        }
+
+        /**
+         * Returns a percentile of the pairing latency of paired devices.
+         *
+         * @param percentile percentile between 0 and 100.
+         * @return latency in ms, or 0 if no device was paired.
+         */
+        public long getLatencyPercentile(double percentile) {
+            if (latencies.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(percentile / 100 * latencies.length) - 1;
+            return latencies[Math.max(0, Math.min(latencies.length - 1, index))];
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Paired %d/%d devices in %dms (%.1f devices/min); "
+                    + "latency p50=%dms p90=%dms max=%dms", paired, results.size(), elapsed,
+                    getThroughput(), getLatencyPercentile(50), getLatencyPercentile(90),
+                    getLatencyPercentile(100));
+        }
+    }
+
+    private final KeyStoreManager keyStore;
+    private final Platform platform;
+    private final SecretProvider secretProvider;
+    private final int maxConcurrent;
+    private final int maxAttempts;
+    private final ExecutorService executor;
+    private final Timer retryTimer;
+    private final Random random;
+
+    private final LinkedList<Job> queue;
+    private final Set<PairingStateMachine> activeSessions;
+    private final List<Job> uncommitted;
+    private final List<Result> results;
+    private final CountDownLatch doneLatch;
+    private Listener listener;
+    private boolean started;
+    private boolean cancelled;
+    private boolean committing;
+    private int inFlight;
+    private int remaining;
+    private long startTime;
+    private Report report;
+
+    /**
+     * Constructor
+     *
+     * @param keyStoreManager key store for the device certificates.
+     * @param platform platform providing the client name.
+     * @param secretProvider source of pairing secrets.
+     * @param maxConcurrent maximum number of devices paired at once.
+     * @param maxAttempts maximum number of attempts per device when
+     *            connecting fails.
+     */
+    public BulkPairingOrchestrator(KeyStoreManager keyStoreManager, Platform platform,
+            SecretProvider secretProvider, int maxConcurrent, int maxAttempts) {
+        keyStore = keyStoreManager;
+        this.platform = platform;
+        this.secretProvider = secretProvider;
+        this.maxConcurrent = Math.max(1, maxConcurrent);
+        this.maxAttempts = Math.max(1, maxAttempts);
+        executor = Executors.newFixedThreadPool(this.maxConcurrent, new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, LOG_TAG);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        retryTimer = new Timer(LOG_TAG, true);
+        random = new Random();
+        queue = new LinkedList<Job>();
+        activeSessions = new HashSet<PairingStateMachine>();
+        uncommitted = new ArrayList<Job>();
+        results = new ArrayList<Result>();
+        doneLatch = new CountDownLatch(1);
+    }
+
+    /**
+     * Sets the listener for provisioning progress.
+     *
+     * @param listener progress listener.
+     */
+    public synchronized void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Starts pairing the inventory. Devices listed more than once, by address
+     * and port, are paired once.
+     *
+     * @param inventory devices to pair.
+     */
+    public void start(List<TvDevice> inventory) {
+        synchronized (this) {
+            if (started) {
+                throw new IllegalStateException("Provisioning already started");
+            }
+            started = true;
+            startTime = System.currentTimeMillis();
+            Set<String> seen = new HashSet<String>();
+            for (TvDevice device : inventory) {
+                if (seen.add(device.getAddress().getHostAddress() + ":" + device.getPort())) {
+                    queue.add(new Job(device));
+                }
+            }
+            remaining = queue.size();
+            Log.i(LOG_TAG, "Provisioning " + remaining + " devices, " + maxConcurrent + " at a time");
+        }
+        if (remaining == 0) {
+            complete();
+            return;
+        }
+        pump();
+    }
+
+    /**
+     * Waits until all devices are done.
+     *
+     * @return the provisioning report.
+     * @throws InterruptedException
+     */
+    public Report await() throws InterruptedException {
+        doneLatch.await();
+        synchronized (this) {
+            return report;
+        }
+    }
+
+    /**
+     * Cancels devices that are not done yet.
+     */
+    public void cancel() {
+        List<Job> queued;
+        List<PairingStateMachine> sessions;
+        synchronized (this) {
+            cancelled = true;
+            queued = new ArrayList<Job>(queue);
+            queue.clear();
+            sessions = new ArrayList<PairingStateMachine>(activeSessions);
+        }
+        for (Job job : queued) {
+            finish(job, PairingStatus.FAILED_CANCELLED);
+        }
+        for (PairingStateMachine session : sessions) {
+            session.cancel();
+        }
+    }
+
+    private synchronized boolean cancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Starts queued devices while there is room. The room is taken under the
+     * lock, so concurrent calls cannot start more than the maximum.
+     */
+    private void pump() {
+        List<Job> ready = new ArrayList<Job>();
+        synchronized (this) {
+            while (inFlight < maxConcurrent && !queue.isEmpty()) {
+                ready.add(queue.removeFirst());
+                inFlight++;
+            }
+        }
+        for (Job job : ready) {
+            job.startAttempt();
+        }
+    }
+
+    /**
+     * Called when a pairing attempt finished.
+     */
+    private void onAttemptComplete(Job job, PairingStateMachine session, PairingStatus status) {
+        boolean retry;
+        synchronized (this) {
+            activeSessions.remove(session);
+            inFlight--;
+            retry = !cancelled && job.attempts < maxAttempts;
+        }
+        job.attemptLatency = System.currentTimeMillis() - job.attemptStart;
+        if (status == PairingStatus.PAIRING_SUCCESS) {
+            job.certificate = session.getServerCertificate();
+            commit(job);
+        } else if (status == PairingStatus.FAILED_CONNECTION && retry) {
+            scheduleRetry(job);
+        } else {
+            finish(job, status);
+        }
+        pump();
+    }
+
+    private void scheduleRetry(final Job job) {
+        long delay = Math.min(MAX_RETRY_DELAY_MS, (long) RETRY_DELAY_MS << (job.attempts - 1));
+        delay += random.nextInt((int) delay / 2 + 1);
+        Log.i(LOG_TAG, "Retrying " + job.device.getName() + " in " + delay + "ms");
+        retryTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                synchronized (BulkPairingOrchestrator.this) {
+                    if (!cancelled) {
+                        queue.addFirst(job);
+                    }
+                }
+                if (cancelled()) {
+                    finish(job, PairingStatus.FAILED_CANCELLED);
+                } else {
+                    pump();
+                }
+            }
+        }, delay);
+    }
+
+    /**
+     * Queues the certificate of a paired device for the next group commit.
+     */
+    private void commit(Job job) {
+        synchronized (this) {
+            uncommitted.add(job);
+            if (committing) {
+                return;
+            }
+            committing = true;
+        }
+        executor.execute(new Runnable() {
+            public void run() {
+                while (true) {
+                    List<Job> batch;
+                    synchronized (BulkPairingOrchestrator.this) {
+                        if (uncommitted.isEmpty()) {
+                            committing = false;
+                            return;
+                        }
+                        batch = new ArrayList<Job>(uncommitted);
+                        uncommitted.clear();
+                    }
+                    // devices may share a name, which TvDevice equality compares
+                    Map<TvDevice, Certificate> certificates =
+                            new IdentityHashMap<TvDevice, Certificate>();
+                    for (Job job : batch) {
+                        if (job.certificate != null) {
+                            certificates.put(job.device, job.certificate);
+                        }
+                    }
+                    keyStore.storeCertificates(certificates);
+                    Log.d(LOG_TAG, "Committed " + certificates.size() + " certificate(s)");
+                    for (Job job : batch) {
+                        finish(job, PairingStatus.PAIRING_SUCCESS);
+                    }
+                }
+            }
+        });
+    }
+
+    private void finish(Job job, PairingStatus status) {
+        Result result = new Result(job.device, status, job.attempts, job.attemptLatency,
+                job.firstStart > 0 ? System.currentTimeMillis() - job.firstStart : 0);
+        Listener l;
+        boolean last;
+        synchronized (this) {
+            results.add(result);
+            remaining--;
+            last = remaining == 0;
+            l = listener;
+        }
+        Log.i(LOG_TAG, result.toString());
+        if (l != null) {
+            l.onDeviceComplete(result);
+        }
+        if (last) {
+            complete();
+        }
+    }
+
+    private void complete() {
+        Listener l;
+        Report r;
+        synchronized (this) {
+            report = new Report(new ArrayList<Result>(results), System.currentTimeMillis()
+                    - startTime);
+            r = report;
+            l = listener;
+        }
+        Log.i(LOG_TAG, r.toString());
+        retryTimer.cancel();
+        executor.shutdown();
+        doneLatch.countDown();
+        if (l != null) {
+            l.onComplete(r);
+        }
+    }
+
+    /**
+     * A device to pair.
+     */
+    private final class Job implements PairingStateMachine.Listener {
+        private final TvDevice device;
+        private int attempts;
+        private long firstStart;
+        private long attemptStart;
+        private long attemptLatency;
+        private Certificate certificate;
+
+        Job(TvDevice device) {
+            this.device = device;
+        }
+
+        void startAttempt() {
+            attempts++;
+            attemptStart = System.currentTimeMillis();
+            if (firstStart == 0) {
+                firstStart = attemptStart;
+            }
+            PairingStateMachine session = new PairingStateMachine(device, keyStore, platform,
+                    executor, this);
+            session.setStoreCertificate(false);
+            synchronized (BulkPairingOrchestrator.this) {
+                if (cancelled) {
+                    // taken from the queue before cancel() emptied it
+                    inFlight--;
+                    session = null;
+                } else {
+                    activeSessions.add(session);
+                }
+            }
+            if (session == null) {
+                finish(this, PairingStatus.FAILED_CANCELLED);
+                return;
+            }
+            session.start();
+        }
+
+        public void onSecretRequired(PairingStateMachine session) {
+            secretProvider.onSecretRequired(device, session);
+        }
+
+        public void onPairingComplete(PairingStateMachine session, PairingStatus status) {
+            onAttemptComplete(this, session, status);
+        }
+    }
+}
@@ -17,11 +17,14 @@ package com.entertailion.java.anymote.connection;
 
 import java.io.IOException;
 import java.net.ConnectException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.net.UnknownHostException;
-import java.security.GeneralSecurityException;
+import java.net.SocketTimeoutException;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLException;
@@ -30,17 +33,11 @@ import javax.net.ssl.SSLSocketFactory;
 
 import com.entertailion.java.anymote.client.AnymoteSender;
 import com.entertailion.java.anymote.client.PinListener;
+import com.entertailion.java.anymote.util.Constants;
+import com.entertailion.java.anymote.util.Histogram;
 import com.entertailion.java.anymote.util.Log;
 import com.entertailion.java.anymote.util.Platform;
-import com.google.polo.exception.PoloException;
-import com.google.polo.pairing.ClientPairingSession;
-import com.google.polo.pairing.PairingContext;
-import com.google.polo.pairing.PairingListener;
-import com.google.polo.pairing.PairingSession;
-import com.google.polo.pairing.message.EncodingOption;
-import com.google.polo.ssl.DummySSLSocketFactory;
-import com.google.polo.wire.PoloWireInterface;
-import com.google.polo.wire.WireFormat;
+import com.entertailion.java.anymote.util.Trace;
 
 /**
  * This task covers entire connection mechanism, including pairing, when
@@ -52,14 +49,28 @@ public class ConnectingTask extends Thread {
     private static final int MAX_CONNECTION_ATTEMPTS = 3;
     private static final String LOG_TAG = "ConnectingActivity";
 
-    private final Object secretSync;
+    /**
+     * Admission control for TLS handshakes across all connecting tasks, so a
+     * reconnect storm queues for the CPU instead of thrashing it.
+     */
+    private static final HandshakePermits handshakePermits = new HandshakePermits();
+
+    /**
+     * Durations in ns of the successful Anymote TLS handshakes of all tasks,
+     * not counting the wait for a handshake permit, for monitoring.
+     */
+    private static final Histogram handshakeTimes = new Histogram();
+    private static final AtomicLong resumedHandshakes = new AtomicLong();
+
     private final AnymoteSender anymoteProxy;
     private final KeyStoreManager keyStore;
 
     private TvDevice target;
-    private ConnectionListener listener;
-    private boolean isCancelled;
-    private String secret;
+    private volatile ConnectionListener listener;
+    private volatile boolean isCancelled;
+    private boolean pairingAllowed;
+    private volatile PairingStateMachine pairingSession;
+    private volatile Thread pairedConnectThread;
     private SSLSocket sslsock;
     private Platform platform;
 
@@ -158,23 +169,49 @@ public class ConnectingTask extends Thread {
         this.platform = context;
         target = device;
         isCancelled = false;
-        secretSync = new Object();
-        secret = null;
+        pairingAllowed = true;
         keyStore = keystoreManager;
         anymoteProxy = new AnymoteSender(this);
     }
 
     /**
-     * Initialize background connection; notify the listener about results.
+     * Initialize background connection; notify the listener about results. If
+     * the device needs pairing, the thread ends once pairing has started and
+     * the connection is completed by the pairing callbacks.
      */
     @Override
     public void run() {
     	if (listener != null) {
     		listener.attemptToConnect(target);
         }
-        boolean state = connect();
+    	// Try to connect
+    	ConnectionStatus connectionStatus = attemptToConnect();
+    	if (connectionStatus == ConnectionStatus.SUCCESS) {
+            Log.i(LOG_TAG, "Connected to " + target.toString());
+            onConnectResult(true);
+            return;
+        }
+    	// else try to pair
+        if (!pairingAllowed || isCancelled) {
+            Log.i(LOG_TAG, "Not connected to " + target.toString() + "; not pairing");
+            onConnectResult(false);
+            return;
+        }
+        startPairing();
+    }
+
+    /**
+     * Completes the Anymote connection over the established socket, and
+     * notifies the listener.
+     * 
+     * @param connected true, if the socket was connected.
+     */
+    private void onConnectResult(boolean connected) {
+        boolean state = connected;
         try {
-			state = anymoteProxy.attemptToConnect(sslsock);
+			if (state) {
+				state = anymoteProxy.attemptToConnect(sslsock);
+			}
 			if (isCancelled) {
 			    disconnect();
 			} else {
@@ -188,29 +225,68 @@ public class ConnectingTask extends Thread {
 			}
 		} catch (Exception e) {
 			Log.e(LOG_TAG, "run", e);
-			listener.onConnectionFailed();
+			if (!isCancelled && listener != null) {
+				listener.onConnectionFailed();
+			}
 		}
     }
 
     /**
-     * Loops to connect to the server until connection is established or max
-     * allowed attempts are made.
-     * 
-     * @return true, if connection succeeded.
+     * Starts pairing with the target device. The pairing session holds no
+     * thread while waiting for the user to enter the secret, and once paired
+     * the connection is made on a thread of its own, so that the pairing
+     * executor is never blocked by a slow device.
      */
-    protected boolean connect() {
-    	// Try to connect
-    	ConnectionStatus connectionStatus = attemptToConnect();
-    	if (connectionStatus == ConnectionStatus.SUCCESS) {
-            Log.i(LOG_TAG, "Connected to " + target.toString());
-            return true;
+    private void startPairing() {
+        PairingStateMachine session = new PairingStateMachine(target, keyStore, platform,
+                new PairingStateMachine.Listener() {
+                    public void onSecretRequired(PairingStateMachine session) {
+                        if (listener != null) {
+                            listener.onSecretRequired(session);
+                        } else {
+                            session.onCancel();
+                        }
+                    }
+
+                    public void onPairingComplete(PairingStateMachine session,
+                            PairingStatus status) {
+                        pairingSession = null;
+                        if (isCancelled) {
+                            // ended by cancel(), which is not a failure
+                            return;
+                        }
+                        if (status != PairingStatus.PAIRING_SUCCESS) {
+                            Log.i(LOG_TAG, "Pairing failed: " + status);
+                            onConnectResult(false);
+                            return;
+                        }
+                        Thread thread = new Thread(new Runnable() {
+                            public void run() {
+                                onConnectResult(connectAfterPairing());
+                            }
+                        }, "ConnectingTask");
+                        pairedConnectThread = thread;
+                        thread.start();
+                    }
+                });
+        pairingSession = session;
+        if (listener != null) {
+            listener.onConnectionPairing();
         }
-    	// else try to pair
-        PairingStatus pairingStatus = attemptToPair(new PairingListenerImpl());
-        if (pairingStatus != PairingStatus.PAIRING_SUCCESS) {
-            Log.i(LOG_TAG, "Pairing failed");
-            return false;
+        if (isCancelled) {
+            session.cancel();
+            return;
         }
+        session.start();
+    }
+
+    /**
+     * Loops to connect to the server after pairing until connection is
+     * established or max allowed attempts are made.
+     * 
+     * @return true, if connection succeeded.
+     */
+    protected boolean connectAfterPairing() {
         for (int connectionAttempt = 0; connectionAttempt < MAX_CONNECTION_ATTEMPTS;) {
             /*
              * wait on every next iteration; placed here so we don't wait after
@@ -237,75 +313,25 @@ public class ConnectingTask extends Thread {
         return false;
     }
 
-    /**
-     * Attempts to establish pairing with the server.
-     * 
-     * @param listener Listener for device pairing state.
-     * @return PairingStatus device pairing result.
-     */
-    public PairingStatus attemptToPair(final PairingListenerImpl listener) {
-        PairingStatus result = PairingStatus.FAILED_CONNECTION;
-        SSLSocketFactory socketFactory;
-        SSLSocket socket;
-        PairingContext context;
-
-        try {
-            try {
-                socketFactory = DummySSLSocketFactory.fromKeyManagers(keyStore.getKeyManagers());
-            } catch (GeneralSecurityException e) {
-                throw new IllegalStateException("Cannot build socket factory", e);
-            }
-
-            Socket s =
-                    new java.net.Socket(target.getAddress().getHostAddress(), target.getPort() + 1);
-            socket = (SSLSocket) socketFactory.createSocket(
-                    s, target.getAddress().getHostAddress(), target.getPort() + 1, true);
-            
-            context = PairingContext.fromSslSocket(socket, false);
-
-            PoloWireInterface protocol = WireFormat.PROTOCOL_BUFFERS.getWireInterface(context);
-            ClientPairingSession pairingSession =
-                    new ClientPairingSession(protocol, context, "AnyMote", platform.getString(Platform.NAME));
-
-            EncodingOption hexEnc =
-                    new EncodingOption(EncodingOption.EncodingType.ENCODING_HEXADECIMAL, 4);
-            pairingSession.addInputEncoding(hexEnc);
-            pairingSession.addOutputEncoding(hexEnc);
-
-            boolean ret = pairingSession.doPair(listener);
-            if (ret) {
-                keyStore.storeCertificate(context.getServerCertificate());
-                result = PairingStatus.PAIRING_SUCCESS;
-            } else {
-                if (listener.isFailedSecret()) {
-                    result = PairingStatus.FAILED_SECRET;
-                } else {
-                    result = PairingStatus.FAILED_CANCELLED;
-                }
-            }
-        } catch (UnknownHostException e) {
-            Log.e(LOG_TAG, "Unknown host. Failed to connect", e);
-            result = PairingStatus.FAILED_CONNECTION;
-        } catch (PoloException e) {
-            Log.e(LOG_TAG, "Polo exception", e);
-            result = PairingStatus.FAILED_CONNECTION;
-        } catch (IOException e) {
-            Log.e(LOG_TAG, "Failed to connect", e);
-            result = PairingStatus.FAILED_CONNECTION;
-        }
-        return result;
-    }
-
     /**
      * Cancel current connection.
      */
     public void cancel() {
+        // set first, so that the callbacks of the ending attempt report nothing
+        isCancelled = true;
+        PairingStateMachine session = pairingSession;
+        if (session != null) {
+            session.cancel();
+        }
         disconnect();
-        // Interrupt thread in case it's pending on pairing code.
+        // Interrupt threads in case they are waiting to connect.
         synchronized (this) {
             this.interrupt();
         }
-        isCancelled = true;
+        Thread thread = pairedConnectThread;
+        if (thread != null) {
+            thread.interrupt();
+        }
     }
 
     /**
@@ -317,6 +343,17 @@ public class ConnectingTask extends Thread {
         this.listener = listener;
     }
 
+    /**
+     * Controls whether the task may start a pairing session when the device
+     * does not accept our certificate. Background connections turn this off
+     * so that they never prompt the user for a PIN.
+     * 
+     * @param pairingAllowed {@code false} to fail instead of pairing.
+     */
+    public void setPairingAllowed(boolean pairingAllowed) {
+        this.pairingAllowed = pairingAllowed;
+    }
+
     /**
      * Set secret (PIN, passphrase) which is required for pairing devices. This
      * method is called when the user enters secret code in the
@@ -325,10 +362,9 @@ public class ConnectingTask extends Thread {
      * @param secret the secret passphrase provided by user.
      */
     public void setSecret(String secret) {
-        this.secret = secret;
-
-        synchronized (secretSync) {
-            secretSync.notify();
+        PairingStateMachine session = pairingSession;
+        if (session != null) {
+            session.onSecretEntered(secret);
         }
     }
 
@@ -354,18 +390,39 @@ public class ConnectingTask extends Thread {
         ConnectionStatus status = ConnectionStatus.ERROR;
 
         try {
-            SSLContext sslContext = SSLContext.getInstance("TLS");
-            sslContext.init(keyStore.getKeyManagers(), keyStore.getTrustManagers(), null);
+            // shared context, so the session cache can resume earlier sessions
+            SSLContext sslContext = keyStore.getSslContext();
             SSLSocketFactory factory = sslContext.getSocketFactory();
+            Socket socket = openSocket(target, target.getPort());
             sslsock = (SSLSocket) factory.createSocket(
-                    target.getAddress().getHostAddress(), target.getPort());
+                    socket, target.getAddress().getHostAddress(), target.getPort(), true);
             sslsock.setUseClientMode(true);
             sslsock.setKeepAlive(true);
             sslsock.setTcpNoDelay(true);
-            sslsock.startHandshake();
+            long handshakeStart = System.currentTimeMillis();
+            long handshakeNanos = System.nanoTime();
+            long traceStart = Trace.start();
+            long permitWait = handshake(sslsock);
+            // the Anymote reader blocks until the TV sends something
+            sslsock.setSoTimeout(0);
+            handshakeNanos = System.nanoTime() - handshakeNanos;
+            long handshakeTime = System.currentTimeMillis() - handshakeStart;
+            boolean resumed = sslsock.getSession().getCreationTime() < handshakeStart;
+            handshakeTimes.record(handshakeNanos - permitWait);
+            if (traceStart != 0) {
+                Trace.end(Trace.Event.HANDSHAKE, traceStart, target.getName());
+            }
+            if (resumed) {
+                resumedHandshakes.incrementAndGet();
+            }
+            Log.d(LOG_TAG, "SSL handshake with " + target.getName() + " took " + handshakeTime
+                    + "ms" + (resumed ? " (resumed session)" : ""));
 
             if (sslsock.isConnected()) {
                 status = ConnectionStatus.SUCCESS;
+                // remembered, so that warm standby knows the device is paired
+                keyStore.rememberCertificate(target,
+                        sslsock.getSession().getPeerCertificates()[0]);
             }
         } catch (NoSuchAlgorithmException e) {
             status = ConnectionStatus.ERROR;
@@ -377,6 +434,9 @@ public class ConnectingTask extends Thread {
         } catch (ConnectException e) {
             Log.e(LOG_TAG, "(IOE) Could not create socket to " + target.getName(), e);
             status = ConnectionStatus.ERROR;
+        } catch (SocketTimeoutException e) {
+            Log.e(LOG_TAG, "(IOE) Timed out connecting to " + target.getName(), e);
+            status = ConnectionStatus.ERROR;
         } catch (IOException e) {
             if (e.getMessage().startsWith("SSL handshake")) {
                 Log.e(LOG_TAG, "(IOE) SSL handshake failed while connecting to " + target.getName(), e);
@@ -400,6 +460,131 @@ public class ConnectingTask extends Thread {
         return status;
     }
 
+    /**
+     * Opens a TCP connection to a device, giving up after
+     * {@link Constants.integer#connect_timeout}.
+     * 
+     * @param target the device to connect to.
+     * @param port port on the target device.
+     * @return connected socket.
+     * @throws IOException
+     */
+    static Socket openSocket(TvDevice target, int port) throws IOException {
+        Socket socket = new Socket();
+        long start = Trace.start();
+        try {
+            socket.connect(new InetSocketAddress(target.getAddress(), port),
+                    Constants.integer.connect_timeout);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        if (start != 0) {
+            Trace.end(Trace.Event.CONNECT, start, target.getName());
+        }
+        return socket;
+    }
+
+    /**
+     * Fair semaphore whose number of permits follows
+     * {@link Constants.integer#max_concurrent_handshakes}, so the limit may be
+     * changed at any time. When the limit drops, permits in use are taken
+     * back as they are released.
+     */
+    private static class HandshakePermits extends Semaphore {
+        private static final long serialVersionUID = 1L;
+
+        private volatile int size;
+
+        HandshakePermits() {
+            super(0, true);
+        }
+
+        /**
+         * Matches the number of permits to the configured limit.
+         */
+        void resize() {
+            int limit = Math.max(1, Constants.integer.max_concurrent_handshakes);
+            if (limit == size) {
+                return;
+            }
+            synchronized (this) {
+                if (limit > size) {
+                    release(limit - size);
+                } else if (limit < size) {
+                    reducePermits(size - limit);
+                }
+                size = limit;
+            }
+        }
+    }
+
+    /**
+     * Runs the TLS handshake once a handshake permit is available, within
+     * {@link Constants.integer#handshake_timeout}. Time spent waiting for a
+     * permit is taken out of the timeout, and what is left is the read
+     * timeout of the handshake. The read timeout is left set on return.
+     * 
+     * @param socket socket to handshake on.
+     * @return ns spent waiting for the permit.
+     * @throws IOException if the handshake fails or no permit is granted in
+     *             time.
+     */
+    static long handshake(SSLSocket socket) throws IOException {
+        handshakePermits.resize();
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(Constants.integer.handshake_timeout);
+        boolean acquired;
+        try {
+            acquired = handshakePermits.tryAcquire(Constants.integer.handshake_timeout,
+                    TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SocketTimeoutException("Interrupted waiting for handshake permit");
+        }
+        if (!acquired) {
+            throw new SocketTimeoutException("Timed out waiting for handshake permit");
+        }
+        try {
+            long acquiredAt = System.nanoTime();
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - acquiredAt);
+            if (remaining <= 0) {
+                throw new SocketTimeoutException("Timed out waiting for handshake permit");
+            }
+            socket.setSoTimeout((int) remaining);
+            socket.startHandshake();
+            return acquiredAt - start;
+        } finally {
+            handshakePermits.release();
+        }
+    }
+
+    /**
+     * @return durations in ns of the successful TLS handshakes of Anymote
+     *         connections so far, not counting the wait for a handshake
+     *         permit.
+     */
+    public static Histogram.Snapshot getHandshakeTimes() {
+        return handshakeTimes.snapshot();
+    }
+
+    /**
+     * Adds the durations of successful handshakes to a histogram, without
+     * allocating.
+     *
+     * @param histogram histogram to add to.
+     */
+    public static void addHandshakeTimesTo(Histogram histogram) {
+        handshakeTimes.addTo(histogram);
+    }
+
+    /**
+     * @return number of handshakes which resumed an earlier TLS session.
+     */
+    public static long getResumedHandshakeCount() {
+        return resumedHandshakes.get();
+    }
+
     /**
      * Disconnect from the Anymote server.
      */
@@ -423,88 +608,6 @@ public class ConnectingTask extends Thread {
         }).start();
     }
 
-    /**
-     * Listens for events sent during the pairing session. pairing listener
-     */
-    private class PairingListenerImpl
-            implements PairingListener, PinListener {
-        boolean failedSecret;
-        private String secret;
-        private static final int SECRET_WAIT_TIMEOUT_MS = 60 * 1000;
-        private final Object secretSync;
-
-        public PairingListenerImpl() {
-            secretSync = new Object();
-            failedSecret = false;
-        }
-
-        public boolean isFailedSecret() {
-            return failedSecret;
-        }
-
-        public void onSessionEnded(PairingSession session) {
-            Log.d(LOG_TAG, "onSessionEnded: " + session);
-        }
-
-        public void onSessionCreated(PairingSession session) {
-            Log.d(LOG_TAG, "onSessionCreated: " + session);
-        }
-
-        public void onPerformOutputDeviceRole(PairingSession session, byte[] gamma) {
-            Log.d(LOG_TAG, "onPerformOutputDeviceRole: " + session + ", "
-                    + session.getEncoder().encodeToString(gamma));
-        }
-
-        public void onPerformInputDeviceRole(PairingSession session) {
-            // this listener is implemented by the main Activity which
-            // shows Pairing PIN dialog to the user to enter secret code.
-            listener.onSecretRequired(this);
-            // wait for user to enter secret code.
-            synchronized (secretSync) {
-                try {
-                    secretSync.wait(SECRET_WAIT_TIMEOUT_MS);
-                } catch (InterruptedException e) {
-                    // secret is already null.
-                }
-            }
-            // check if the secret was entered correctly.
-            Log.d(LOG_TAG, "Got: " + secret);
-            if (secret != null && secret.length() > 0) {
-                try {
-                    byte[] secretBytes = session.getEncoder().decodeToBytes(secret);
-                    session.setSecret(secretBytes);
-                    failedSecret = !session.hasSucceeded();
-                } catch (IllegalArgumentException exception) {
-                    Log.d(LOG_TAG, "Exception while decoding secret: ", exception);
-                    session.teardown();
-                } catch (IllegalStateException exception) {
-                    // ISE may be thrown when session is currently terminating
-                    Log.d(LOG_TAG, "Exception while setting secret: ", exception);
-                    session.teardown();
-                }
-            } else {
-                session.teardown();
-            }
-        }
-
-        public void onLogMessage(LogLevel level, String message) {
-            Log.d(LOG_TAG, "Log: " + message + " (" + level + ")");
-        }
-
-        @Override
-        public void onCancel() {
-        }
-
-        @Override
-        public void onSecretEntered(String secret) {
-            this.secret = secret;
-
-            synchronized (secretSync) {
-                secretSync.notify();
-            }
-        }
-    }
-
     /**
      * Returns the version number as defined in Android manifest.
      * {@code versionCode}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2012 ENTERTAILION, LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.entertailion.java.anymote.connection;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.entertailion.java.anymote.util.Constants;
+import com.entertailion.java.anymote.util.Log;
+import com.entertailion.java.anymote.util.Platform;
+
+/**
+ * Stores discovered devices across restarts, so they can be offered before
+ * the first scan completes.
+ * <p>
+ * The file holds a magic number, a format version and a device count,
+ * followed by each device's name, 4-byte address, port and the time it was
+ * last seen. Devices lost from the registry stay cached, so a TV that is
+ * switched off is still offered after a restart; only devices not seen for
+ * {@link Constants.integer#device_cache_max_age} ms are dropped.
+ */
+public class DeviceCache {
+    private static final String LOG_TAG = "DeviceCache";
+
+    /**
+     * Name of the cache file.
+     */
+    private static final String CACHE_FILENAME = "anymote.devices";
+
+    /**
+     * "ATVD"
+     */
+    private static final int MAGIC = 0x41545644;
+
+    private static final int VERSION = 1;
+
+    private final Platform context;
+
+    /**
+     * Cached devices keyed by address and port, as in the registry.
+     */
+    private final Map<String, Record> records;
+
+    /**
+     * Constructor
+     *
+     * @param context platform providing the file storage.
+     */
+    public DeviceCache(Platform context) {
+        this.context = context;
+        records = new LinkedHashMap<String, Record>();
+    }
+
+    /**
+     * Reads the cached devices.
+     *
+     * @return cached devices, empty if there is no usable cache.
+     */
+    public synchronized List<TvDevice> load() {
+        records.clear();
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(context.openFileInput(CACHE_FILENAME)));
+            if (in.readInt() != MAGIC || in.readUnsignedByte() != VERSION) {
+                Log.w(LOG_TAG, "Ignoring unknown device cache format");
+                return new ArrayList<TvDevice>();
+            }
+            long expiry = System.currentTimeMillis() - Constants.integer.device_cache_max_age;
+            int count = in.readUnsignedShort();
+            byte[] address = new byte[4];
+            for (int i = 0; i < count; i++) {
+                String name = in.readUTF();
+                in.readFully(address);
+                int port = in.readUnsignedShort();
+                long lastSeen = in.readLong();
+                if (lastSeen >= expiry) {
+                    TvDevice device = new TvDevice(name,
+                            (Inet4Address) InetAddress.getByAddress(address), port);
+                    records.put(keyOf(device), new Record(device, lastSeen));
+                }
+            }
+            Log.i(LOG_TAG, "Loaded " + records.size() + " cached devices");
+        } catch (FileNotFoundException e) {
+            Log.v(LOG_TAG, "No device cache");
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Unable to read device cache", e);
+            records.clear();
+        } finally {
+            close(in);
+        }
+        List<TvDevice> devices = new ArrayList<TvDevice>(records.size());
+        for (Record record : records.values()) {
+            devices.add(record.device);
+        }
+        return devices;
+    }
+
+    /**
+     * Adds the devices of the registry to the cache and writes it.
+     *
+     * @param registry registry holding the devices to cache.
+     */
+    public synchronized void save(DeviceRegistry registry) {
+        for (TvDevice device : registry.getDevices()) {
+            long lastSeen = registry.getLastSeen(device);
+            if (lastSeen > 0) {
+                String key = keyOf(device);
+                records.remove(key);
+                records.put(key, new Record(device, lastSeen));
+            }
+        }
+        long expiry = System.currentTimeMillis() - Constants.integer.device_cache_max_age;
+        Iterator<Record> it = records.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().lastSeen < expiry) {
+                it.remove();
+            }
+        }
+        int count = Math.min(records.size(), 0xffff);
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(context.openFileOutput(
+                    CACHE_FILENAME, Platform.MODE_PRIVATE)));
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeShort(count);
+            Iterator<Record> records = this.records.values().iterator();
+            for (int i = 0; i < count; i++) {
+                Record record = records.next();
+                out.writeUTF(record.device.getName());
+                out.write(record.device.getAddress().getAddress());
+                out.writeShort(record.device.getPort());
+                out.writeLong(record.lastSeen);
+            }
+            out.flush();
+            Log.v(LOG_TAG, "Saved " + count + " devices");
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Unable to write device cache", e);
+        } finally {
+            close(out);
+        }
+    }
+
+    private static String keyOf(TvDevice device) {
+        return device.getAddress().getHostAddress() + ":" + device.getPort();
+    }
+
+    /**
+     * A cached device.
+     */
+    private static final class Record {
+        final TvDevice device;
+        final long lastSeen;
+
+        Record(TvDevice device, long lastSeen) {
+            this.device = device;
+            this.lastSeen = lastSeen;
+        }
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+}
@@ -0,0 +1,367 @@
+/*
+ * Copyright (C) 2012 ENTERTAILION, LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.entertailion.java.anymote.connection;
+
+import java.net.Inet4Address;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.entertailion.java.anymote.util.Log;
+
+/**
+ * Registry of discovered Google TV devices.
+ * <p>
+ * Devices are indexed by identity (address and port), by name and by
+ * address. Every probe response refreshes the time a device was last seen;
+ * responses from known devices only touch that time and take no lock.
+ * Devices not seen within the time-to-live are evicted by a periodic sweep.
+ * Any number of devices may share a name, as TVs left with their default
+ * name do. A device that answers under a new name from a known address and
+ * port replaces the old entry.
+ */
+public class DeviceRegistry {
+    private static final String LOG_TAG = "DeviceRegistry";
+
+    /**
+     * Listener for registry changes.
+     */
+    public interface Listener {
+        /**
+         * Called when a device is seen for the first time.
+         *
+         * @param device the new device.
+         */
+        void onDeviceAdded(TvDevice device);
+
+        /**
+         * Called when a known device is seen under a new name.
+         *
+         * @param device the device with its new name.
+         */
+        void onDeviceUpdated(TvDevice device);
+
+        /**
+         * Called when a device was not seen within the time-to-live.
+         *
+         * @param device the evicted device.
+         */
+        void onDeviceLost(TvDevice device);
+    }
+
+    private final long ttl;
+    private final ConcurrentHashMap<Key, Entry> byIdentity;
+    private final ConcurrentHashMap<String, List<Entry>> byName;
+    private final ConcurrentHashMap<Inet4Address, List<Entry>> byAddress;
+    private final List<Listener> listeners;
+    private final Timer sweepTimer;
+
+    /**
+     * Constructor
+     *
+     * @param ttl ms a device is kept without being seen again.
+     */
+    public DeviceRegistry(long ttl) {
+        this.ttl = ttl;
+        byIdentity = new ConcurrentHashMap<Key, Entry>();
+        byName = new ConcurrentHashMap<String, List<Entry>>();
+        byAddress = new ConcurrentHashMap<Inet4Address, List<Entry>>();
+        listeners = new CopyOnWriteArrayList<Listener>();
+        sweepTimer = new Timer(LOG_TAG, true);
+        long interval = Math.max(1000, ttl / 4);
+        sweepTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                evictExpired();
+            }
+        }, interval, interval);
+    }
+
+    /**
+     * Adds a listener for registry changes.
+     *
+     * @param listener registry listener.
+     */
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Removes a listener for registry changes.
+     *
+     * @param listener registry listener.
+     */
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Records that a device answered.
+     *
+     * @param device the device that answered.
+     * @return the registered device, which is the given one unless it was
+     *         already known.
+     */
+    public TvDevice onDeviceSeen(TvDevice device) {
+        long now = System.currentTimeMillis();
+        Entry entry = byIdentity.get(new Key(device));
+        if (entry != null && entry.device.getName().equals(device.getName())) {
+            entry.lastSeen = now;
+            return entry.device;
+        }
+        return register(device, now);
+    }
+
+    /**
+     * Records that a device answered, given its name as encoded in a
+     * response. Does not allocate.
+     *
+     * @param name buffer holding the UTF-8 encoded name.
+     * @param offset offset of the name in the buffer.
+     * @param length length of the name in bytes.
+     * @param address address the device answered from.
+     * @param port advertised port.
+     * @return the registered device, or {@code null} if no device with that
+     *         name, address and port is registered.
+     */
+    TvDevice touch(byte[] name, int offset, int length, Inet4Address address, int port) {
+        List<Entry> entries = byAddress.get(address);
+        if (entries == null) {
+            return null;
+        }
+        for (int i = 0; i < entries.size(); i++) {
+            Entry entry = entries.get(i);
+            if (entry.key.port == port
+                    && DiscoveryResponseParser.matches(name, offset, length, entry.nameBytes)) {
+                entry.lastSeen = System.currentTimeMillis();
+                return entry.device;
+            }
+        }
+        return null;
+    }
+
+    private TvDevice register(TvDevice device, long now) {
+        TvDevice replaced;
+        synchronized (this) {
+            Entry old = byIdentity.get(new Key(device));
+            if (old != null && old.device.getName().equals(device.getName())) {
+                old.lastSeen = now;
+                return old.device;
+            }
+            if (old != null) {
+                unindex(old);
+            }
+            Entry entry = new Entry(device, now);
+            byIdentity.put(entry.key, entry);
+            byName.put(device.getName(), added(byName.get(device.getName()), entry));
+            byAddress.put(entry.key.address, added(byAddress.get(entry.key.address), entry));
+            replaced = old != null ? old.device : null;
+        }
+        for (Listener listener : listeners) {
+            if (replaced == null) {
+                listener.onDeviceAdded(device);
+            } else {
+                listener.onDeviceUpdated(device);
+            }
+        }
+        return device;
+    }
+
+    /**
+     * Returns the devices with the given name.
+     *
+     * @param name device name.
+     * @return list of devices, empty if there are none.
+     */
+    public List<TvDevice> getDevices(String name) {
+        return devicesOf(byName.get(name));
+    }
+
+    /**
+     * Returns the devices at an address.
+     *
+     * @param address device address.
+     * @return list of devices, empty if there are none.
+     */
+    public List<TvDevice> getDevices(Inet4Address address) {
+        return devicesOf(byAddress.get(address));
+    }
+
+    private static List<TvDevice> devicesOf(List<Entry> entries) {
+        if (entries == null) {
+            return Collections.emptyList();
+        }
+        List<TvDevice> devices = new ArrayList<TvDevice>(entries.size());
+        for (Entry entry : entries) {
+            devices.add(entry.device);
+        }
+        return devices;
+    }
+
+    /**
+     * Returns all registered devices, sorted by name.
+     *
+     * @return list of devices.
+     */
+    public List<TvDevice> getDevices() {
+        List<TvDevice> devices = new ArrayList<TvDevice>(byIdentity.size());
+        for (Entry entry : byIdentity.values()) {
+            devices.add(entry.device);
+        }
+        Collections.sort(devices);
+        return devices;
+    }
+
+    /**
+     * Returns the time a device was last seen.
+     *
+     * @param device the device.
+     * @return time in ms, or 0 if the device is not registered.
+     */
+    public long getLastSeen(TvDevice device) {
+        Entry entry = byIdentity.get(new Key(device));
+        return entry != null ? entry.lastSeen : 0;
+    }
+
+    /**
+     * Returns the number of registered devices.
+     *
+     * @return device count.
+     */
+    public int size() {
+        return byIdentity.size();
+    }
+
+    /**
+     * Removes a device without reporting it lost.
+     *
+     * @param device the device.
+     */
+    public synchronized void remove(TvDevice device) {
+        Entry entry = byIdentity.get(new Key(device));
+        if (entry != null) {
+            unindex(entry);
+        }
+    }
+
+    /**
+     * Evicts the devices not seen within the time-to-live.
+     */
+    public void evictExpired() {
+        long expiry = System.currentTimeMillis() - ttl;
+        List<TvDevice> lost = new ArrayList<TvDevice>();
+        synchronized (this) {
+            for (Entry entry : byIdentity.values()) {
+                if (entry.lastSeen < expiry) {
+                    unindex(entry);
+                    lost.add(entry.device);
+                }
+            }
+        }
+        for (TvDevice device : lost) {
+            Log.i(LOG_TAG, "Lost device: " + device.getName());
+            for (Listener listener : listeners) {
+                listener.onDeviceLost(device);
+            }
+        }
+    }
+
+    /**
+     * Stops the eviction sweeps.
+     */
+    public void shutdown() {
+        sweepTimer.cancel();
+    }
+
+    private void unindex(Entry entry) {
+        byIdentity.remove(entry.key, entry);
+        unindex(byName, entry.device.getName(), entry);
+        unindex(byAddress, entry.key.address, entry);
+    }
+
+    /**
+     * Removes an entry from the list of an index. Lists are copied on write,
+     * so readers never lock.
+     */
+    private static <K> void unindex(ConcurrentHashMap<K, List<Entry>> index, K key, Entry entry) {
+        List<Entry> entries = index.get(key);
+        if (entries != null) {
+            List<Entry> remaining = new ArrayList<Entry>(entries);
+            remaining.remove(entry);
+            if (remaining.isEmpty()) {
+                index.remove(key);
+            } else {
+                index.put(key, Collections.unmodifiableList(remaining));
+            }
+        }
+    }
+
+    /**
+     * Returns a copy of an index list with an entry added.
+     */
+    private static List<Entry> added(List<Entry> entries, Entry entry) {
+        List<Entry> updated = entries != null ? new ArrayList<Entry>(entries)
+                : new ArrayList<Entry>(1);
+        updated.add(entry);
+        return Collections.unmodifiableList(updated);
+    }
+
+    /**
+     * A registered device.
+     */
+    private static final class Entry {
+        final TvDevice device;
+        final Key key;
+        final byte[] nameBytes;
+        volatile long lastSeen;
+
+        Entry(TvDevice device, long lastSeen) {
+            this.device = device;
+            this.key = new Key(device);
+            nameBytes = device.getName().getBytes(DiscoveryResponseParser.UTF8);
+            this.lastSeen = lastSeen;
+        }
+    }
+
+    /**
+     * Identity of a device: address and port.
+     */
+    private static final class Key {
+        final Inet4Address address;
+        final int port;
+
+        Key(TvDevice device) {
+            address = device.getAddress();
+            port = device.getPort();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key another = (Key) o;
+            return port == another.port && address.equals(another.address);
+        }
+
+        @Override
+        public int hashCode() {
+            return address.hashCode() * 31 + port;
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2012 ENTERTAILION, LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.entertailion.java.anymote.connection;
+
+import java.nio.charset.Charset;
+
+import com.entertailion.java.anymote.util.Log;
+
+/**
+ * Parses discovery responses of the form
+ * {@code "<service type> <service name> <port>"} in place, without
+ * allocating.
+ * <p>
+ * The service type is compared byte by byte against the receive buffer and
+ * the port is parsed from its digits; the name is only turned into a string
+ * on request. A parser keeps the position of the last parsed name, so each
+ * receiving thread needs its own.
+ */
+public final class DiscoveryResponseParser {
+    private static final String LOG_TAG = "DiscoveryResponseParser";
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final byte[] serviceType;
+    private byte[] data;
+    private int nameOffset;
+    private int nameLength;
+    private int port;
+
+    /**
+     * Constructor
+     *
+     * @param serviceType the service type to accept.
+     */
+    public DiscoveryResponseParser(String serviceType) {
+        this.serviceType = serviceType.getBytes(UTF8);
+    }
+
+    /**
+     * Parses a response.
+     *
+     * @param data buffer holding the response.
+     * @param offset offset of the response in the buffer.
+     * @param length length of the response.
+     * @return {@code true} if the response is well formed and for the
+     *         expected service type.
+     */
+    public boolean parse(byte[] data, int offset, int length) {
+        int end = offset + length;
+
+        // service type
+        int i = skipWhitespace(data, offset, end);
+        int start = i;
+        i = skipToken(data, i, end);
+        if (i == start) {
+            Log.w(LOG_TAG, "Malformed response: empty");
+            return false;
+        }
+        if (!matches(data, start, i - start, serviceType)) {
+            return false;
+        }
+
+        // service name
+        i = skipWhitespace(data, i, end);
+        start = i;
+        i = skipToken(data, i, end);
+        if (i == start) {
+            Log.w(LOG_TAG, "Malformed response: missing service name");
+            return false;
+        }
+        int nameStart = start;
+        int nameEnd = i;
+
+        // port
+        i = skipWhitespace(data, i, end);
+        start = i;
+        int value = 0;
+        while (i < end && !isWhitespace(data[i])) {
+            int digit = data[i] - '0';
+            if (digit < 0 || digit > 9 || i - start >= 5) {
+                Log.w(LOG_TAG, "Malformed response: bad port");
+                return false;
+            }
+            value = value * 10 + digit;
+            i++;
+        }
+        if (i == start || value > 0xffff) {
+            Log.w(LOG_TAG, "Malformed response: bad port");
+            return false;
+        }
+        if (skipWhitespace(data, i, end) != end) {
+            Log.w(LOG_TAG, "Malformed response: trailing data");
+            return false;
+        }
+
+        this.data = data;
+        nameOffset = nameStart;
+        nameLength = nameEnd - nameStart;
+        port = value;
+        return true;
+    }
+
+    /**
+     * @return buffer holding the last parsed response.
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    /**
+     * @return offset of the service name in the buffer.
+     */
+    public int getNameOffset() {
+        return nameOffset;
+    }
+
+    /**
+     * @return length of the service name in bytes.
+     */
+    public int getNameLength() {
+        return nameLength;
+    }
+
+    /**
+     * @return the advertised port.
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Decodes the service name. Allocates; call only for devices that are not
+     * known yet.
+     *
+     * @return the service name.
+     */
+    public String getName() {
+        return new String(data, nameOffset, nameLength, UTF8);
+    }
+
+    static boolean matches(byte[] data, int offset, int length, byte[] expected) {
+        if (length != expected.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (data[offset + i] != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int skipWhitespace(byte[] data, int i, int end) {
+        while (i < end && isWhitespace(data[i])) {
+            i++;
+        }
+        return i;
+    }
+
+    private static int skipToken(byte[] data, int i, int end) {
+        while (i < end && !isWhitespace(data[i])) {
+            i++;
+        }
+        return i;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r' || b == '\f' || b == 0x0b;
+    }
+}
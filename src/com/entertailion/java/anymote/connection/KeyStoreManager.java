@@ -21,19 +21,26 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.security.GeneralSecurityException;
+import java.security.KeyManagementException;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
 import java.security.cert.Certificate;
 import java.security.cert.X509Certificate;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.Map;
 
 import javax.net.ssl.KeyManager;
 import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.TrustManagerFactory;
 
+import com.entertailion.java.anymote.util.Constants;
 import com.entertailion.java.anymote.util.Log;
 import com.entertailion.java.anymote.util.Platform;
 import com.google.polo.ssl.SslUtil;
@@ -59,10 +66,17 @@ public final class KeyStoreManager {
      */
     private static final String REMOTE_IDENTITY_ALIAS_PATTERN = "anymote-server-%X";
 
+    /**
+     * Alias pattern for the certificate of a paired device, by the address and
+     * port it was paired or connected at.
+     */
+    private static final String DEVICE_IDENTITY_ALIAS_PATTERN = "anymote-device-%s-%d";
+
     private Platform mContext;
     private KeyManager[] mKeyManagers;
     private TrustManager[] mTrustManagers;
     private KeyStore mKeyStore;
+    private SSLContext mSslContext;
 
     /**
      * Loads key store from storage, or creates new one if storage is missing
@@ -212,6 +226,7 @@ public final class KeyStoreManager {
                 .getDefaultAlgorithm());
         factory.init(mKeyStore, KEYSTORE_PASSWORD);
         mKeyManagers = factory.getKeyManagers();
+        mSslContext = null;
     }
 
     /**
@@ -230,22 +245,65 @@ public final class KeyStoreManager {
                 .getDefaultAlgorithm());
         tmf.init(mKeyStore);
         mTrustManagers = tmf.getTrustManagers();
+        mSslContext = null;
+    }
+
+    /**
+     * Returns the SSL context shared by all connections to Anymote servers.
+     * <p>
+     * JSSE keeps negotiated sessions in the client session cache of the
+     * context, keyed by peer host and port, so a reconnect to the same TV can
+     * resume its session instead of doing a full RSA handshake. The context is
+     * rebuilt, and its cache dropped, whenever the key or trust managers
+     * change.
+     * 
+     * @return shared SSL context.
+     * @throws NoSuchAlgorithmException
+     * @throws KeyManagementException
+     */
+    public synchronized SSLContext getSslContext() throws NoSuchAlgorithmException,
+            KeyManagementException {
+        if (mSslContext == null) {
+            SSLContext sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(mKeyManagers, mTrustManagers, null);
+            SSLSessionContext sessionContext = sslContext.getClientSessionContext();
+            if (sessionContext != null) {
+                sessionContext.setSessionCacheSize(Constants.integer.ssl_session_cache_size);
+                sessionContext.setSessionTimeout(Constants.integer.ssl_session_timeout);
+            }
+            mSslContext = sslContext;
+        }
+        return mSslContext;
     }
 
     /**
      * Stores the remote device certificate in keystore.
+     * @param device the paired device.
      * @param peerCert
      */
-    synchronized void storeCertificate(final Certificate peerCert) {
+    synchronized void storeCertificate(final TvDevice device, final Certificate peerCert) {
+        storeCertificates(Collections.singletonMap(device, peerCert));
+    }
+
+    /**
+     * Stores remote device certificates in keystore, writing the keystore
+     * and rebuilding the key and trust managers once for the whole batch.
+     * @param peerCerts certificates by paired device.
+     */
+    synchronized void storeCertificates(final Map<TvDevice, Certificate> peerCerts) {
         try {
-            String alias = String.format(KeyStoreManager.REMOTE_IDENTITY_ALIAS_PATTERN,
-                    peerCert.hashCode());
-            if (mKeyStore.containsAlias(alias)) {
-                Log.w(LOG_TAG, "Deleting existing entry for " + alias);
-                mKeyStore.deleteEntry(alias);
+            for (Map.Entry<TvDevice, Certificate> entry : peerCerts.entrySet()) {
+                Certificate peerCert = entry.getValue();
+                String alias = String.format(KeyStoreManager.REMOTE_IDENTITY_ALIAS_PATTERN,
+                        peerCert.hashCode());
+                if (mKeyStore.containsAlias(alias)) {
+                    Log.w(LOG_TAG, "Deleting existing entry for " + alias);
+                    mKeyStore.deleteEntry(alias);
+                }
+                Log.i(LOG_TAG, "Adding cert to keystore: " + alias);
+                mKeyStore.setCertificateEntry(alias, peerCert);
+                mKeyStore.setCertificateEntry(getDeviceAlias(entry.getKey()), peerCert);
             }
-            Log.i(LOG_TAG, "Adding cert to keystore: " + alias);
-            mKeyStore.setCertificateEntry(alias, peerCert);
             store();
 
             try {
@@ -259,6 +317,52 @@ public final class KeyStoreManager {
         }
     }
 
+    /**
+     * Records the certificate a device presented on a successful connection,
+     * so that devices paired before their certificates were stored by device
+     * are known as paired too. Leaves the trust managers, and so the TLS
+     * session cache, as they are.
+     * @param device the connected device.
+     * @param peerCert certificate of the device.
+     */
+    synchronized void rememberCertificate(final TvDevice device, final Certificate peerCert) {
+        String alias = getDeviceAlias(device);
+        try {
+            if (peerCert.equals(mKeyStore.getCertificate(alias))) {
+                return;
+            }
+            Log.i(LOG_TAG, "Adding cert to keystore: " + alias);
+            mKeyStore.setCertificateEntry(alias, peerCert);
+            store();
+        } catch (KeyStoreException e) {
+            Log.e(LOG_TAG, "Storing cert failed", e);
+        }
+    }
+
+    /**
+     * Returns whether a certificate is stored for a device, that is whether
+     * the client has paired with or connected to a device at its address and
+     * port.
+     * @param device the device.
+     * @return {@code true} if the device is paired.
+     */
+    public synchronized boolean hasCertificate(final TvDevice device) {
+        if (mKeyStore == null) {
+            return false;
+        }
+        try {
+            return mKeyStore.containsAlias(getDeviceAlias(device));
+        } catch (KeyStoreException e) {
+            Log.e(LOG_TAG, "Looking up cert failed", e);
+            return false;
+        }
+    }
+
+    private static String getDeviceAlias(TvDevice device) {
+        return String.format(DEVICE_IDENTITY_ALIAS_PATTERN,
+                device.getAddress().getHostAddress(), device.getPort());
+    }
+
     private void clearKeyStore() {
         try {
             for (Enumeration<String> e = mKeyStore.aliases(); e.hasMoreElements();) {
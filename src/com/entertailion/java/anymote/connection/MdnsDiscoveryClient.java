@@ -0,0 +1,579 @@
+/*
+ * Copyright (C) 2012 ENTERTAILION, LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.entertailion.java.anymote.connection;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+import com.entertailion.java.anymote.connection.BroadcastDiscoveryClient.BroadcastAdvertisement;
+import com.entertailion.java.anymote.connection.BroadcastDiscoveryClient.DeviceDiscoveredListener;
+import com.entertailion.java.anymote.util.Log;
+
+/**
+ * Multicast DNS service browser (RFC 6762, RFC 6763) for a single DNS-SD
+ * service type.
+ * <p>
+ * Every mDNS response seen on the network fills the record cache, whether it
+ * answers one of our queries or is an unsolicited announcement. Queries are
+ * sent at start-up and then at intervals doubling up to an hour, plus a
+ * refresh when a cached service reaches 80% of its TTL; each query lists the
+ * services already known with more than half their TTL left, so responders
+ * need not repeat them. Records expire with their TTL, and goodbye records
+ * (TTL 0) remove them at once.
+ * <p>
+ * A service is reported to the listener once its PTR, SRV and A records are
+ * all cached, and again every {@link #MAINTENANCE_INTERVAL_MS} for as long as
+ * its records are alive, so that consumers with their own time-to-live keep
+ * it without any network traffic.
+ */
+public class MdnsDiscoveryClient implements Runnable {
+
+    private static final String LOG_TAG = "MdnsDiscoveryClient";
+
+    private static final String MDNS_ADDRESS = "224.0.0.251";
+    private static final int MDNS_PORT = 5353;
+
+    private static final int TYPE_A = 1;
+    private static final int TYPE_PTR = 12;
+    private static final int TYPE_SRV = 33;
+    private static final int CLASS_IN = 1;
+    private static final int FLAG_RESPONSE = 0x8000;
+
+    /**
+     * Interval of the first queries; doubled after every query.
+     */
+    private static final int FIRST_QUERY_INTERVAL_MS = 1000;
+
+    /**
+     * Longest interval between queries.
+     */
+    private static final int MAX_QUERY_INTERVAL_MS = 60 * 60 * 1000;
+
+    /**
+     * Interval of cache expiry and of reporting live services.
+     */
+    static final int MAINTENANCE_INTERVAL_MS = 5000;
+
+    private final String mServiceType;
+    private final MulticastSocket mSocket;
+    private final InetAddress mGroup;
+    private final Random mRandom;
+    private volatile boolean mRunning;
+    private DeviceDiscoveredListener mListener;
+
+    /**
+     * PTR records by instance name.
+     */
+    private final Map<String, CachedRecord> mPointers;
+
+    /**
+     * SRV records by instance name.
+     */
+    private final Map<String, CachedRecord> mServices;
+
+    /**
+     * A records by host name.
+     */
+    private final Map<String, CachedRecord> mAddresses;
+
+    private long mNextQuery;
+    private long mQueryInterval;
+    private long mNextMaintenance;
+
+    /**
+     * Constructor
+     *
+     * @param service DNS-SD service type, such as {@code "_anymote._tcp"}.
+     * @throws IOException if the multicast socket could not be opened.
+     */
+    public MdnsDiscoveryClient(String service) throws IOException {
+        mServiceType = (service + ".local").toLowerCase(Locale.US);
+        mGroup = InetAddress.getByName(MDNS_ADDRESS);
+        mRandom = new Random();
+        mPointers = new HashMap<String, CachedRecord>();
+        mServices = new HashMap<String, CachedRecord>();
+        mAddresses = new HashMap<String, CachedRecord>();
+        mSocket = new MulticastSocket(null);
+        try {
+            mSocket.setReuseAddress(true);
+            mSocket.bind(new InetSocketAddress(MDNS_PORT));
+            mSocket.setTimeToLive(255);
+            joinGroup();
+        } catch (IOException e) {
+            mSocket.close();
+            throw e;
+        }
+        mRunning = true;
+    }
+
+    /**
+     * Joins the mDNS group on every multicast-capable IPv4 interface.
+     */
+    private void joinGroup() throws IOException {
+        InetSocketAddress group = new InetSocketAddress(mGroup, MDNS_PORT);
+        int joined = 0;
+        try {
+            Enumeration<NetworkInterface> list = NetworkInterface.getNetworkInterfaces();
+            while (list != null && list.hasMoreElements()) {
+                NetworkInterface iface = list.nextElement();
+                if (!iface.isUp() || iface.isLoopback() || !iface.supportsMulticast()) {
+                    continue;
+                }
+                boolean ipv4 = false;
+                for (Enumeration<InetAddress> e = iface.getInetAddresses(); e.hasMoreElements();) {
+                    ipv4 |= e.nextElement() instanceof Inet4Address;
+                }
+                if (!ipv4) {
+                    continue;
+                }
+                try {
+                    mSocket.joinGroup(group, iface);
+                    joined++;
+                    Log.i(LOG_TAG, "Listening on " + iface.getName());
+                } catch (IOException e) {
+                    Log.w(LOG_TAG, "Could not join mDNS group on " + iface.getName(), e);
+                }
+            }
+        } catch (SocketException e) {
+            Log.w(LOG_TAG, "Could not list network interfaces", e);
+        }
+        if (joined == 0) {
+            mSocket.joinGroup(mGroup);
+        }
+    }
+
+    public void run() {
+        Log.i(LOG_TAG, "mDNS client thread starting.");
+        byte[] buffer = new byte[9000];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        long now = System.currentTimeMillis();
+        // RFC 6762 5.2: first query after a random 20-120 ms
+        mNextQuery = now + 20 + mRandom.nextInt(100);
+        mQueryInterval = FIRST_QUERY_INTERVAL_MS;
+        mNextMaintenance = now + MAINTENANCE_INTERVAL_MS;
+        while (mRunning) {
+            try {
+                now = System.currentTimeMillis();
+                if (now >= mNextQuery) {
+                    sendQuery(now);
+                    mNextQuery = now + mQueryInterval;
+                    mQueryInterval = Math.min(mQueryInterval * 2, MAX_QUERY_INTERVAL_MS);
+                }
+                if (now >= mNextMaintenance) {
+                    maintain(now);
+                    mNextMaintenance = now + MAINTENANCE_INTERVAL_MS;
+                }
+                long wait = Math.min(mNextQuery, mNextMaintenance) - now;
+                mSocket.setSoTimeout((int) Math.max(1, wait));
+                packet.setLength(buffer.length);
+                mSocket.receive(packet);
+                handlePacket(buffer, packet.getLength());
+            } catch (SocketTimeoutException e) {
+                // time for a query or maintenance
+            } catch (IOException e) {
+                // SocketException - stop() was called
+                break;
+            }
+        }
+        mSocket.close();
+        Log.i(LOG_TAG, "Exiting client loop.");
+    }
+
+    /**
+     * Stops the client thread.
+     */
+    public void stop() {
+        mRunning = false;
+        mSocket.close();
+    }
+
+    /**
+     * Sets the device discovery listener for the client.
+     *
+     * @param listener device discovery listener.
+     */
+    public void setDeviceDiscoveredListener(final DeviceDiscoveredListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Sends a PTR query for the service type, with the known answers.
+     */
+    private void sendQuery(long now) throws IOException {
+        List<CachedRecord> knownAnswers = new ArrayList<CachedRecord>();
+        for (CachedRecord record : mPointers.values()) {
+            // RFC 6762 7.1: only answers with more than half their TTL left
+            if (record.expiry - now > record.ttl * 500L) {
+                knownAnswers.add(record);
+            }
+        }
+        List<String> unresolved = unresolved();
+        MessageWriter out = new MessageWriter();
+        out.writeShort(0); // id
+        out.writeShort(0); // flags: standard query
+        out.writeShort(1 + unresolved.size());
+        out.writeShort(knownAnswers.size());
+        out.writeShort(0);
+        out.writeShort(0);
+        out.writeName(mServiceType);
+        out.writeShort(TYPE_PTR);
+        out.writeShort(CLASS_IN);
+        // ask for the records still missing to resolve known instances
+        for (String instance : unresolved) {
+            out.writeName(instance);
+            out.writeShort(TYPE_SRV);
+            out.writeShort(CLASS_IN);
+        }
+        for (CachedRecord record : knownAnswers) {
+            out.writeName(mServiceType);
+            out.writeShort(TYPE_PTR);
+            out.writeShort(CLASS_IN);
+            out.writeInt((int) ((record.expiry - now) / 1000));
+            byte[] rdata = MessageWriter.encodeName(record.name);
+            out.writeShort(rdata.length);
+            out.write(rdata, 0, rdata.length);
+        }
+        byte[] message = out.toByteArray();
+        mSocket.send(new DatagramPacket(message, message.length, mGroup, MDNS_PORT));
+        Log.v(LOG_TAG, "Sent query with " + knownAnswers.size() + " known answers");
+    }
+
+    /**
+     * Returns the cached instances whose SRV record is missing.
+     */
+    private List<String> unresolved() {
+        List<String> instances = new ArrayList<String>();
+        for (CachedRecord record : mPointers.values()) {
+            if (!mServices.containsKey(record.name)) {
+                instances.add(record.name);
+            }
+        }
+        return instances;
+    }
+
+    /**
+     * Expires records, schedules refresh queries and reports live services.
+     */
+    private void maintain(long now) {
+        expire(mAddresses, now);
+        expire(mServices, now);
+        for (Iterator<CachedRecord> it = mPointers.values().iterator(); it.hasNext();) {
+            CachedRecord record = it.next();
+            if (record.expiry <= now) {
+                Log.i(LOG_TAG, "Service expired: " + record.name);
+                it.remove();
+            } else if (!record.refreshQueried && now >= record.expiry - record.ttl * 200L) {
+                // RFC 6762 5.2: query again at 80% of the TTL
+                record.refreshQueried = true;
+                mNextQuery = Math.min(mNextQuery, now + mRandom.nextInt(1000));
+            }
+        }
+        for (CachedRecord record : mPointers.values()) {
+            report(record.name);
+        }
+    }
+
+    private static void expire(Map<String, CachedRecord> records, long now) {
+        for (Iterator<CachedRecord> it = records.values().iterator(); it.hasNext();) {
+            if (it.next().expiry <= now) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Reports an instance if all its records are cached.
+     */
+    private void report(String instance) {
+        CachedRecord service = mServices.get(instance);
+        if (service == null) {
+            return;
+        }
+        CachedRecord address = mAddresses.get(service.target);
+        DeviceDiscoveredListener listener = mListener;
+        if (address == null || listener == null) {
+            return;
+        }
+        listener.onDeviceDiscovered(new BroadcastAdvertisement(mPointers.get(instance).label,
+                address.address, service.port));
+    }
+
+    /**
+     * Parses an mDNS message and caches the records of interest.
+     */
+    private void handlePacket(byte[] data, int length) {
+        MessageReader in = new MessageReader(data, length);
+        List<String> changed = new ArrayList<String>();
+        try {
+            in.readShort(); // id
+            int flags = in.readShort();
+            if ((flags & FLAG_RESPONSE) == 0) {
+                return; // queries, including other browsers' known answers
+            }
+            int questions = in.readShort();
+            int records = in.readShort() + in.readShort() + in.readShort();
+            for (int i = 0; i < questions; i++) {
+                in.readName();
+                in.skip(4);
+            }
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < records; i++) {
+                String name = in.readName().toLowerCase(Locale.US);
+                int type = in.readShort();
+                in.readShort(); // class and cache-flush bit
+                long ttl = in.readInt() & 0xffffffffL;
+                int rdlength = in.readShort();
+                int end = in.position() + rdlength;
+                switch (type) {
+                    case TYPE_PTR:
+                        if (name.equals(mServiceType)) {
+                            String instance = in.readName();
+                            cachePointer(instance, ttl, now, changed);
+                        }
+                        break;
+                    case TYPE_SRV:
+                        if (name.endsWith("." + mServiceType)) {
+                            in.skip(4); // priority, weight
+                            int port = in.readShort();
+                            String target = in.readName().toLowerCase(Locale.US);
+                            CachedRecord record = new CachedRecord(name, ttl, now);
+                            record.port = port;
+                            record.target = target;
+                            cache(mServices, name, record, changed, name);
+                        }
+                        break;
+                    case TYPE_A:
+                        if (rdlength == 4) {
+                            byte[] bytes = new byte[4];
+                            in.read(bytes);
+                            CachedRecord record = new CachedRecord(name, ttl, now);
+                            record.address = (Inet4Address) InetAddress.getByAddress(bytes);
+                            cache(mAddresses, name, record, changed, null);
+                        }
+                        break;
+                    default:
+                        break;
+                }
+                in.seek(end);
+            }
+        } catch (IOException e) {
+            Log.v(LOG_TAG, "Malformed mDNS message: " + e.getMessage());
+        }
+        // an A record may complete services announced earlier
+        for (CachedRecord service : mServices.values()) {
+            if (!changed.contains(service.name) && changed.contains(service.target)) {
+                changed.add(service.name);
+            }
+        }
+        for (String instance : changed) {
+            if (mPointers.containsKey(instance)) {
+                report(instance);
+            }
+        }
+    }
+
+    private void cachePointer(String instance, long ttl, long now, List<String> changed) {
+        String key = instance.toLowerCase(Locale.US);
+        if (ttl == 0) {
+            if (mPointers.remove(key) != null) {
+                Log.i(LOG_TAG, "Service gone: " + instance);
+            }
+            return;
+        }
+        CachedRecord record = new CachedRecord(key, ttl, now);
+        int dot = instance.length() - mServiceType.length() - 1;
+        record.label = dot > 0 ? instance.substring(0, dot) : instance;
+        if (mPointers.put(key, record) == null) {
+            Log.i(LOG_TAG, "Service found: " + instance);
+            changed.add(key);
+        }
+    }
+
+    private static void cache(Map<String, CachedRecord> records, String key,
+            CachedRecord record, List<String> changed, String instance) {
+        if (record.ttl == 0) {
+            // goodbye: RFC 6762 10.1 allows one second before removal
+            CachedRecord old = records.get(key);
+            if (old != null) {
+                old.expiry = Math.min(old.expiry, record.expiry + 1000);
+            }
+            return;
+        }
+        records.put(key, record);
+        changed.add(instance != null ? instance : key);
+    }
+
+    /**
+     * A cached resource record.
+     */
+    private static final class CachedRecord {
+        final String name;
+        final long ttl;
+        long expiry;
+        boolean refreshQueried;
+        String label;
+        int port;
+        String target;
+        Inet4Address address;
+
+        CachedRecord(String name, long ttl, long now) {
+            this.name = name;
+            this.ttl = ttl;
+            expiry = now + ttl * 1000;
+        }
+    }
+
+    /**
+     * Writes DNS messages.
+     */
+    private static final class MessageWriter extends ByteArrayOutputStream {
+        void writeShort(int value) {
+            write(value >>> 8);
+            write(value);
+        }
+
+        void writeInt(int value) {
+            writeShort(value >>> 16);
+            writeShort(value);
+        }
+
+        void writeName(String name) {
+            byte[] encoded = encodeName(name);
+            write(encoded, 0, encoded.length);
+        }
+
+        static byte[] encodeName(String name) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            int start = 0;
+            while (start < name.length()) {
+                int dot = name.indexOf('.', start);
+                if (dot < 0) {
+                    dot = name.length();
+                }
+                byte[] label = name.substring(start, dot).getBytes(DiscoveryResponseParser.UTF8);
+                out.write(Math.min(label.length, 63));
+                out.write(label, 0, Math.min(label.length, 63));
+                start = dot + 1;
+            }
+            out.write(0);
+            return out.toByteArray();
+        }
+    }
+
+    /**
+     * Reads DNS messages.
+     */
+    private static final class MessageReader {
+        private final byte[] data;
+        private final int length;
+        private int pos;
+
+        MessageReader(byte[] data, int length) {
+            this.data = data;
+            this.length = length;
+        }
+
+        int position() {
+            return pos;
+        }
+
+        void seek(int position) throws IOException {
+            if (position > length) {
+                throw new IOException("Truncated");
+            }
+            pos = position;
+        }
+
+        void skip(int count) throws IOException {
+            seek(pos + count);
+        }
+
+        int readByte() throws IOException {
+            if (pos >= length) {
+                throw new IOException("Truncated");
+            }
+            return data[pos++] & 0xff;
+        }
+
+        int readShort() throws IOException {
+            return (readByte() << 8) | readByte();
+        }
+
+        int readInt() throws IOException {
+            return (readShort() << 16) | readShort();
+        }
+
+        void read(byte[] bytes) throws IOException {
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = (byte) readByte();
+            }
+        }
+
+        /**
+         * Reads a possibly compressed name, without the trailing dot.
+         */
+        String readName() throws IOException {
+            StringBuilder name = new StringBuilder();
+            int p = pos;
+            int end = -1;
+            int jumps = 0;
+            while (true) {
+                if (p >= length) {
+                    throw new IOException("Truncated");
+                }
+                int len = data[p] & 0xff;
+                if ((len & 0xc0) == 0xc0) {
+                    if (p + 1 >= length || ++jumps > 16) {
+                        throw new IOException("Bad name pointer");
+                    }
+                    if (end < 0) {
+                        end = p + 2;
+                    }
+                    p = ((len & 0x3f) << 8) | (data[p + 1] & 0xff);
+                    continue;
+                }
+                p++;
+                if (len == 0) {
+                    break;
+                }
+                if (p + len > length) {
+                    throw new IOException("Truncated");
+                }
+                if (name.length() > 0) {
+                    name.append('.');
+                }
+                name.append(new String(data, p, len, DiscoveryResponseParser.UTF8));
+                p += len;
+            }
+            pos = end >= 0 ? end : p;
+            return name.toString();
+        }
+    }
+}
@@ -0,0 +1,447 @@
+/*
+ * Copyright (C) 2012 ENTERTAILION, LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.entertailion.java.anymote.connection;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.InterfaceAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+
+import com.entertailion.java.anymote.connection.BroadcastDiscoveryClient.BroadcastAdvertisement;
+import com.entertailion.java.anymote.connection.BroadcastDiscoveryClient.DeviceDiscoveredListener;
+import com.entertailion.java.anymote.util.Log;
+import com.entertailion.java.anymote.util.Trace;
+
+/**
+ * Broadcast discovery over every IPv4 subnet the host is attached to.
+ * <p>
+ * Opens one non-blocking datagram channel per subnet, bound to the local
+ * address on that subnet, and serves all of them from a single selector
+ * thread. Probes go out on all subnets at once and the responses are reported
+ * to one listener, in arrival order. Each responder is reported once; its
+ * further responses are matched against the received bytes and allocate
+ * nothing.
+ *
+ * @see BroadcastDiscoveryClient
+ */
+public class MultiInterfaceDiscoveryClient implements Runnable {
+
+    private static final String LOG_TAG = "MultiInterfaceDiscoveryClient";
+
+    /**
+     * Listener that is also told about responses from devices already in the
+     * registry given to {@link MultiInterfaceDiscoveryClient#setDeviceRegistry}.
+     * Such responses are not turned into advertisements.
+     */
+    public interface KnownDeviceListener extends DeviceDiscoveredListener {
+        /**
+         * Called when a registered device answers from its registered
+         * address and port. Its last-seen time is already refreshed.
+         * 
+         * @param device the registered device.
+         */
+        void onKnownDeviceDiscovered(TvDevice device);
+    }
+
+    /**
+     * A subnet to probe.
+     */
+    public static final class Subnet {
+        private final String interfaceName;
+        private final Inet4Address localAddress;
+        private final Inet4Address broadcastAddress;
+
+        /**
+         * Constructor
+         *
+         * @param interfaceName name of the network interface, for logging.
+         * @param localAddress local address to send from, or {@code null} for
+         *            the wildcard address.
+         * @param broadcastAddress destination address for probes.
+         */
+        public Subnet(String interfaceName, Inet4Address localAddress,
+                Inet4Address broadcastAddress) {
+            this.interfaceName = interfaceName;
+            this.localAddress = localAddress;
+            this.broadcastAddress = broadcastAddress;
+        }
+
+        /**
+         * @return name of the network interface.
+         */
+        public String getInterfaceName() {
+            return interfaceName;
+        }
+
+        /**
+         * @return local address, or {@code null} for the wildcard address.
+         */
+        public Inet4Address getLocalAddress() {
+            return localAddress;
+        }
+
+        /**
+         * @return destination address for probes.
+         */
+        public Inet4Address getBroadcastAddress() {
+            return broadcastAddress;
+        }
+
+        @Override
+        public String toString() {
+            return interfaceName + " " + localAddress + " -> " + broadcastAddress;
+        }
+    }
+
+    /**
+     * A device that has responded, identified by its source address,
+     * advertised port and encoded name.
+     */
+    private static final class Responder {
+        final Inet4Address address;
+        final int port;
+        final byte[] name;
+
+        Responder(Inet4Address address, int port, byte[] data, int offset, int length) {
+            this.address = address;
+            this.port = port;
+            name = new byte[length];
+            System.arraycopy(data, offset, name, 0, length);
+        }
+    }
+
+    /**
+     * Probe of one subnet, built once.
+     */
+    private static final class Probe {
+        final Subnet subnet;
+        final ByteBuffer request;
+        final InetSocketAddress target;
+
+        Probe(Subnet subnet, byte[] request, InetSocketAddress target) {
+            this.subnet = subnet;
+            this.request = ByteBuffer.wrap(request);
+            this.target = target;
+        }
+
+        @Override
+        public String toString() {
+            return subnet.toString();
+        }
+    }
+
+    private final List<Subnet> mSubnets;
+    private final Selector mSelector;
+    private final List<DatagramChannel> mChannels;
+    private final ByteBuffer mBuffer;
+    private final DiscoveryResponseParser mParser;
+    private final ProbeScheduler mProbeScheduler;
+    private final List<Responder> mResponders;
+    private volatile boolean mRunning;
+    private DeviceDiscoveredListener mListener;
+    private DeviceRegistry mRegistry;
+
+    /**
+     * Constructor
+     *
+     * @param subnets subnets to probe.
+     * @param service The name of service we are looking for.
+     * @throws IOException if no channel could be opened.
+     */
+    public MultiInterfaceDiscoveryClient(List<Subnet> subnets, String service)
+            throws IOException {
+        this(subnets, service, BroadcastDiscoveryClient.BROADCAST_SERVER_PORT);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param subnets subnets to probe.
+     * @param service The name of service we are looking for.
+     * @param serverPort port the responders listen on.
+     * @throws IOException if no channel could be opened.
+     */
+    public MultiInterfaceDiscoveryClient(List<Subnet> subnets, String service, int serverPort)
+            throws IOException {
+        mSelector = Selector.open();
+        mChannels = new ArrayList<DatagramChannel>();
+        mBuffer = ByteBuffer.allocate(256);
+        mParser = new DiscoveryResponseParser(service);
+        mProbeScheduler = new ProbeScheduler();
+        mResponders = new ArrayList<Responder>();
+        List<Subnet> opened = new ArrayList<Subnet>();
+        for (Subnet subnet : subnets) {
+            DatagramChannel channel = null;
+            try {
+                channel = DatagramChannel.open();
+                channel.socket().setBroadcast(true);
+                channel.socket().bind(new InetSocketAddress(subnet.getLocalAddress(), 0));
+                channel.configureBlocking(false);
+                byte[] request = BroadcastDiscoveryClient.makeRequest(service,
+                        channel.socket().getLocalPort());
+                channel.register(mSelector, SelectionKey.OP_READ, new Probe(subnet, request,
+                        new InetSocketAddress(subnet.getBroadcastAddress(), serverPort)));
+                mChannels.add(channel);
+                opened.add(subnet);
+                Log.i(LOG_TAG, "Starting client on " + subnet);
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Could not open channel on " + subnet, e);
+                if (channel != null) {
+                    channel.close();
+                }
+            }
+        }
+        if (mChannels.isEmpty()) {
+            mSelector.close();
+            throw new IOException("No subnet to probe");
+        }
+        mSubnets = Collections.unmodifiableList(opened);
+        mRunning = true;
+    }
+
+    /**
+     * Returns the subnets being probed.
+     *
+     * @return list of subnets.
+     */
+    public List<Subnet> getSubnets() {
+        return mSubnets;
+    }
+
+    public void run() {
+        Log.i(LOG_TAG, "Discovery thread starting.");
+        long nextProbe = 0;
+        try {
+            while (mRunning && !mChannels.isEmpty()) {
+                long now = System.currentTimeMillis();
+                if (now >= nextProbe) {
+                    sendProbes();
+                    nextProbe = now + mProbeScheduler.onProbe(mChannels.size());
+                }
+                mSelector.select(Math.max(1, nextProbe - now));
+                Iterator<SelectionKey> it = mSelector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (key.isValid() && key.isReadable()) {
+                        try {
+                            receive((DatagramChannel) key.channel());
+                        } catch (IOException e) {
+                            drop(key, e);
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Discovery failed", e);
+        } finally {
+            close();
+        }
+        Log.i(LOG_TAG, "Exiting client loop: " + mProbeScheduler);
+    }
+
+    /**
+     * Sends a discovery request on every subnet.
+     */
+    private void sendProbes() {
+        long start = Trace.start();
+        for (DatagramChannel channel : mChannels) {
+            Probe probe = (Probe) channel.keyFor(mSelector).attachment();
+            probe.request.rewind();
+            try {
+                channel.send(probe.request, probe.target);
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Exception sending broadcast probe on " + probe.subnet, e);
+            }
+        }
+        Trace.end(Trace.Event.DISCOVERY_PROBE, start, "broadcast");
+    }
+
+    /**
+     * Reads all pending responses from a channel.
+     */
+    private void receive(DatagramChannel channel) throws IOException {
+        while (true) {
+            mBuffer.clear();
+            InetSocketAddress source = (InetSocketAddress) channel.receive(mBuffer);
+            if (source == null) {
+                return;
+            }
+            if (!(source.getAddress() instanceof Inet4Address)
+                    || !mParser.parse(mBuffer.array(), 0, mBuffer.position())) {
+                continue;
+            }
+            Inet4Address addr = (Inet4Address) source.getAddress();
+            int port = mParser.getPort();
+            Responder responder = findResponder(addr, port);
+            boolean first = responder == null;
+            if (first) {
+                responder = new Responder(addr, port, mParser.getData(),
+                        mParser.getNameOffset(), mParser.getNameLength());
+                mResponders.add(responder);
+            }
+            mProbeScheduler.onResponse(responder);
+            DeviceDiscoveredListener listener = mListener;
+            DeviceRegistry registry = mRegistry;
+            if (registry != null) {
+                TvDevice known = registry.touch(mParser.getData(), mParser.getNameOffset(),
+                        mParser.getNameLength(), addr, port);
+                if (known != null) {
+                    if (listener instanceof KnownDeviceListener) {
+                        ((KnownDeviceListener) listener).onKnownDeviceDiscovered(known);
+                    }
+                    continue;
+                }
+            }
+            if (first && listener != null) {
+                String serviceName = mParser.getName();
+                if (Log.isLoggable(LOG_TAG, Log.VERBOSE)) {
+                    Log.v(LOG_TAG, "Broadcast response: " + serviceName + ", " + addr + ", "
+                            + port);
+                }
+                listener.onDeviceDiscovered(new BroadcastAdvertisement(serviceName, addr, port));
+            }
+        }
+    }
+
+    /**
+     * Returns the device that already responded with the parsed name from
+     * the given address and port.
+     *
+     * @return the responder, or {@code null} if this is its first response.
+     */
+    private Responder findResponder(Inet4Address address, int port) {
+        for (int i = 0; i < mResponders.size(); i++) {
+            Responder responder = mResponders.get(i);
+            if (responder.port == port && responder.address.equals(address)
+                    && DiscoveryResponseParser.matches(mParser.getData(),
+                            mParser.getNameOffset(), mParser.getNameLength(), responder.name)) {
+                return responder;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Stops probing a subnet whose channel failed, leaving the others.
+     */
+    private void drop(SelectionKey key, IOException e) {
+        Log.e(LOG_TAG, "Dropping subnet " + key.attachment() + " after receive failed", e);
+        key.cancel();
+        mChannels.remove(key.channel());
+        try {
+            key.channel().close();
+        } catch (IOException ignored) {
+            // ignore
+        }
+    }
+
+    private void close() {
+        for (DatagramChannel channel : mChannels) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+        try {
+            mSelector.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    /**
+     * Returns the probe scheduler, which also counts probes and responding
+     * devices.
+     *
+     * @return probe scheduler.
+     */
+    public ProbeScheduler getProbeScheduler() {
+        return mProbeScheduler;
+    }
+
+    /**
+     * Stops the discovery thread.
+     */
+    public void stop() {
+        mRunning = false;
+        mSelector.wakeup();
+    }
+
+    /**
+     * Sets the device discovery listener for the client.
+     *
+     * @param listener device discovery listener.
+     */
+    public void setDeviceDiscoveredListener(final DeviceDiscoveredListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Sets the registry of known devices. Responses from registered devices
+     * refresh the registry directly, without allocating.
+     *
+     * @param registry device registry, or {@code null}.
+     */
+    public void setDeviceRegistry(DeviceRegistry registry) {
+        mRegistry = registry;
+    }
+
+    /**
+     * Returns the subnets of all network interfaces that are up, excluding
+     * loopback and interfaces without an IPv4 broadcast address.
+     *
+     * @return list of subnets, empty if there are none.
+     */
+    public static List<Subnet> findSubnets() {
+        List<Subnet> subnets = new ArrayList<Subnet>();
+        try {
+            Enumeration<NetworkInterface> list = NetworkInterface.getNetworkInterfaces();
+            while (list != null && list.hasMoreElements()) {
+                NetworkInterface iface = list.nextElement();
+                if (iface == null || iface.isLoopback() || !iface.isUp()) {
+                    continue;
+                }
+                for (InterfaceAddress interfaceAddress : iface.getInterfaceAddresses()) {
+                    if (interfaceAddress == null) {
+                        continue;
+                    }
+                    InetAddress address = interfaceAddress.getAddress();
+                    InetAddress broadcast = interfaceAddress.getBroadcast();
+                    if (address instanceof Inet4Address && broadcast instanceof Inet4Address
+                            && address.getHostAddress().charAt(0) != '0') {
+                        subnets.add(new Subnet(iface.getName(), (Inet4Address) address,
+                                (Inet4Address) broadcast));
+                    }
+                }
+            }
+        } catch (SocketException e) {
+            Log.e(LOG_TAG, "Could not list network interfaces", e);
+        }
+        return subnets;
+    }
+}
@@ -0,0 +1,513 @@
+/*
+ * Copyright (C) 2012 Google Inc. All rights reserved.
+ * Copyright (C) 2012 ENTERTAILION, LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.entertailion.java.anymote.connection;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.cert.Certificate;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import com.entertailion.java.anymote.client.PinListener;
+import com.entertailion.java.anymote.connection.ConnectingTask.PairingStatus;
+import com.entertailion.java.anymote.util.Constants;
+import com.entertailion.java.anymote.util.Log;
+import com.entertailion.java.anymote.util.Platform;
+import com.entertailion.java.anymote.util.Trace;
+import com.google.polo.exception.BadSecretException;
+import com.google.polo.exception.PoloException;
+import com.google.polo.pairing.ClientPairingSession;
+import com.google.polo.pairing.PairingContext;
+import com.google.polo.pairing.PairingListener;
+import com.google.polo.pairing.PairingSession;
+import com.google.polo.pairing.message.EncodingOption;
+import com.google.polo.pairing.message.PoloMessage.PoloMessageType;
+import com.google.polo.pairing.message.SecretMessage;
+import com.google.polo.ssl.DummySSLSocketFactory;
+import com.google.polo.wire.PoloWireInterface;
+import com.google.polo.wire.WireFormat;
+
+/**
+ * Event-driven pairing with a single device.
+ * <p>
+ * The Polo exchange is split into the steps before and after the secret is
+ * known. Each step runs as a task on an executor, and while the session waits
+ * for the user to enter the secret it holds no thread of its own, so many
+ * sessions can wait for PINs at the same time. Entering the secret through
+ * {@link #onSecretEntered(String)} resumes the session.
+ * <p>
+ * Note that Polo still keeps a reader thread blocked on the pairing socket
+ * for as long as the session is open.
+ * See https://developers.google.com/tv/remote/docs/pairing
+ */
+public class PairingStateMachine implements PinListener {
+    private static final String LOG_TAG = "PairingStateMachine";
+
+    /**
+     * Time the user has to enter the secret.
+     */
+    private static final int SECRET_WAIT_TIMEOUT_MS = 60 * 1000;
+
+    /**
+     * Number of threads of the default executor.
+     */
+    private static final int DEFAULT_THREADS = 4;
+
+    private static ExecutorService defaultExecutor;
+
+    /**
+     * Timer shared by all sessions to enforce their deadlines.
+     */
+    private static final Timer deadlineTimer = new Timer("PairingStateMachine", true);
+
+    /**
+     * Pairing states.
+     */
+    public enum State {
+        /**
+         * Not started yet.
+         */
+        IDLE,
+        /**
+         * Connecting and negotiating the pairing configuration.
+         */
+        CONFIGURING,
+        /**
+         * Waiting for the user to enter the secret shown on the TV.
+         */
+        AWAITING_SECRET,
+        /**
+         * Sending the secret and waiting for the TV to accept it.
+         */
+        VERIFYING,
+        /**
+         * Pairing finished; see {@link PairingStateMachine#getStatus()}.
+         */
+        DONE
+    }
+
+    /**
+     * Listener for pairing events.
+     */
+    public interface Listener {
+        /**
+         * The TV is showing the secret. The session holds no thread until
+         * {@link PairingStateMachine#onSecretEntered(String)} or
+         * {@link PairingStateMachine#onCancel()} is called.
+         *
+         * @param session the pairing session.
+         */
+        void onSecretRequired(PairingStateMachine session);
+
+        /**
+         * Pairing finished.
+         *
+         * @param session the pairing session.
+         * @param status result of pairing.
+         */
+        void onPairingComplete(PairingStateMachine session, PairingStatus status);
+    }
+
+    private final TvDevice target;
+    private final KeyStoreManager keyStore;
+    private final Platform platform;
+    private final Executor executor;
+    private final Listener listener;
+
+    private State state;
+    private PairingStatus status;
+    private SSLSocket socket;
+    private PairingContext context;
+    private SteppedPairingSession session;
+    private TimerTask deadline;
+    private volatile boolean storeCertificate;
+
+    /**
+     * Constructor using the shared default executor.
+     *
+     * @param device device to pair with.
+     * @param keyStoreManager key store where the device certificate is stored.
+     * @param platform platform providing the client name.
+     * @param listener listener for pairing events.
+     */
+    public PairingStateMachine(TvDevice device, KeyStoreManager keyStoreManager,
+            Platform platform, Listener listener) {
+        this(device, keyStoreManager, platform, getDefaultExecutor(), listener);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param device device to pair with.
+     * @param keyStoreManager key store where the device certificate is stored.
+     * @param platform platform providing the client name.
+     * @param executor executor that runs the pairing steps.
+     * @param listener listener for pairing events.
+     */
+    public PairingStateMachine(TvDevice device, KeyStoreManager keyStoreManager,
+            Platform platform, Executor executor, Listener listener) {
+        target = device;
+        keyStore = keyStoreManager;
+        this.platform = platform;
+        this.executor = executor;
+        this.listener = listener;
+        state = State.IDLE;
+        storeCertificate = true;
+    }
+
+    private static synchronized ExecutorService getDefaultExecutor() {
+        if (defaultExecutor == null) {
+            defaultExecutor = Executors.newFixedThreadPool(DEFAULT_THREADS, new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "PairingStateMachine");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return defaultExecutor;
+    }
+
+    /**
+     * Returns the device being paired.
+     *
+     * @return TV device.
+     */
+    public TvDevice getDevice() {
+        return target;
+    }
+
+    /**
+     * Returns the current state.
+     *
+     * @return pairing state.
+     */
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * Returns the result of pairing.
+     *
+     * @return pairing result, or {@code null} if pairing has not finished.
+     */
+    public synchronized PairingStatus getStatus() {
+        return status;
+    }
+
+    /**
+     * Controls whether the certificate of the device is stored in the key
+     * store when pairing succeeds. Callers pairing many devices can turn this
+     * off and store the certificates in batches.
+     *
+     * @param storeCertificate {@code false} to leave storing to the caller.
+     * @see #getServerCertificate()
+     */
+    public void setStoreCertificate(boolean storeCertificate) {
+        this.storeCertificate = storeCertificate;
+    }
+
+    /**
+     * Returns the certificate presented by the device.
+     *
+     * @return the device certificate, or {@code null} if not connected yet.
+     */
+    public synchronized Certificate getServerCertificate() {
+        return context != null ? context.getServerCertificate() : null;
+    }
+
+    /**
+     * Starts pairing.
+     */
+    public void start() {
+        synchronized (this) {
+            if (state != State.IDLE) {
+                throw new IllegalStateException("Pairing already started");
+            }
+            enter(State.CONFIGURING, Constants.integer.pairing_timeout);
+        }
+        executor.execute(new Runnable() {
+            public void run() {
+                configure();
+            }
+        });
+    }
+
+    /**
+     * Connects to the pairing port and runs the Polo steps up to the point
+     * where the secret is needed.
+     */
+    private void configure() {
+        long traceStart = Trace.start();
+        try {
+            SSLSocketFactory socketFactory = DummySSLSocketFactory.fromKeyManagers(keyStore
+                    .getKeyManagers());
+            Socket s = ConnectingTask.openSocket(target, target.getPort() + 1);
+            SSLSocket sslSocket = (SSLSocket) socketFactory.createSocket(s, target.getAddress()
+                    .getHostAddress(), target.getPort() + 1, true);
+            synchronized (this) {
+                socket = sslSocket;
+            }
+            if (getState() != State.CONFIGURING) {
+                close(sslSocket);
+                return;
+            }
+            ConnectingTask.handshake(sslSocket);
+            // the Polo reader blocks while the user enters the secret
+            sslSocket.setSoTimeout(0);
+
+            PairingContext pairingContext = PairingContext.fromSslSocket(sslSocket, false);
+            PoloWireInterface protocol = WireFormat.PROTOCOL_BUFFERS
+                    .getWireInterface(pairingContext);
+            SteppedPairingSession pairingSession = new SteppedPairingSession(protocol,
+                    pairingContext, platform.getString(Platform.NAME));
+            EncodingOption hexEnc = new EncodingOption(
+                    EncodingOption.EncodingType.ENCODING_HEXADECIMAL, 4);
+            pairingSession.addInputEncoding(hexEnc);
+            pairingSession.addOutputEncoding(hexEnc);
+            synchronized (this) {
+                context = pairingContext;
+                session = pairingSession;
+            }
+            if (getState() != State.CONFIGURING) {
+                pairingSession.teardown();
+                return;
+            }
+
+            pairingSession.configure(new LogListener());
+            if (traceStart != 0) {
+                Trace.end(Trace.Event.PAIRING, traceStart, "configure " + target.getName());
+            }
+
+            synchronized (this) {
+                if (state != State.CONFIGURING) {
+                    return;
+                }
+                enter(State.AWAITING_SECRET, SECRET_WAIT_TIMEOUT_MS);
+            }
+            listener.onSecretRequired(this);
+        } catch (GeneralSecurityException e) {
+            Log.e(LOG_TAG, "Cannot build socket factory", e);
+            finish(PairingStatus.FAILED_CONNECTION);
+        } catch (PoloException e) {
+            Log.e(LOG_TAG, "Polo exception", e);
+            finish(PairingStatus.FAILED_CONNECTION);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to connect", e);
+            finish(PairingStatus.FAILED_CONNECTION);
+        }
+    }
+
+    /**
+     * Resumes the session with the secret provided by the user.
+     *
+     * @param secret the secret shown on the TV.
+     */
+    @Override
+    public void onSecretEntered(final String secret) {
+        synchronized (this) {
+            if (state != State.AWAITING_SECRET) {
+                Log.w(LOG_TAG, "Secret entered in state " + state);
+                return;
+            }
+            enter(State.VERIFYING, Constants.integer.pairing_timeout);
+        }
+        executor.execute(new Runnable() {
+            public void run() {
+                verify(secret);
+            }
+        });
+    }
+
+    /**
+     * Sends the secret and waits for the TV to accept it.
+     *
+     * @param secret the secret shown on the TV.
+     */
+    private void verify(String secret) {
+        if (secret == null || secret.length() == 0) {
+            finish(PairingStatus.FAILED_CANCELLED);
+            return;
+        }
+        try {
+            long traceStart = Trace.start();
+            byte[] secretBytes = session.getEncoder().decodeToBytes(secret);
+            session.sendSecret(secretBytes);
+            if (traceStart != 0) {
+                Trace.end(Trace.Event.PAIRING, traceStart, "verify " + target.getName());
+            }
+            if (storeCertificate) {
+                keyStore.storeCertificate(target, getServerCertificate());
+            }
+            finish(PairingStatus.PAIRING_SUCCESS);
+        } catch (IllegalArgumentException e) {
+            Log.d(LOG_TAG, "Exception while decoding secret: ", e);
+            finish(PairingStatus.FAILED_SECRET);
+        } catch (BadSecretException e) {
+            Log.d(LOG_TAG, "Secret rejected: ", e);
+            finish(PairingStatus.FAILED_SECRET);
+        } catch (PoloException e) {
+            Log.e(LOG_TAG, "Polo exception", e);
+            finish(PairingStatus.FAILED_CONNECTION);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to send secret", e);
+            finish(PairingStatus.FAILED_CONNECTION);
+        }
+    }
+
+    /**
+     * Called when the user cancels pairing.
+     */
+    @Override
+    public void onCancel() {
+        cancel();
+    }
+
+    /**
+     * Cancels pairing.
+     */
+    public void cancel() {
+        finish(PairingStatus.FAILED_CANCELLED);
+    }
+
+    /**
+     * Moves to a new state and arms the deadline for leaving it. Must be
+     * called with the lock held.
+     */
+    private void enter(final State newState, long timeout) {
+        state = newState;
+        if (deadline != null) {
+            deadline.cancel();
+        }
+        deadline = new TimerTask() {
+            @Override
+            public void run() {
+                synchronized (PairingStateMachine.this) {
+                    if (state != newState) {
+                        return;
+                    }
+                }
+                Log.i(LOG_TAG, "Pairing with " + target.getName() + " timed out in " + newState);
+                finish(newState == State.AWAITING_SECRET ? PairingStatus.FAILED_CANCELLED
+                        : PairingStatus.FAILED_CONNECTION);
+            }
+        };
+        deadlineTimer.schedule(deadline, timeout);
+    }
+
+    /**
+     * Ends the session with the given result, unless it already ended.
+     */
+    private void finish(PairingStatus result) {
+        SteppedPairingSession pairingSession;
+        SSLSocket sslSocket;
+        synchronized (this) {
+            if (state == State.DONE) {
+                return;
+            }
+            state = State.DONE;
+            status = result;
+            if (deadline != null) {
+                deadline.cancel();
+                deadline = null;
+            }
+            pairingSession = session;
+            sslSocket = socket;
+        }
+        if (pairingSession != null && result != PairingStatus.PAIRING_SUCCESS) {
+            pairingSession.teardown();
+        }
+        // the pairing connection is not reused; this also ends the Polo reader
+        close(sslSocket);
+        Log.i(LOG_TAG, "Pairing with " + target.getName() + " finished: " + result);
+        listener.onPairingComplete(this, result);
+    }
+
+    private static void close(SSLSocket sslSocket) {
+        if (sslSocket != null) {
+            try {
+                sslSocket.close();
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "(IOE) Failed to close socket", e);
+            }
+        }
+    }
+
+    /**
+     * Client pairing session which runs the Polo protocol in two steps
+     * instead of blocking in {@link PairingSession#doPair(PairingListener)}.
+     */
+    private static class SteppedPairingSession extends ClientPairingSession {
+
+        SteppedPairingSession(PoloWireInterface protocol, PairingContext context,
+                String clientName) {
+            super(protocol, context, "AnyMote", clientName);
+        }
+
+        /**
+         * Runs the initialization and configuration phases.
+         */
+        void configure(PairingListener pairingListener) throws PoloException, IOException {
+            mListener = pairingListener;
+            doInitializationPhase();
+            doConfigurationPhase();
+            if (!isInputDevice()) {
+                throw new PoloException("Server did not assign the input role");
+            }
+        }
+
+        /**
+         * Runs the input device side of the pairing phase.
+         */
+        void sendSecret(byte[] secret) throws PoloException, IOException {
+            if (!mChallenge.checkGamma(secret)) {
+                throw new BadSecretException("Secret failed local check.");
+            }
+            byte[] nonce = mChallenge.extractNonce(secret);
+            sendMessage(new SecretMessage(mChallenge.getAlpha(nonce)));
+            getNextMessage(PoloMessageType.SECRET_ACK);
+        }
+    }
+
+    /**
+     * Forwards Polo log messages.
+     */
+    private static class LogListener implements PairingListener {
+        public void onSessionCreated(PairingSession session) {
+        }
+
+        public void onPerformInputDeviceRole(PairingSession session) {
+        }
+
+        public void onPerformOutputDeviceRole(PairingSession session, byte[] gamma) {
+        }
+
+        public void onSessionEnded(PairingSession session) {
+        }
+
+        public void onLogMessage(LogLevel level, String message) {
+            Log.d(LOG_TAG, "Log: " + message + " (" + level + ")");
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2012 ENTERTAILION, LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.entertailion.java.anymote.connection;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Decides when discovery probes are sent.
+ * <p>
+ * A scan starts with a burst of closely spaced probes, so that devices are
+ * found within a round trip even if a probe is lost. After the burst, probes
+ * are sent every {@link #MIN_INTERVAL_MS}, and the interval doubles up to
+ * {@link #MAX_INTERVAL_MS} for every round in which the set of responding
+ * devices stayed the same. A new device brings the interval back to the
+ * minimum; a device that stops responding starts a new burst. All delays are
+ * jittered so that many clients do not probe in step.
+ */
+public class ProbeScheduler {
+
+    /**
+     * Number of probes in a burst, not counting the first one.
+     */
+    private static final int BURST_PROBES = 3;
+
+    /**
+     * Spacing of probes in a burst.
+     */
+    private static final int BURST_INTERVAL_MS = 200;
+
+    /**
+     * Interval after a burst, and after the device set changed.
+     */
+    static final int MIN_INTERVAL_MS = 2000;
+
+    /**
+     * Interval while the device set is stable for a long time.
+     */
+    static final int MAX_INTERVAL_MS = 60 * 1000;
+
+    private final Random random;
+    private int burstRemaining;
+    private long interval;
+    private Set<Object> previousRound;
+    private Set<Object> currentRound;
+    private final Set<Object> discovered;
+    private long probeCount;
+
+    /**
+     * Constructor
+     */
+    public ProbeScheduler() {
+        random = new Random();
+        previousRound = new HashSet<Object>();
+        currentRound = new HashSet<Object>();
+        discovered = new HashSet<Object>();
+        reset();
+    }
+
+    /**
+     * Starts over with a burst, as at the start of a scan.
+     */
+    public synchronized void reset() {
+        burstRemaining = BURST_PROBES;
+        interval = MIN_INTERVAL_MS;
+    }
+
+    /**
+     * Records that a round of probes is being sent and returns when to send
+     * the next one.
+     *
+     * @param sent number of probe messages in this round.
+     * @return ms until the next round.
+     */
+    public synchronized long onProbe(int sent) {
+        probeCount += sent;
+        if (burstRemaining == 0) {
+            endRound();
+        }
+        if (burstRemaining > 0) {
+            burstRemaining--;
+            return BURST_INTERVAL_MS + random.nextInt(BURST_INTERVAL_MS / 2);
+        }
+        return interval + random.nextInt((int) (interval / 10) + 1) - interval / 20;
+    }
+
+    /**
+     * Records a response.
+     *
+     * @param device identity of the responding device; equal objects stand
+     *            for the same device.
+     */
+    public synchronized void onResponse(Object device) {
+        if (currentRound.add(device)) {
+            discovered.add(device);
+        }
+    }
+
+    /**
+     * Compares the devices which responded since the last round with those
+     * of the round before and adjusts the interval.
+     */
+    private void endRound() {
+        boolean silent = !currentRound.containsAll(previousRound);
+        boolean grown = !previousRound.containsAll(currentRound);
+        if (silent) {
+            burstRemaining = BURST_PROBES;
+            interval = MIN_INTERVAL_MS;
+        } else if (grown) {
+            interval = MIN_INTERVAL_MS;
+        } else {
+            interval = Math.min(interval * 2, MAX_INTERVAL_MS);
+        }
+        Set<Object> round = previousRound;
+        previousRound = currentRound;
+        currentRound = round;
+        currentRound.clear();
+    }
+
+    /**
+     * @return number of probes sent.
+     */
+    public synchronized long getProbeCount() {
+        return probeCount;
+    }
+
+    /**
+     * @return number of distinct devices that responded.
+     */
+    public synchronized int getDiscoveredCount() {
+        return discovered.size();
+    }
+
+    /**
+     * @return probes sent per device discovered, or the number of probes if
+     *         none was discovered.
+     */
+    public synchronized double getProbesPerDevice() {
+        return discovered.isEmpty() ? probeCount : (double) probeCount / discovered.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d probes, %d devices, %.2f probes/device", probeCount,
+                discovered.size(), getProbesPerDevice());
+    }
+}
@@ -105,6 +105,11 @@ public class TvDevice implements Comparable<TvDevice> {
         return compareTo(another) == 0;
     }
 
+    @Override
+    public int hashCode() {
+        return getName().hashCode();
+    }
+
     /**
      * Gets the string representing the device address.
      * 
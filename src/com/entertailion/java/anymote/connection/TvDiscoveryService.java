@@ -17,18 +17,26 @@
 
 package com.entertailion.java.anymote.connection;
 
+import java.io.IOException;
 import java.net.Inet4Address;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.entertailion.java.anymote.connection.BroadcastDiscoveryClient.BroadcastAdvertisement;
 import com.entertailion.java.anymote.connection.BroadcastDiscoveryClient.DeviceDiscoveredListener;
+import com.entertailion.java.anymote.connection.MultiInterfaceDiscoveryClient.KnownDeviceListener;
+import com.entertailion.java.anymote.connection.MultiInterfaceDiscoveryClient.Subnet;
 import com.entertailion.java.anymote.util.Constants;
 import com.entertailion.java.anymote.util.Log;
 import com.entertailion.java.anymote.util.Message;
 import com.entertailion.java.anymote.util.MessageThread;
 import com.entertailion.java.anymote.util.Platform;
+import com.entertailion.java.anymote.util.Trace;
 
 /**
  * Service which discovers Google TV devices on the local network.
@@ -56,7 +64,27 @@ public class TvDiscoveryService extends MessageThread {
      * The Broadcast client that listens for L3 broadcasts for Anymote service
      * on the network.
      */
-    private BroadcastDiscoveryClient broadcastClient;
+    private MultiInterfaceDiscoveryClient broadcastClient;
+
+    /**
+     * The client that probes hosts one by one where broadcasts are blocked.
+     */
+    private UnicastDiscoveryClient unicastClient;
+
+    /**
+     * Hosts to probe by unicast, or {@code null} to use broadcasts.
+     */
+    private List<Inet4Address> unicastTargets;
+
+    /**
+     * Subnets to probe by broadcast, or {@code null} for those of the host.
+     */
+    private List<Subnet> broadcastTargets;
+
+    /**
+     * Port devices answer broadcast probes on.
+     */
+    private int broadcastPort = BroadcastDiscoveryClient.BROADCAST_SERVER_PORT;
 
     /**
      * The thread that handles network communications.
@@ -64,12 +92,102 @@ public class TvDiscoveryService extends MessageThread {
     private Thread broadcastThread;
 
     /**
-     * All discovered TVs are stored in this list.
+     * The multicast DNS browser, running continuously when enabled.
+     */
+    private MdnsDiscoveryClient mdnsClient;
+
+    /**
+     * All discovered TVs are stored in this registry.
+     */
+    private final DeviceRegistry registry;
+
+    /**
+     * Devices remembered from earlier runs.
+     */
+    private final DeviceCache cache;
+
+    /**
+     * Set when the registry changed since the cache was last written.
+     */
+    private volatile boolean cacheDirty;
+
+    /**
+     * Listeners for discovery events.
      */
-    private List<TvDevice> devices;
+    private final List<DiscoveryListener> discoveryListeners;
+
+    /**
+     * Callers of {@link #discoverTvs(int, long)} waiting for responses.
+     */
+    private final List<ScanWaiter> scanWaiters;
+
+    /**
+     * The scan in flight, joined by all discovery requests made while it
+     * runs.
+     */
+    private Scan currentScan;
+
+    /**
+     * Devices found by the last completed scan.
+     */
+    private List<TvDevice> lastSnapshot;
+
+    /**
+     * Time the last scan completed.
+     */
+    private long lastSnapshotTime;
+
+    /**
+     * Scan statistics, for monitoring.
+     */
+    private final AtomicLong scanCount = new AtomicLong();
+    private final AtomicLong joinedScanCount = new AtomicLong();
+    private final AtomicLong snapshotHitCount = new AtomicLong();
+    private final AtomicLong responseCount = new AtomicLong();
+    private final AtomicLong probeCount = new AtomicLong();
+    private volatile double lastScanProbesPerDevice;
+    private volatile long lastScanStart;
+    private volatile long lastScanDuration;
+    private volatile long scanTraceStart;
+    private volatile int lastScanDeviceCount;
     
     private static TvDiscoveryService instance;
 
+    /**
+     * Listener for devices as they are discovered, changed or lost.
+     * <p>
+     * Device events are delivered on the discovery threads as soon as a
+     * device answers or expires, so listeners must not block.
+     */
+    public interface DiscoveryListener {
+        /**
+         * Called when a device answers for the first time.
+         * 
+         * @param device the new device.
+         */
+        void onDeviceAdded(TvDevice device);
+
+        /**
+         * Called when a known device answers under a new name.
+         * 
+         * @param device the device with its new name.
+         */
+        void onDeviceUpdated(TvDevice device);
+
+        /**
+         * Called when a known device has not answered for
+         * {@link Constants.integer#device_ttl} ms.
+         * 
+         * @param device the lost device.
+         */
+        void onDeviceLost(TvDevice device);
+
+        /**
+         * Called when a scan is complete.
+         */
+        void onDiscoveryComplete();
+    }
+
     /**
      * Constructor
      * 
@@ -78,13 +196,49 @@ public class TvDiscoveryService extends MessageThread {
      */
     private TvDiscoveryService(Platform context) {
         this.context = context;
-        devices = new CopyOnWriteArrayList<TvDevice>();
+        discoveryListeners = new CopyOnWriteArrayList<DiscoveryListener>();
+        scanWaiters = new CopyOnWriteArrayList<ScanWaiter>();
+        registry = new DeviceRegistry(Constants.integer.device_ttl);
+        registry.addListener(new DeviceRegistry.Listener() {
+            public void onDeviceAdded(TvDevice device) {
+                cacheDirty = true;
+                for (DiscoveryListener listener : discoveryListeners) {
+                    listener.onDeviceAdded(device);
+                }
+            }
+
+            public void onDeviceUpdated(TvDevice device) {
+                cacheDirty = true;
+                for (DiscoveryListener listener : discoveryListeners) {
+                    listener.onDeviceUpdated(device);
+                }
+            }
+
+            public void onDeviceLost(TvDevice device) {
+                cacheDirty = true;
+                for (DiscoveryListener listener : discoveryListeners) {
+                    listener.onDeviceLost(device);
+                }
+            }
+        });
+        cache = new DeviceCache(context);
+        List<TvDevice> cached = cache.load();
+        if (!cached.isEmpty()) {
+            // offer the cached devices until the first scan completes
+            Collections.sort(cached);
+            lastSnapshot = Collections.unmodifiableList(cached);
+            lastSnapshotTime = System.currentTimeMillis();
+        }
     }
     
     public static synchronized TvDiscoveryService getInstance(Platform context) {
     	if (instance==null) {
     		instance = new TvDiscoveryService(context);
     		instance.start();
+    		if (instance.lastSnapshot != null) {
+    		    // revalidate the cached devices
+    		    instance.startDiscovery();
+    		}
     	}
     	return instance;
     }
@@ -106,11 +260,6 @@ public class TvDiscoveryService extends MessageThread {
         sendMessage(type, null, 0);
     }
 
-    /**
-     * Lock object to synchronize threads.
-     */
-    Object broadCastSync = new Object();
-
     /**
      * Send messages to the handler with a delay.
      * 
@@ -131,28 +280,284 @@ public class TvDiscoveryService extends MessageThread {
 
     /**
      * Returns a list of Google TV devices offering Anymote service on the local
-     * network.
+     * network. Requests made while a scan is running join that scan, and all
+     * callers get the same result. Requests made shortly after a scan are
+     * answered from its result without probing again.
      * 
-     * @return list of TV devices
+     * @return unmodifiable list of TV devices, or {@code null} if there is no
+     *         network.
      */
     public List<TvDevice> discoverTvs() {
-    	startBroadcast();
-        if (getBroadcastAddress() == null) {
-            devices = null;
-            return devices;
+        Scan scan;
+        synchronized (this) {
+            List<TvDevice> snapshot = getFreshSnapshot();
+            if (snapshot != null) {
+                return snapshot;
+            }
+            if (isScanning()) {
+                joinedScanCount.incrementAndGet();
+            }
+            startBroadcast();
+            scan = currentScan;
+        }
+        if (scan == null) {
+            return null;
         }
         try {
-            synchronized (broadCastSync) {
-                broadCastSync.wait();
-            }
+            return scan.await();
+        } catch (InterruptedException e) {
+            Log.e(LOG_TAG, "Interrupted while scanning for tvs");
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Returns the result of the last scan if it is recent enough.
+     * 
+     * @return devices found, or {@code null} if the last scan is stale.
+     */
+    private synchronized List<TvDevice> getFreshSnapshot() {
+        if (lastSnapshot != null && System.currentTimeMillis() - lastSnapshotTime
+                < Constants.integer.discovery_freshness) {
+            snapshotHitCount.incrementAndGet();
+            return lastSnapshot;
+        }
+        return null;
+    }
 
+    /**
+     * Returns the first Google TV devices that answer, without waiting for
+     * the whole scan. Returns as soon as {@code count} devices have answered,
+     * the scan is complete or the timeout expires, whichever comes first. The
+     * scan itself continues in the background and further devices are
+     * reported to the discovery listeners.
+     * 
+     * @param count number of devices to wait for.
+     * @param timeout ms to wait at most.
+     * @return list of the devices that answered, or {@code null} if there is
+     *         no network.
+     */
+    public List<TvDevice> discoverTvs(int count, long timeout) {
+        List<TvDevice> snapshot = getFreshSnapshot();
+        if (snapshot != null) {
+            return new ArrayList<TvDevice>(snapshot.subList(0, Math.min(count, snapshot.size())));
+        }
+        ScanWaiter waiter = new ScanWaiter(count);
+        scanWaiters.add(waiter);
+        try {
+            long scanStart;
+            synchronized (this) {
+                startBroadcast();
+                if (!isScanning()) {
+                    return null;
+                }
+                scanStart = lastScanStart;
+            }
+            // a scan joined late has delivered its first responses already
+            for (TvDevice device : registry.getDevices()) {
+                if (registry.getLastSeen(device) >= scanStart) {
+                    waiter.onDeviceFound(device);
+                }
+            }
+            waiter.await(timeout);
         } catch (InterruptedException e) {
             Log.e(LOG_TAG, "Interrupted while scanning for tvs");
-            // Return empty array list as this.devices might be unsafe
-            // because of background looper, which may still be writing to it.
-            return new ArrayList<TvDevice>();
+        } finally {
+            scanWaiters.remove(waiter);
+        }
+        return waiter.getDevices();
+    }
+
+    /**
+     * Starts a scan without waiting for it. Devices are reported to the
+     * discovery listeners as they answer.
+     * 
+     * @return {@code false} if there is no network to scan.
+     */
+    public boolean startDiscovery() {
+        startBroadcast();
+        return isScanning();
+    }
+
+    /**
+     * Starts a scan even if the last one is recent enough to answer discovery
+     * requests.
+     * 
+     * @return {@code false} if there is no network to scan.
+     */
+    public boolean rescan() {
+        synchronized (this) {
+            lastSnapshot = null;
+        }
+        return startDiscovery();
+    }
+
+    /**
+     * Switches to unicast discovery for networks that block broadcasts. Each
+     * scan then probes the given hosts one by one, and also checks their
+     * Anymote port over TCP.
+     * 
+     * @param targets host addresses, host names or CIDR blocks such as
+     *            {@code "10.1.20.0/24"}; {@code null} or empty to go back to
+     *            broadcasts.
+     * @throws IllegalArgumentException if a target cannot be parsed.
+     */
+    public void setUnicastTargets(List<String> targets) {
+        List<Inet4Address> hosts = null;
+        if (targets != null && !targets.isEmpty()) {
+            hosts = UnicastDiscoveryClient.parseTargets(targets);
+        }
+        synchronized (this) {
+            unicastTargets = hosts;
+            lastSnapshot = null;
+        }
+    }
+
+    /**
+     * Probes the given subnets on the given port instead of every subnet of
+     * the host on the discovery port, such as to reach stand-in responders on
+     * the loopback interface.
+     * 
+     * @param subnets subnets to probe; {@code null} or empty to go back to
+     *            the subnets of the host.
+     * @param port UDP port the devices answer probes on.
+     */
+    public synchronized void setBroadcastTargets(List<Subnet> subnets, int port) {
+        if (subnets != null && !subnets.isEmpty()) {
+            broadcastTargets = new ArrayList<Subnet>(subnets);
+            broadcastPort = port;
+        } else {
+            broadcastTargets = null;
+            broadcastPort = BroadcastDiscoveryClient.BROADCAST_SERVER_PORT;
         }
-        return devices;
+        lastSnapshot = null;
+    }
+
+    /**
+     * Starts or stops continuous discovery by multicast DNS. While enabled,
+     * devices announcing the Anymote service are added to the registry as
+     * they appear and are kept for as long as their records are alive, with
+     * no probing; scans by broadcast keep working alongside.
+     * 
+     * @param enabled {@code true} to browse for the service.
+     * @return {@code false} if the browser could not be started.
+     */
+    public synchronized boolean setMdnsEnabled(boolean enabled) {
+        if (!enabled) {
+            if (mdnsClient != null) {
+                Log.i(LOG_TAG, "Disabling mDNS");
+                mdnsClient.stop();
+                mdnsClient = null;
+            }
+            return true;
+        }
+        if (mdnsClient == null) {
+            Log.i(LOG_TAG, "Enabling mDNS");
+            try {
+                mdnsClient = new MdnsDiscoveryClient(getServiceName());
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Could not start mDNS", e);
+                return false;
+            }
+            mdnsClient.setDeviceDiscoveredListener(new DeviceDiscoveredListener() {
+                public void onDeviceDiscovered(BroadcastAdvertisement advert) {
+                    onDeviceFound(getDeviceFromAdvert(advert));
+                }
+            });
+            Thread thread = new Thread(mdnsClient, "MdnsDiscoveryClient");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return true;
+    }
+
+    /**
+     * @return {@code true} if multicast DNS browsing is enabled.
+     */
+    public synchronized boolean isMdnsEnabled() {
+        return mdnsClient != null;
+    }
+
+    /**
+     * @return {@code true} while a scan is running.
+     */
+    public synchronized boolean isScanning() {
+        return broadcastClient != null || unicastClient != null;
+    }
+
+    /**
+     * @return number of scans started.
+     */
+    public long getScanCount() {
+        return scanCount.get();
+    }
+
+    /**
+     * @return number of discovery requests which joined a running scan.
+     */
+    public long getJoinedScanCount() {
+        return joinedScanCount.get();
+    }
+
+    /**
+     * @return number of discovery requests answered from the last scan.
+     */
+    public long getSnapshotHitCount() {
+        return snapshotHitCount.get();
+    }
+
+    /**
+     * @return number of device responses received.
+     */
+    public long getResponseCount() {
+        return responseCount.get();
+    }
+
+    /**
+     * @return number of broadcast probes sent, over all subnets.
+     */
+    public long getProbeCount() {
+        return probeCount.get();
+    }
+
+    /**
+     * @return broadcast probes sent per device found by the last completed
+     *         broadcast scan, or the number of probes if none was found.
+     */
+    public double getLastScanProbesPerDevice() {
+        return lastScanProbesPerDevice;
+    }
+
+    /**
+     * @return ms taken by the last completed scan, 0 if none completed.
+     */
+    public long getLastScanDuration() {
+        return lastScanDuration;
+    }
+
+    /**
+     * @return number of devices known after the last completed scan.
+     */
+    public int getLastScanDeviceCount() {
+        return lastScanDeviceCount;
+    }
+
+    /**
+     * Adds a listener for discovery events.
+     * 
+     * @param listener discovery listener.
+     */
+    public void addDiscoveryListener(DiscoveryListener listener) {
+        discoveryListeners.add(listener);
+    }
+
+    /**
+     * Removes a listener for discovery events.
+     * 
+     * @param listener discovery listener.
+     */
+    public void removeDiscoveryListener(DiscoveryListener listener) {
+        discoveryListeners.remove(listener);
     }
 
     /**
@@ -168,22 +573,144 @@ public class TvDiscoveryService extends MessageThread {
      * @param dev
      */
     public void onDeviceFound(TvDevice dev) {
-    	for(TvDevice device:devices) {
-    		if (device.getName().equals(dev.getName())) {
-    			return; // ignore duplicates
-    		}
-    	}
-        devices.add(dev);
+        responseCount.incrementAndGet();
+        notifyScanWaiters(registry.onDeviceSeen(dev));
+    }
+
+    private void notifyScanWaiters(TvDevice device) {
+        if (scanWaiters.isEmpty()) {
+            return;
+        }
+        for (ScanWaiter waiter : scanWaiters) {
+            waiter.onDeviceFound(device);
+        }
+    }
+
+    /**
+     * Returns the registry of discovered devices.
+     * 
+     * @return device registry.
+     */
+    public DeviceRegistry getRegistry() {
+        return registry;
+    }
+
+    /**
+     * Hands the result of the scan that just completed to the callers
+     * waiting for it.
+     * 
+     * @param scan the completed scan.
+     */
+    private void onScanFinished(Scan scan) {
+        List<TvDevice> snapshot = Collections.unmodifiableList(registry.getDevices());
+        synchronized (this) {
+            lastSnapshot = snapshot;
+            lastSnapshotTime = System.currentTimeMillis();
+        }
+        if (scan != null) {
+            lastScanDuration = lastSnapshotTime - lastScanStart;
+            lastScanDeviceCount = snapshot.size();
+        }
+        if (cacheDirty) {
+            cacheDirty = false;
+            cache.save(registry);
+        }
+        if (scan != null) {
+            scan.complete(snapshot);
+        }
+        for (ScanWaiter waiter : scanWaiters) {
+            waiter.done();
+        }
+        for (DiscoveryListener listener : discoveryListeners) {
+            listener.onDiscoveryComplete();
+        }
+    }
+
+    /**
+     * A scan in flight.
+     */
+    private static class Scan {
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private volatile List<TvDevice> result;
+
+        void complete(List<TvDevice> result) {
+            this.result = result;
+            latch.countDown();
+        }
+
+        List<TvDevice> await() throws InterruptedException {
+            latch.await();
+            return result;
+        }
+    }
+
+    /**
+     * A caller waiting for the first devices of a scan.
+     */
+    private static class ScanWaiter {
+        private final int count;
+        private final List<TvDevice> found;
+        private final CountDownLatch latch;
+
+        ScanWaiter(int count) {
+            this.count = count;
+            found = new ArrayList<TvDevice>();
+            latch = new CountDownLatch(1);
+        }
+
+        synchronized void onDeviceFound(TvDevice device) {
+            if (!isFound(device)) {
+                found.add(device);
+            }
+            if (found.size() >= count) {
+                latch.countDown();
+            }
+        }
+
+        /**
+         * Devices are told apart by address and port, as in the registry;
+         * several may share a name.
+         */
+        private boolean isFound(TvDevice device) {
+            for (TvDevice another : found) {
+                if (another.getPort() == device.getPort()
+                        && another.getAddress().equals(device.getAddress())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void done() {
+            latch.countDown();
+        }
+
+        void await(long timeout) throws InterruptedException {
+            latch.await(timeout, TimeUnit.MILLISECONDS);
+        }
+
+        synchronized List<TvDevice> getDevices() {
+            return new ArrayList<TvDevice>(found);
+        }
     }
 
     /**
      * Stops looking for Google TV devices on the network.
      */
     private synchronized void stopBroadcast() {
-        if (broadcastClient != null) {
+        if (isScanning()) {
             Log.i(LOG_TAG, "Disabling broadcast");
-            broadcastClient.stop();
-            broadcastClient = null;
+            if (broadcastClient != null) {
+                broadcastClient.stop();
+                ProbeScheduler scheduler = broadcastClient.getProbeScheduler();
+                probeCount.addAndGet(scheduler.getProbeCount());
+                lastScanProbesPerDevice = scheduler.getProbesPerDevice();
+                broadcastClient = null;
+            }
+            if (unicastClient != null) {
+                unicastClient.stop();
+                unicastClient = null;
+            }
             try {
                 broadcastThread.join(1000);
             } catch (InterruptedException e) {
@@ -198,29 +725,73 @@ public class TvDiscoveryService extends MessageThread {
      * Starts scanning the local network for Google TV devices.
      */
     private synchronized void startBroadcast() {
-        Inet4Address broadcastAddress = getBroadcastAddress();
-        if (broadcastAddress == null) {
-            stopBroadcast();
+        if (isScanning()) {
             return;
         }
-        if (broadcastClient == null) {
+        Runnable client;
+        long timeout = Constants.integer.broadcast_timeout;
+        if (unicastTargets != null) {
+            Log.i(LOG_TAG, "Enabling unicast sweep");
+            try {
+                unicastClient = new UnicastDiscoveryClient(unicastTargets, getServiceName());
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Could not start unicast sweep", e);
+                return;
+            }
+            unicastClient.setDeviceDiscoveredListener(discoveredListener);
+            timeout = Math.max(timeout, unicastClient.getSweepDuration());
+            client = unicastClient;
+        } else {
+            List<Subnet> subnets = broadcastTargets != null ? broadcastTargets : getSubnets();
+            if (subnets.isEmpty()) {
+                return;
+            }
             Log.i(LOG_TAG, "Enabling broadcast");
-            broadcastClient = new BroadcastDiscoveryClient(broadcastAddress, getServiceName());
-            broadcastClient.setDeviceDiscoveredListener(new DeviceDiscoveredListener() {
-                public void onDeviceDiscovered(BroadcastAdvertisement advert) {
-                    TvDevice remoteDevice = getDeviceFromAdvert(advert);
-                    Log.i(LOG_TAG, "Found device: " + remoteDevice.getName());
-                    onDeviceFound(remoteDevice);
-                }
-            });
-
-            broadcastThread = new Thread(broadcastClient);
-            broadcastThread.start();
-            int broadcastTimeout = Constants.integer.broadcast_timeout;
-            sendMessage(RequestType.BROADCAST_TIMEOUT, null, broadcastTimeout);
+            try {
+                broadcastClient = new MultiInterfaceDiscoveryClient(subnets, getServiceName(),
+                        broadcastPort);
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Could not start broadcast", e);
+                return;
+            }
+            broadcastClient.setDeviceRegistry(registry);
+            broadcastClient.setDeviceDiscoveredListener(discoveredListener);
+            client = broadcastClient;
         }
+
+        currentScan = new Scan();
+        scanCount.incrementAndGet();
+        lastScanStart = System.currentTimeMillis();
+        scanTraceStart = Trace.start();
+        broadcastThread = new Thread(client);
+        broadcastThread.start();
+        sendMessage(RequestType.BROADCAST_TIMEOUT, null, timeout);
     }
 
+    /**
+     * Receives the responses of the discovery clients.
+     */
+    private final KnownDeviceListener discoveredListener = new KnownDeviceListener() {
+        public void onDeviceDiscovered(BroadcastAdvertisement advert) {
+            TvDevice remoteDevice = getDeviceFromAdvert(advert);
+            Log.i(LOG_TAG, "Found device: " + remoteDevice.getName());
+            long traceStart = scanTraceStart;
+            if (traceStart != 0) {
+                Trace.end(Trace.Event.DISCOVERY_RESPONSE, traceStart, remoteDevice.getName());
+            }
+            onDeviceFound(remoteDevice);
+        }
+
+        public void onKnownDeviceDiscovered(TvDevice device) {
+            long traceStart = scanTraceStart;
+            if (traceStart != 0) {
+                Trace.end(Trace.Event.DISCOVERY_RESPONSE, traceStart, device.getName());
+            }
+            responseCount.incrementAndGet();
+            notifyScanWaiters(device);
+        }
+    };
+
     /**
      * Internal thread that does the discovery
      */
@@ -229,10 +800,6 @@ public class TvDiscoveryService extends MessageThread {
         @Override
         public void run() {
             startBroadcast();
-            if (getBroadcastAddress() == null) {
-                devices = null;
-                return;
-            }
 
         }
     }
@@ -241,10 +808,13 @@ public class TvDiscoveryService extends MessageThread {
         RequestType request = RequestType.values()[msg.what];
 
         if (request == RequestType.BROADCAST_TIMEOUT) {
-            stopBroadcast();
-            synchronized (broadCastSync) {
-                broadCastSync.notifyAll();
+            Scan scan;
+            synchronized (this) {
+                stopBroadcast();
+                scan = currentScan;
+                currentScan = null;
             }
+            onScanFinished(scan);
         }
     }
 
@@ -276,6 +846,23 @@ public class TvDiscoveryService extends MessageThread {
         return context.getBroadcastAddress();
     }
 
+    /**
+     * Returns the subnets to probe: every IPv4 subnet of the host, or the
+     * platform broadcast address if the interfaces cannot be listed.
+     * 
+     * @return list of subnets, empty if there is no network.
+     */
+    protected List<Subnet> getSubnets() {
+        List<Subnet> subnets = MultiInterfaceDiscoveryClient.findSubnets();
+        if (subnets.isEmpty()) {
+            Inet4Address broadcastAddress = getBroadcastAddress();
+            if (broadcastAddress != null) {
+                subnets.add(new Subnet(getNetworkName(), null, broadcastAddress));
+            }
+        }
+        return subnets;
+    }
+
     /**
      * Returns Anymote service name.
      * 
@@ -0,0 +1,402 @@
+/*
+ * Copyright (C) 2012 ENTERTAILION, LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.entertailion.java.anymote.connection;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.entertailion.java.anymote.connection.BroadcastDiscoveryClient.BroadcastAdvertisement;
+import com.entertailion.java.anymote.connection.BroadcastDiscoveryClient.DeviceDiscoveredListener;
+import com.entertailion.java.anymote.util.Constants;
+import com.entertailion.java.anymote.util.Log;
+import com.entertailion.java.anymote.util.Trace;
+
+/**
+ * Discovery for networks that block broadcasts.
+ * <p>
+ * Sends the discovery probe to every host of a list, typically a CIDR block
+ * or a static inventory, as a rate-limited sweep over one non-blocking
+ * datagram channel; responses are read while the sweep is still going. In
+ * parallel, the Anymote port of each host is probed over TCP. Hosts that
+ * accept the connection but did not answer the discovery probe are reported
+ * too, named after their address. Sweeps repeat until the client is stopped.
+ */
+public class UnicastDiscoveryClient implements Runnable {
+
+    private static final String LOG_TAG = "UnicastDiscoveryClient";
+
+    /**
+     * Time to wait for responses after the last probe of a sweep.
+     */
+    private static final int RESPONSE_WINDOW_MS = 1000;
+
+    /**
+     * Pause between sweeps.
+     */
+    private static final int SWEEP_INTERVAL_MS = 10 * 1000;
+
+    /**
+     * Maximum number of TCP probes in flight.
+     */
+    private static final int MAX_TCP_PROBES = 64;
+
+    private final List<Inet4Address> mTargets;
+    private final String mServiceName;
+    private final Selector mSelector;
+    private final DatagramChannel mChannel;
+    private final ByteBuffer mProbe;
+    private final ByteBuffer mBuffer;
+    private final DiscoveryResponseParser mParser;
+    private final int mProbeRate;
+    private final int mTcpPort;
+    private volatile boolean mRunning;
+    private DeviceDiscoveredListener mListener;
+
+    // state of the current sweep
+    private long mSweepStart;
+    private int mNextUdp;
+    private int mNextTcp;
+    private int mTcpInFlight;
+    private long mLastProbe;
+    private final Set<Inet4Address> mResponded;
+    private final Set<Inet4Address> mTcpAlive;
+
+    /**
+     * Constructor
+     *
+     * @param targets hosts to probe.
+     * @param service The name of service we are looking for.
+     * @throws IOException if the channel could not be opened.
+     */
+    public UnicastDiscoveryClient(List<Inet4Address> targets, String service)
+            throws IOException {
+        mTargets = new ArrayList<Inet4Address>(new LinkedHashSet<Inet4Address>(targets));
+        mServiceName = service;
+        mProbeRate = Math.max(1, Constants.integer.unicast_probe_rate);
+        mTcpPort = Constants.integer.manual_default_port;
+        mParser = new DiscoveryResponseParser(service);
+        mBuffer = ByteBuffer.allocate(256);
+        mResponded = new HashSet<Inet4Address>();
+        mTcpAlive = new HashSet<Inet4Address>();
+        mSelector = Selector.open();
+        try {
+            mChannel = DatagramChannel.open();
+            mChannel.socket().bind(new InetSocketAddress(0));
+            mChannel.configureBlocking(false);
+            mChannel.register(mSelector, SelectionKey.OP_READ);
+        } catch (IOException e) {
+            mSelector.close();
+            throw e;
+        }
+        mProbe = ByteBuffer.wrap(BroadcastDiscoveryClient.makeRequest(service,
+                mChannel.socket().getLocalPort()));
+        mRunning = true;
+        Log.i(LOG_TAG, "Starting client for " + mTargets.size() + " hosts");
+    }
+
+    /**
+     * Returns the time a sweep takes, including the wait for late responses.
+     *
+     * @return duration in ms.
+     */
+    public long getSweepDuration() {
+        return mTargets.size() * 1000L / mProbeRate + RESPONSE_WINDOW_MS;
+    }
+
+    public void run() {
+        Log.i(LOG_TAG, "Unicast client thread starting.");
+        try {
+            while (mRunning) {
+                sweep();
+                long resume = System.currentTimeMillis() + SWEEP_INTERVAL_MS;
+                while (mRunning && System.currentTimeMillis() < resume) {
+                    select(Math.max(1, resume - System.currentTimeMillis()));
+                }
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Discovery failed", e);
+        } finally {
+            close();
+        }
+        Log.i(LOG_TAG, "Exiting client loop.");
+    }
+
+    /**
+     * Probes every target once and reports what answered.
+     */
+    private void sweep() throws IOException {
+        mSweepStart = System.currentTimeMillis();
+        mNextUdp = 0;
+        mNextTcp = 0;
+        mResponded.clear();
+        mTcpAlive.clear();
+        while (mRunning) {
+            long now = System.currentTimeMillis();
+            // probes allowed so far at the configured rate
+            int due = (int) Math.min(mTargets.size(), (now - mSweepStart) * mProbeRate / 1000 + 1);
+            while (mNextUdp < due) {
+                sendProbe(mTargets.get(mNextUdp++));
+                mLastProbe = now;
+            }
+            while (mNextTcp < mNextUdp && mTcpInFlight < MAX_TCP_PROBES) {
+                startTcpProbe(mTargets.get(mNextTcp++));
+            }
+            boolean sent = mNextUdp == mTargets.size();
+            if (sent && mNextTcp == mTargets.size() && mTcpInFlight == 0
+                    && now - mLastProbe >= RESPONSE_WINDOW_MS) {
+                break;
+            }
+            long wait = sent ? RESPONSE_WINDOW_MS - (now - mLastProbe)
+                    : 1000 / mProbeRate + 1;
+            select(Math.max(1, Math.min(wait, 100)));
+        }
+        for (Inet4Address address : mTcpAlive) {
+            if (!mResponded.contains(address)) {
+                Log.v(LOG_TAG, "Anymote port open on " + address);
+                notifyListener(new BroadcastAdvertisement(
+                        Constants.string.manual_ip_default_box_name + " "
+                                + address.getHostAddress(), address, mTcpPort));
+            }
+        }
+        Log.i(LOG_TAG, "Sweep of " + mTargets.size() + " hosts took "
+                + (System.currentTimeMillis() - mSweepStart) + "ms: " + mResponded.size()
+                + " answered, " + mTcpAlive.size() + " with Anymote port open");
+    }
+
+    private void select(long timeout) throws IOException {
+        mSelector.select(timeout);
+        Iterator<SelectionKey> it = mSelector.selectedKeys().iterator();
+        while (it.hasNext()) {
+            SelectionKey key = it.next();
+            it.remove();
+            if (!key.isValid()) {
+                continue;
+            }
+            if (key.channel() == mChannel) {
+                receive();
+            } else if (key.isConnectable()) {
+                finishTcpProbe(key);
+            }
+        }
+        expireTcpProbes();
+    }
+
+    private void sendProbe(Inet4Address target) {
+        mProbe.rewind();
+        long start = Trace.start();
+        try {
+            mChannel.send(mProbe, new InetSocketAddress(target,
+                    BroadcastDiscoveryClient.BROADCAST_SERVER_PORT));
+        } catch (IOException e) {
+            Log.v(LOG_TAG, "Exception sending probe to " + target + ": " + e);
+        }
+        Trace.end(Trace.Event.DISCOVERY_PROBE, start, "unicast");
+    }
+
+    private void receive() throws IOException {
+        while (true) {
+            mBuffer.clear();
+            InetSocketAddress source = (InetSocketAddress) mChannel.receive(mBuffer);
+            if (source == null) {
+                return;
+            }
+            if (!(source.getAddress() instanceof Inet4Address)
+                    || !mParser.parse(mBuffer.array(), 0, mBuffer.position())) {
+                continue;
+            }
+            Inet4Address address = (Inet4Address) source.getAddress();
+            mResponded.add(address);
+            String serviceName = mParser.getName();
+            Log.v(LOG_TAG, "Unicast response: " + serviceName + ", " + address + ", "
+                    + mParser.getPort());
+            notifyListener(new BroadcastAdvertisement(serviceName, address, mParser.getPort()));
+        }
+    }
+
+    private void startTcpProbe(Inet4Address target) {
+        SocketChannel channel = null;
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            if (channel.connect(new InetSocketAddress(target, mTcpPort))) {
+                mTcpAlive.add(target);
+                channel.close();
+                return;
+            }
+            channel.register(mSelector, SelectionKey.OP_CONNECT, new TcpProbe(target));
+            mTcpInFlight++;
+        } catch (IOException e) {
+            closeQuietly(channel);
+        }
+    }
+
+    private void finishTcpProbe(SelectionKey key) {
+        TcpProbe probe = (TcpProbe) key.attachment();
+        SocketChannel channel = (SocketChannel) key.channel();
+        try {
+            if (channel.finishConnect()) {
+                mTcpAlive.add(probe.target);
+            }
+        } catch (IOException e) {
+            // refused or unreachable
+        }
+        key.cancel();
+        closeQuietly(channel);
+        mTcpInFlight--;
+    }
+
+    private void expireTcpProbes() {
+        if (mTcpInFlight == 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (SelectionKey key : mSelector.keys()) {
+            if (key.isValid() && key.attachment() instanceof TcpProbe
+                    && ((TcpProbe) key.attachment()).deadline <= now) {
+                key.cancel();
+                closeQuietly(key.channel());
+                mTcpInFlight--;
+            }
+        }
+    }
+
+    private void notifyListener(BroadcastAdvertisement advert) {
+        DeviceDiscoveredListener listener = mListener;
+        if (listener != null) {
+            listener.onDeviceDiscovered(advert);
+        }
+    }
+
+    private void close() {
+        for (SelectionKey key : mSelector.keys()) {
+            closeQuietly(key.channel());
+        }
+        try {
+            mSelector.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    private static void closeQuietly(Channel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * Stops the discovery thread.
+     */
+    public void stop() {
+        mRunning = false;
+        mSelector.wakeup();
+    }
+
+    /**
+     * Sets the device discovery listener for the client.
+     *
+     * @param listener device discovery listener.
+     */
+    public void setDeviceDiscoveredListener(final DeviceDiscoveredListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Expands targets given as single addresses, host names or CIDR blocks,
+     * such as {@code "10.1.20.0/24"}. For blocks of /30 and larger, the
+     * network and broadcast addresses are left out.
+     *
+     * @param specs target specifications.
+     * @return list of hosts.
+     * @throws IllegalArgumentException if a specification cannot be parsed.
+     */
+    public static List<Inet4Address> parseTargets(List<String> specs) {
+        List<Inet4Address> targets = new ArrayList<Inet4Address>();
+        for (String spec : specs) {
+            spec = spec.trim();
+            if (spec.length() == 0) {
+                continue;
+            }
+            int slash = spec.indexOf('/');
+            try {
+                if (slash < 0) {
+                    targets.add(toInet4(InetAddress.getByName(spec)));
+                    continue;
+                }
+                int prefix = Integer.parseInt(spec.substring(slash + 1));
+                if (prefix < 16 || prefix > 32) {
+                    throw new IllegalArgumentException("Unsupported prefix length: " + spec);
+                }
+                byte[] bytes = toInet4(InetAddress.getByName(spec.substring(0, slash)))
+                        .getAddress();
+                int base = ((bytes[0] & 0xff) << 24) | ((bytes[1] & 0xff) << 16)
+                        | ((bytes[2] & 0xff) << 8) | (bytes[3] & 0xff);
+                int size = 1 << (32 - prefix);
+                base &= -size;
+                int first = size > 2 ? 1 : 0;
+                int last = size > 2 ? size - 2 : size - 1;
+                for (int i = first; i <= last; i++) {
+                    int host = base + i;
+                    targets.add((Inet4Address) InetAddress.getByAddress(new byte[] {
+                            (byte) (host >>> 24), (byte) (host >>> 16), (byte) (host >>> 8),
+                            (byte) host }));
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Bad target: " + spec, e);
+            } catch (UnknownHostException e) {
+                throw new IllegalArgumentException("Bad target: " + spec, e);
+            }
+        }
+        return targets;
+    }
+
+    private static Inet4Address toInet4(InetAddress address) throws UnknownHostException {
+        if (!(address instanceof Inet4Address)) {
+            throw new UnknownHostException("Not an IPv4 address: " + address);
+        }
+        return (Inet4Address) address;
+    }
+
+    /**
+     * A TCP probe in flight.
+     */
+    private static final class TcpProbe {
+        final Inet4Address target;
+        final long deadline;
+
+        TcpProbe(Inet4Address target) {
+            this.target = target;
+            deadline = System.currentTimeMillis() + Constants.integer.unicast_tcp_timeout;
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2012 ENTERTAILION, LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.entertailion.java.anymote.management;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.entertailion.java.anymote.client.AnymoteClientService;
+import com.entertailion.java.anymote.client.AnymoteSender;
+import com.entertailion.java.anymote.client.ClientListener;
+import com.entertailion.java.anymote.connection.TvDevice;
+import com.entertailion.java.anymote.util.Log;
+
+/**
+ * Registers MBeans for the client service, its discovery service and its
+ * connection with the platform MBean server, so that they can be watched
+ * and operated with standard JMX tools such as JConsole.
+ * <p>
+ * The MBeans are named {@code com.entertailion.anymote:type=ClientService},
+ * {@code type=Discovery}, and {@code type=Session,device=<name>} for the
+ * connected device; the session MBean is registered on connection and
+ * unregistered on disconnection.
+ */
+public final class AnymoteManagement {
+    private static final String LOG_TAG = "AnymoteManagement";
+
+    /**
+     * Domain of the MBean names.
+     */
+    public static final String DOMAIN = "com.entertailion.anymote";
+
+    private static AnymoteClientService registeredService;
+    private static SessionTracker sessionTracker;
+
+    private AnymoteManagement() {
+    }
+
+    /**
+     * Registers the MBeans of a client service. Does nothing if they are
+     * registered already.
+     *
+     * @param service the client service.
+     * @return {@code false} if the MBeans could not be registered.
+     */
+    public static synchronized boolean register(AnymoteClientService service) {
+        if (registeredService != null) {
+            return true;
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.registerMBean(new ClientService(service), name("ClientService"));
+            server.registerMBean(new Discovery(service.getTvDiscovery()), name("Discovery"));
+        } catch (JMException e) {
+            Log.e(LOG_TAG, "Could not register MBeans", e);
+            unregisterAll(server);
+            return false;
+        }
+        registeredService = service;
+        sessionTracker = new SessionTracker(service);
+        service.attachClientListener(sessionTracker);
+        AnymoteSender sender = service.getAnymoteSender();
+        if (sender != null) {
+            sessionTracker.onConnected(sender);
+        }
+        return true;
+    }
+
+    /**
+     * Unregisters all MBeans.
+     */
+    public static synchronized void unregister() {
+        if (registeredService == null) {
+            return;
+        }
+        registeredService.detachClientListener(sessionTracker);
+        registeredService = null;
+        sessionTracker = null;
+        unregisterAll(ManagementFactory.getPlatformMBeanServer());
+    }
+
+    private static void unregisterAll(MBeanServer server) {
+        try {
+            for (ObjectName name : server.queryNames(new ObjectName(DOMAIN + ":*"), null)) {
+                server.unregisterMBean(name);
+            }
+        } catch (JMException e) {
+            Log.w(LOG_TAG, "Could not unregister MBeans: " + e.getMessage());
+        }
+    }
+
+    private static ObjectName name(String type) throws JMException {
+        return new ObjectName(DOMAIN + ":type=" + type);
+    }
+
+    /**
+     * @param device a device, or {@code null}.
+     * @return name and address of the device, or {@code null}.
+     */
+    static String describe(TvDevice device) {
+        if (device == null) {
+            return null;
+        }
+        return device.getName() + " (" + device.getAddress().getHostAddress() + ":"
+                + device.getPort() + ")";
+    }
+
+    /**
+     * @param devices devices, or {@code null}.
+     * @return names and addresses of the devices.
+     */
+    static String[] describe(List<TvDevice> devices) {
+        if (devices == null) {
+            return new String[0];
+        }
+        String[] descriptions = new String[devices.size()];
+        for (int i = 0; i < descriptions.length; i++) {
+            descriptions[i] = describe(devices.get(i));
+        }
+        return descriptions;
+    }
+
+    /**
+     * Registers the session MBean of the connected device.
+     */
+    private static class SessionTracker implements ClientListener {
+        private final AnymoteClientService service;
+        private ObjectName sessionName;
+
+        SessionTracker(AnymoteClientService service) {
+            this.service = service;
+        }
+
+        public void attemptToConnect(TvDevice device) {
+        }
+
+        public synchronized void onConnected(AnymoteSender anymoteSender) {
+            TvDevice device = service.getCurrentDevice();
+            if (device == null) {
+                return;
+            }
+            unregisterSession();
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            try {
+                ObjectName name = new ObjectName(DOMAIN + ":type=Session,device="
+                        + ObjectName.quote(device.getName()));
+                server.registerMBean(new Session(service, device, anymoteSender), name);
+                sessionName = name;
+            } catch (JMException e) {
+                Log.e(LOG_TAG, "Could not register session MBean", e);
+            }
+        }
+
+        public synchronized void onDisconnected() {
+            unregisterSession();
+        }
+
+        public synchronized void onConnectionFailed() {
+            unregisterSession();
+        }
+
+        private void unregisterSession() {
+            if (sessionName == null) {
+                return;
+            }
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(sessionName);
+            } catch (JMException e) {
+                Log.w(LOG_TAG, "Could not unregister session MBean: " + e.getMessage());
+            }
+            sessionName = null;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2012 ENTERTAILION, LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.entertailion.java.anymote.management;
+
+import com.entertailion.java.anymote.client.AnymoteClientService;
+import com.entertailion.java.anymote.client.SenderStats;
+
+/**
+ * Exposes the {@link AnymoteClientService} for management.
+ */
+public class ClientService implements ClientServiceMBean {
+    private final AnymoteClientService service;
+
+    /**
+     * Constructor
+     *
+     * @param service the client service.
+     */
+    public ClientService(AnymoteClientService service) {
+        this.service = service;
+    }
+
+    public String getCurrentDevice() {
+        return AnymoteManagement.describe(service.getCurrentDevice());
+    }
+
+    public boolean isConnected() {
+        return service.getAnymoteSender() != null;
+    }
+
+    public String[] getTrackedDevices() {
+        return AnymoteManagement.describe(service.getTrackedDevices());
+    }
+
+    public String[] getWarmDevices() {
+        return AnymoteManagement.describe(service.getWarmDevices());
+    }
+
+    public boolean isStatsEnabled() {
+        return SenderStats.isEnabled();
+    }
+
+    public void setStatsEnabled(boolean enabled) {
+        SenderStats.setEnabled(enabled);
+    }
+
+    public long getTotalSent() {
+        return SenderStats.getAggregate().getSent();
+    }
+
+    public long getTotalDropped() {
+        return SenderStats.getAggregate().getDropped();
+    }
+
+    public long getTotalReconnects() {
+        return SenderStats.getAggregate().getReconnects();
+    }
+
+    public long getTotalAckTimeouts() {
+        return SenderStats.getAggregate().getAckTimeouts();
+    }
+
+    public void reconnect() {
+        service.reconnect();
+    }
+
+    public void disconnect() {
+        service.disconnect();
+    }
+
+    public boolean rescan() {
+        return service.getTvDiscovery().rescan();
+    }
+}
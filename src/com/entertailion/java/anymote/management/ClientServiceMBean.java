@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2012 ENTERTAILION, LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.entertailion.java.anymote.management;
+
+/**
+ * Management interface of the {@link com.entertailion.java.anymote.client.AnymoteClientService}.
+ */
+public interface ClientServiceMBean {
+
+    /**
+     * @return the connected device, or {@code null} if there is none.
+     */
+    String getCurrentDevice();
+
+    /**
+     * @return {@code true} if a device is connected.
+     */
+    boolean isConnected();
+
+    /**
+     * @return devices found by the last device selection.
+     */
+    String[] getTrackedDevices();
+
+    /**
+     * @return devices with a warm connection ready.
+     */
+    String[] getWarmDevices();
+
+    /**
+     * @return {@code true} if send statistics are recorded.
+     */
+    boolean isStatsEnabled();
+
+    /**
+     * @param enabled {@code true} to record send statistics.
+     */
+    void setStatsEnabled(boolean enabled);
+
+    /**
+     * @return messages sent by all sessions.
+     */
+    long getTotalSent();
+
+    /**
+     * @return messages dropped by all sessions.
+     */
+    long getTotalDropped();
+
+    /**
+     * @return connections made to the device connected to last.
+     */
+    long getTotalReconnects();
+
+    /**
+     * @return connections of all sessions given up for lack of acks.
+     */
+    long getTotalAckTimeouts();
+
+    /**
+     * Connects to the current device again.
+     */
+    void reconnect();
+
+    /**
+     * Drops the current connection.
+     */
+    void disconnect();
+
+    /**
+     * Scans for devices, even if the last scan is recent.
+     *
+     * @return {@code false} if there is no network to scan.
+     */
+    boolean rescan();
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2012 ENTERTAILION, LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.entertailion.java.anymote.management;
+
+import com.entertailion.java.anymote.connection.TvDiscoveryService;
+
+/**
+ * Exposes the {@link TvDiscoveryService} for management.
+ */
+public class Discovery implements DiscoveryMBean {
+    private final TvDiscoveryService discovery;
+
+    /**
+     * Constructor
+     *
+     * @param discovery the discovery service.
+     */
+    public Discovery(TvDiscoveryService discovery) {
+        this.discovery = discovery;
+    }
+
+    public String[] getDevices() {
+        return AnymoteManagement.describe(discovery.getRegistry().getDevices());
+    }
+
+    public int getDeviceCount() {
+        return discovery.getRegistry().size();
+    }
+
+    public boolean isScanning() {
+        return discovery.isScanning();
+    }
+
+    public boolean isMdnsEnabled() {
+        return discovery.isMdnsEnabled();
+    }
+
+    public void setMdnsEnabled(boolean enabled) {
+        discovery.setMdnsEnabled(enabled);
+    }
+
+    public long getScanCount() {
+        return discovery.getScanCount();
+    }
+
+    public long getJoinedScanCount() {
+        return discovery.getJoinedScanCount();
+    }
+
+    public long getSnapshotHitCount() {
+        return discovery.getSnapshotHitCount();
+    }
+
+    public long getResponseCount() {
+        return discovery.getResponseCount();
+    }
+
+    public long getProbeCount() {
+        return discovery.getProbeCount();
+    }
+
+    public double getLastScanProbesPerDevice() {
+        return discovery.getLastScanProbesPerDevice();
+    }
+
+    public long getLastScanDuration() {
+        return discovery.getLastScanDuration();
+    }
+
+    public int getLastScanDeviceCount() {
+        return discovery.getLastScanDeviceCount();
+    }
+
+    public boolean rescan() {
+        return discovery.rescan();
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2012 ENTERTAILION, LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.entertailion.java.anymote.management;
+
+/**
+ * Management interface of the
+ * {@link com.entertailion.java.anymote.connection.TvDiscoveryService}.
+ */
+public interface DiscoveryMBean {
+
+    /**
+     * @return devices in the registry.
+     */
+    String[] getDevices();
+
+    /**
+     * @return number of devices in the registry.
+     */
+    int getDeviceCount();
+
+    /**
+     * @return {@code true} while a scan is running.
+     */
+    boolean isScanning();
+
+    /**
+     * @return {@code true} if multicast DNS browsing is enabled.
+     */
+    boolean isMdnsEnabled();
+
+    /**
+     * @param enabled {@code true} to browse by multicast DNS.
+     */
+    void setMdnsEnabled(boolean enabled);
+
+    /**
+     * @return scans started.
+     */
+    long getScanCount();
+
+    /**
+     * @return discovery requests which joined a running scan.
+     */
+    long getJoinedScanCount();
+
+    /**
+     * @return discovery requests answered from the last scan.
+     */
+    long getSnapshotHitCount();
+
+    /**
+     * @return device responses received.
+     */
+    long getResponseCount();
+
+    /**
+     * @return broadcast probes sent.
+     */
+    long getProbeCount();
+
+    /**
+     * @return broadcast probes sent per device found by the last completed
+     *         broadcast scan.
+     */
+    double getLastScanProbesPerDevice();
+
+    /**
+     * @return ms taken by the last completed scan.
+     */
+    long getLastScanDuration();
+
+    /**
+     * @return devices known after the last completed scan.
+     */
+    int getLastScanDeviceCount();
+
+    /**
+     * Scans for devices, even if the last scan is recent.
+     *
+     * @return {@code false} if there is no network to scan.
+     */
+    boolean rescan();
+}
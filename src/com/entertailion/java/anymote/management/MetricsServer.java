@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2012 ENTERTAILION, LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.entertailion.java.anymote.management;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+import com.entertailion.java.anymote.client.AnymoteClientService;
+import com.entertailion.java.anymote.client.SenderStats;
+import com.entertailion.java.anymote.connection.ConnectingTask;
+import com.entertailion.java.anymote.connection.TvDiscoveryService;
+import com.entertailion.java.anymote.util.Histogram;
+import com.entertailion.java.anymote.util.Log;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves the metrics of the client stack in the Prometheus text format, on
+ * the HTTP server built into the JDK.
+ * <p>
+ * The endpoint exports the send counters by message type, bytes written,
+ * connects, reconnects, acks and ack timeouts; histograms of the ping round
+ * trip, queue and send times and TLS handshake durations; and the discovery
+ * statistics. Rates, such as events per second, are left to the scraper.
+ * Send counters and latencies are only recorded while {@link SenderStats}
+ * are enabled, which {@link #start()} does.
+ * <p>
+ * Scrapes are served one at a time. The statistics are summed into an
+ * aggregate, and rendered into a buffer, both kept from one scrape to the
+ * next, so that scraping allocates little beyond the response itself.
+ * <p>
+ * The server listens on the loopback address unless given another one.
+ */
+public class MetricsServer {
+    private static final String LOG_TAG = "MetricsServer";
+
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    /**
+     * Bucket bounds of the exported histograms, in seconds.
+     */
+    private static final String[] BOUNDS = {
+            "0.0001", "0.00025", "0.0005", "0.001", "0.0025", "0.005", "0.01", "0.025", "0.05",
+            "0.1", "0.25", "0.5", "1", "2.5", "5", "10" };
+
+    private static final long[] BOUND_NANOS = new long[BOUNDS.length];
+
+    static {
+        for (int i = 0; i < BOUNDS.length; i++) {
+            BOUND_NANOS[i] = Math.round(Double.parseDouble(BOUNDS[i]) * 1e9);
+        }
+    }
+
+    private final AnymoteClientService service;
+    private final HttpServer server;
+    private final StringBuilder text = new StringBuilder(16384);
+    private byte[] buffer = new byte[16384];
+    private final SenderStats.Aggregate stats = new SenderStats.Aggregate();
+    private final Histogram handshakeTimes = new Histogram();
+
+    /**
+     * Constructor
+     *
+     * @param service the client service.
+     * @param port port to listen on, 0 for any free port.
+     * @throws IOException if the port could not be bound.
+     */
+    public MetricsServer(AnymoteClientService service, int port) throws IOException {
+        this(service, InetAddress.getLoopbackAddress(), port);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param service the client service.
+     * @param address local address to listen on, {@code null} for all.
+     * @param port port to listen on, 0 for any free port.
+     * @throws IOException if the port could not be bound.
+     */
+    public MetricsServer(AnymoteClientService service, InetAddress address, int port)
+            throws IOException {
+        this.service = service;
+        server = HttpServer.create(new InetSocketAddress(address, port), 0);
+        server.createContext("/metrics", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange);
+            }
+        });
+    }
+
+    /**
+     * @return port the server listens on.
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Enables the send statistics and starts serving {@code /metrics}.
+     */
+    public void start() {
+        SenderStats.setEnabled(true);
+        server.start();
+        Log.i(LOG_TAG, "Serving metrics on " + server.getAddress());
+    }
+
+    /**
+     * Stops serving. The send statistics stay enabled.
+     */
+    public void stop() {
+        server.stop(0);
+    }
+
+    private synchronized void serve(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            text.setLength(0);
+            render(text);
+            int length = encode(text);
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(buffer, 0, length);
+            out.close();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Encodes the text, which is ASCII, into the buffer.
+     *
+     * @return number of bytes.
+     */
+    private int encode(StringBuilder text) {
+        int length = text.length();
+        if (buffer.length < length) {
+            buffer = new byte[length * 2];
+        }
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            buffer[i] = (byte) (c < 0x80 ? c : '?');
+        }
+        return length;
+    }
+
+    /**
+     * Renders all metrics. Called by one scrape at a time.
+     */
+    void render(StringBuilder out) {
+        SenderStats.getAggregate(stats);
+        handshakeTimes.reset();
+        ConnectingTask.addHandshakeTimesTo(handshakeTimes);
+
+        header(out, "anymote_sessions", "gauge", "Sender sessions connected to a TV.");
+        sample(out, "anymote_sessions", SenderStats.getSessionCount());
+        header(out, "anymote_connected", "gauge", "1 if a device is connected.");
+        sample(out, "anymote_connected", service.getAnymoteSender() != null ? 1 : 0);
+        header(out, "anymote_stats_enabled", "gauge", "1 if send statistics are recorded.");
+        sample(out, "anymote_stats_enabled", SenderStats.isEnabled() ? 1 : 0);
+
+        header(out, "anymote_messages_enqueued_total", "counter", "Messages queued.");
+        for (int type = 1; type < stats.getTypeCount(); type++) {
+            typed(out, "anymote_messages_enqueued_total", stats.getTypeName(type),
+                    stats.getEnqueued(type));
+        }
+        header(out, "anymote_messages_sent_total", "counter", "Messages written to the socket.");
+        for (int type = 1; type < stats.getTypeCount(); type++) {
+            typed(out, "anymote_messages_sent_total", stats.getTypeName(type),
+                    stats.getSent(type));
+        }
+        header(out, "anymote_messages_dropped_total", "counter",
+                "Messages discarded for lack of a connection.");
+        for (int type = 1; type < stats.getTypeCount(); type++) {
+            typed(out, "anymote_messages_dropped_total", stats.getTypeName(type),
+                    stats.getDropped(type));
+        }
+        header(out, "anymote_messages_coalesced_total", "counter",
+                "Mouse moves and scrolls merged into one still queued.");
+        for (int type = 1; type < stats.getTypeCount(); type++) {
+            typed(out, "anymote_messages_coalesced_total", stats.getTypeName(type),
+                    stats.getCoalesced(type));
+        }
+
+        header(out, "anymote_bytes_written_total", "counter", "Bytes written to the socket.");
+        sample(out, "anymote_bytes_written_total", stats.getBytesWritten());
+        header(out, "anymote_connects_total", "counter", "Connections made.");
+        sample(out, "anymote_connects_total", stats.getConnects());
+        header(out, "anymote_reconnects_total", "counter",
+                "Connections made to the device connected to last.");
+        sample(out, "anymote_reconnects_total", stats.getReconnects());
+        header(out, "anymote_acks_total", "counter", "Acks received.");
+        sample(out, "anymote_acks_total", stats.getAcks());
+        header(out, "anymote_ack_timeouts_total", "counter",
+                "Connections given up for lack of acks.");
+        sample(out, "anymote_ack_timeouts_total", stats.getAckTimeouts());
+
+        histogram(out, "anymote_ack_rtt_seconds", "Time from queueing a ping to its ack.",
+                stats.getAckRtt());
+        histogram(out, "anymote_queue_time_seconds", "Time messages waited in the queue.",
+                stats.getDwellTime());
+        histogram(out, "anymote_send_time_seconds", "Time taken to write a message.",
+                stats.getServiceTime());
+        histogram(out, "anymote_handshake_seconds",
+                "Duration of successful Anymote TLS handshakes, excluding the wait for a permit.",
+                handshakeTimes);
+        header(out, "anymote_handshakes_resumed_total", "counter",
+                "Handshakes which resumed an earlier TLS session.");
+        sample(out, "anymote_handshakes_resumed_total", ConnectingTask.getResumedHandshakeCount());
+
+        TvDiscoveryService discovery = service.getTvDiscovery();
+        header(out, "anymote_discovery_devices", "gauge", "Devices in the registry.");
+        sample(out, "anymote_discovery_devices", discovery.getRegistry().size());
+        header(out, "anymote_discovery_scans_total", "counter", "Scans started.");
+        sample(out, "anymote_discovery_scans_total", discovery.getScanCount());
+        header(out, "anymote_discovery_joined_scans_total", "counter",
+                "Discovery requests which joined a running scan.");
+        sample(out, "anymote_discovery_joined_scans_total", discovery.getJoinedScanCount());
+        header(out, "anymote_discovery_snapshot_hits_total", "counter",
+                "Discovery requests answered from the last scan.");
+        sample(out, "anymote_discovery_snapshot_hits_total", discovery.getSnapshotHitCount());
+        header(out, "anymote_discovery_responses_total", "counter", "Device responses received.");
+        sample(out, "anymote_discovery_responses_total", discovery.getResponseCount());
+        header(out, "anymote_discovery_probes_total", "counter", "Broadcast probes sent.");
+        sample(out, "anymote_discovery_probes_total", discovery.getProbeCount());
+        header(out, "anymote_discovery_last_scan_probes_per_device", "gauge",
+                "Broadcast probes sent per device found by the last completed scan.");
+        out.append("anymote_discovery_last_scan_probes_per_device ")
+                .append(discovery.getLastScanProbesPerDevice()).append('\n');
+        header(out, "anymote_discovery_last_scan_seconds", "gauge",
+                "Duration of the last completed scan.");
+        out.append("anymote_discovery_last_scan_seconds ")
+                .append(discovery.getLastScanDuration() / 1000.0).append('\n');
+        header(out, "anymote_discovery_last_scan_devices", "gauge",
+                "Devices known after the last completed scan.");
+        sample(out, "anymote_discovery_last_scan_devices", discovery.getLastScanDeviceCount());
+    }
+
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, long value) {
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void typed(StringBuilder out, String name, String type, long value) {
+        out.append(name).append("{type=\"").append(type).append("\"} ").append(value)
+                .append('\n');
+    }
+
+    /**
+     * Renders a histogram of ns values in seconds. A bucket of the snapshot
+     * is counted under the first bound not below its upper bound, so counts
+     * may lag by up to one snapshot bucket, 12.5% of the value.
+     */
+    private static void histogram(StringBuilder out, String name, String help,
+            Histogram histogram) {
+        header(out, name, "histogram", help);
+        int bucket = 0;
+        long cumulative = 0;
+        for (int i = 0; i < BOUNDS.length; i++) {
+            while (bucket < Histogram.BUCKETS
+                    && Histogram.getUpperBound(bucket) <= BOUND_NANOS[i]) {
+                cumulative += histogram.getCount(bucket++);
+            }
+            out.append(name).append("_bucket{le=\"").append(BOUNDS[i]).append("\"} ")
+                    .append(cumulative).append('\n');
+        }
+        while (bucket < Histogram.BUCKETS) {
+            cumulative += histogram.getCount(bucket++);
+        }
+        out.append(name).append("_bucket{le=\"+Inf\"} ").append(cumulative).append('\n');
+        out.append(name).append("_sum ").append(histogram.getSum() / 1e9).append('\n');
+        out.append(name).append("_count ").append(cumulative).append('\n');
+    }
+}
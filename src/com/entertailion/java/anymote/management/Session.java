@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2012 ENTERTAILION, LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.entertailion.java.anymote.management;
+
+import com.entertailion.java.anymote.client.AnymoteClientService;
+import com.entertailion.java.anymote.client.AnymoteSender;
+import com.entertailion.java.anymote.client.SenderStats.Snapshot;
+import com.entertailion.java.anymote.connection.TvDevice;
+
+/**
+ * Exposes a connection of the {@link AnymoteClientService} for management.
+ */
+public class Session implements SessionMBean {
+    private final AnymoteClientService service;
+    private final TvDevice device;
+    private final AnymoteSender sender;
+
+    /**
+     * Constructor
+     *
+     * @param service the client service.
+     * @param device the connected device.
+     * @param sender the sender of the connection.
+     */
+    public Session(AnymoteClientService service, TvDevice device, AnymoteSender sender) {
+        this.service = service;
+        this.device = device;
+        this.sender = sender;
+    }
+
+    public String getDevice() {
+        return AnymoteManagement.describe(device);
+    }
+
+    public boolean isConnected() {
+        return sender.isConnected();
+    }
+
+    public int getQueueDepth() {
+        return sender.getQueueDepth();
+    }
+
+    public int getLostAcks() {
+        return sender.getLostAcks();
+    }
+
+    public long getEnqueued() {
+        return snapshot().getEnqueued();
+    }
+
+    public long getSent() {
+        return snapshot().getSent();
+    }
+
+    public long getDropped() {
+        return snapshot().getDropped();
+    }
+
+    public long getCoalesced() {
+        return snapshot().getCoalesced();
+    }
+
+    public long getBytesWritten() {
+        return snapshot().getBytesWritten();
+    }
+
+    public long getReconnects() {
+        return snapshot().getReconnects();
+    }
+
+    public long getAcks() {
+        return snapshot().getAcks();
+    }
+
+    public long getAckTimeouts() {
+        return snapshot().getAckTimeouts();
+    }
+
+    public long getAckRttP50() {
+        return snapshot().getAckRtt().getPercentile(0.5) / 1000;
+    }
+
+    public long getAckRttP99() {
+        return snapshot().getAckRtt().getPercentile(0.99) / 1000;
+    }
+
+    public long getQueueTimeP99() {
+        return snapshot().getDwellTime().getPercentile(0.99) / 1000;
+    }
+
+    public long getSendTimeP99() {
+        return snapshot().getServiceTime().getPercentile(0.99) / 1000;
+    }
+
+    public void reconnect() {
+        if (device.equals(service.getCurrentDevice())) {
+            service.reconnect();
+        } else {
+            service.connectDevice(device);
+        }
+    }
+
+    public void disconnect() {
+        if (sender == service.getAnymoteSender()) {
+            service.disconnect();
+        }
+    }
+
+    private Snapshot snapshot() {
+        return sender.getStats().snapshot();
+    }
+}
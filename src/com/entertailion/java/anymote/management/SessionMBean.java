@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2012 ENTERTAILION, LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.entertailion.java.anymote.management;
+
+/**
+ * Management interface of a connection to a device.
+ * <p>
+ * Counters and latencies are recorded only while send statistics are
+ * enabled; latencies are in microseconds.
+ */
+public interface SessionMBean {
+
+    /**
+     * @return the device of the session.
+     */
+    String getDevice();
+
+    /**
+     * @return {@code true} while the session is connected.
+     */
+    boolean isConnected();
+
+    /**
+     * @return messages waiting to be sent.
+     */
+    int getQueueDepth();
+
+    /**
+     * @return pings sent since the last ack.
+     */
+    int getLostAcks();
+
+    /**
+     * @return messages queued.
+     */
+    long getEnqueued();
+
+    /**
+     * @return messages written to the socket.
+     */
+    long getSent();
+
+    /**
+     * @return messages discarded for lack of a connection.
+     */
+    long getDropped();
+
+    /**
+     * @return messages merged into a mouse move or scroll still queued.
+     */
+    long getCoalesced();
+
+    /**
+     * @return bytes written to the socket.
+     */
+    long getBytesWritten();
+
+    /**
+     * @return 1 if the session replaced one to the same device.
+     */
+    long getReconnects();
+
+    /**
+     * @return acks received.
+     */
+    long getAcks();
+
+    /**
+     * @return connections given up for lack of acks.
+     */
+    long getAckTimeouts();
+
+    /**
+     * @return median ping round trip.
+     */
+    long getAckRttP50();
+
+    /**
+     * @return 99th percentile ping round trip.
+     */
+    long getAckRttP99();
+
+    /**
+     * @return 99th percentile time messages waited in the queue.
+     */
+    long getQueueTimeP99();
+
+    /**
+     * @return 99th percentile time taken to write a message.
+     */
+    long getSendTimeP99();
+
+    /**
+     * Connects to the device again.
+     */
+    void reconnect();
+
+    /**
+     * Drops the connection.
+     */
+    void disconnect();
+}
@@ -0,0 +1,451 @@
+/*
+ * Copyright (C) 2012 ENTERTAILION, LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.entertailion.java.anymote.test;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+
+import com.entertailion.java.anymote.util.Log;
+import com.google.anymote.Key.Action;
+import com.google.anymote.Key.Code;
+import com.google.anymote.Messages.RemoteMessage;
+import com.google.anymote.common.ConnectInfo;
+import com.google.anymote.common.ErrorListener;
+import com.google.anymote.common.RemoteWireAdapter;
+import com.google.anymote.common.RemoteWireAdapter.IMessageListener;
+import com.google.anymote.server.RequestReceiver;
+import com.google.anymote.server.ServerMessageAdapter;
+
+/**
+ * In-process stand-in for the Anymote service of a Google TV, for measuring
+ * the client stack end to end without hardware.
+ * <p>
+ * The server accepts TLS connections on the loopback address and decodes
+ * them with the {@code ServerMessageAdapter} of the Anymote library, which
+ * acknowledges every numbered message, pings included. Each connection is
+ * served by its own thread. Key, mouse, wheel, data, fling and connect
+ * messages are recorded as {@link Event}s with the time they were received.
+ * <p>
+ * Faults can be injected: a latency added before each message is processed
+ * (and therefore acknowledged), stalls during which nothing is read, and
+ * disconnects, either on request or after a number of events.
+ * <p>
+ * Clients trust only servers they have paired with, so pair with a
+ * {@link PairingTestServer} sharing this server's {@link TestServerIdentity}
+ * on the next port first.
+ */
+public class AnymoteTestServer implements Runnable {
+    private static final String LOG_TAG = "AnymoteTestServer";
+
+    /**
+     * Types of recorded events.
+     */
+    public enum EventType {
+        CONNECT, KEY, MOUSE, WHEEL, DATA, FLING
+    }
+
+    /**
+     * A message received from a client.
+     */
+    public static final class Event {
+        private final int connection;
+        private final EventType type;
+        private final long time;
+        private final String detail;
+
+        Event(int connection, EventType type, String detail) {
+            this.connection = connection;
+            this.type = type;
+            this.detail = detail;
+            time = System.nanoTime();
+        }
+
+        /**
+         * @return number of the connection, counting from 1.
+         */
+        public int getConnection() {
+            return connection;
+        }
+
+        /**
+         * @return type of the message.
+         */
+        public EventType getType() {
+            return type;
+        }
+
+        /**
+         * @return {@link System#nanoTime()} when the message was received.
+         */
+        public long getTime() {
+            return time;
+        }
+
+        /**
+         * @return contents of the message, such as {@code "KEYCODE_HOME UP"}.
+         */
+        public String getDetail() {
+            return detail;
+        }
+
+        @Override
+        public String toString() {
+            return connection + " " + type + " " + detail;
+        }
+    }
+
+    private final TestServerIdentity identity;
+    private final SSLServerSocket serverSocket;
+    private final List<Connection> connections;
+    private final List<Event> events;
+    private final AtomicInteger connectionCount;
+    private final AtomicLong pingCount;
+    private volatile boolean running;
+
+    private volatile int latency;
+    private volatile long stalledUntil;
+    private volatile int disconnectAfter;
+    private volatile boolean flingResult = true;
+
+    /**
+     * Constructor
+     *
+     * @param port port to listen on, 0 for any free port.
+     * @throws IOException if the port could not be bound.
+     * @throws GeneralSecurityException if the server identity could not be
+     *             created.
+     */
+    public AnymoteTestServer(int port) throws IOException, GeneralSecurityException {
+        this(port, new TestServerIdentity("AnymoteTestServer"));
+    }
+
+    /**
+     * Constructor
+     *
+     * @param port port to listen on, 0 for any free port.
+     * @param identity certificate and key of the server.
+     * @throws IOException if the port could not be bound.
+     */
+    public AnymoteTestServer(int port, TestServerIdentity identity) throws IOException {
+        this.identity = identity;
+        serverSocket = identity.createServerSocket(port);
+        connections = new CopyOnWriteArrayList<Connection>();
+        events = new ArrayList<Event>();
+        connectionCount = new AtomicInteger();
+        pingCount = new AtomicLong();
+        running = true;
+    }
+
+    /**
+     * @return port the server listens on.
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * @return certificate and key of the server.
+     */
+    public TestServerIdentity getIdentity() {
+        return identity;
+    }
+
+    /**
+     * Delays the processing of every message.
+     *
+     * @param latency delay in ms, 0 for none.
+     */
+    public void setLatency(int latency) {
+        this.latency = latency;
+    }
+
+    /**
+     * Stops reading from all connections for a while. Messages sent meanwhile
+     * are processed when the stall ends.
+     *
+     * @param duration stall in ms.
+     */
+    public void stall(long duration) {
+        stalledUntil = System.currentTimeMillis() + duration;
+    }
+
+    /**
+     * Closes each connection after it delivered a number of events.
+     *
+     * @param count number of events, 0 to never disconnect.
+     */
+    public void setDisconnectAfter(int count) {
+        disconnectAfter = count;
+    }
+
+    /**
+     * Sets the result reported for fling requests.
+     *
+     * @param flingResult {@code true} to report success.
+     */
+    public void setFlingResult(boolean flingResult) {
+        this.flingResult = flingResult;
+    }
+
+    /**
+     * Closes all client connections.
+     */
+    public void disconnectAll() {
+        for (Connection connection : connections) {
+            connection.close();
+        }
+    }
+
+    /**
+     * Starts the server on a daemon thread.
+     *
+     * @return this server.
+     */
+    public AnymoteTestServer start() {
+        Thread thread = new Thread(this, LOG_TAG);
+        thread.setDaemon(true);
+        thread.start();
+        return this;
+    }
+
+    public void run() {
+        Log.i(LOG_TAG, "Listening on port " + getPort());
+        while (running) {
+            try {
+                final SSLSocket socket = (SSLSocket) serverSocket.accept();
+                Thread thread = new Thread(new Runnable() {
+                    public void run() {
+                        open(socket);
+                    }
+                }, LOG_TAG + " connection");
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                // SocketException - stop() was called
+                break;
+            }
+        }
+        Log.i(LOG_TAG, "Exiting server loop");
+    }
+
+    /**
+     * Stops the server and closes all connections.
+     */
+    public void stop() {
+        running = false;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            // ignore
+        }
+        disconnectAll();
+    }
+
+    /**
+     * Handshakes and serves a connection until it is closed.
+     */
+    private void open(SSLSocket socket) {
+        Connection connection = new Connection(connectionCount.incrementAndGet(), socket);
+        final RemoteWireAdapter wire;
+        try {
+            socket.startHandshake();
+            wire = new RemoteWireAdapter(socket.getInputStream(), socket.getOutputStream(),
+                    connection);
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Connection " + connection.id + " failed: " + e.getMessage());
+            connection.close();
+            return;
+        }
+        final ServerMessageAdapter adapter = new ServerMessageAdapter(connection, wire);
+        wire.setMessageListener(new IMessageListener() {
+            public void onMessage(RemoteMessage message) {
+                delay();
+                if (message.hasRequestMessage()
+                        && message.getRequestMessage().getSerializedSize() == 0) {
+                    pingCount.incrementAndGet();
+                }
+                adapter.onMessage(message);
+            }
+        });
+        connections.add(connection);
+        Log.d(LOG_TAG, "Connection " + connection.id + " open");
+        while (running && wire.getNextRemoteMessage()) {
+            // messages are handled by the listener
+        }
+        connection.close();
+    }
+
+    /**
+     * Applies the injected stall and latency before a message is processed.
+     */
+    private void delay() {
+        try {
+            long stall = stalledUntil - System.currentTimeMillis();
+            if (stall > 0) {
+                Thread.sleep(stall);
+            }
+            if (latency > 0) {
+                Thread.sleep(latency);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void record(Connection connection, EventType type, String detail) {
+        Event event = new Event(connection.id, type, detail);
+        synchronized (events) {
+            events.add(event);
+            events.notifyAll();
+        }
+        int count = ++connection.eventCount;
+        if (disconnectAfter > 0 && count >= disconnectAfter) {
+            Log.d(LOG_TAG, "Disconnecting connection " + connection.id + " after " + count
+                    + " events");
+            connection.close();
+        }
+    }
+
+    /**
+     * @return copy of the events received so far.
+     */
+    public List<Event> getEvents() {
+        synchronized (events) {
+            return new ArrayList<Event>(events);
+        }
+    }
+
+    /**
+     * @return number of events received so far.
+     */
+    public int getEventCount() {
+        synchronized (events) {
+            return events.size();
+        }
+    }
+
+    /**
+     * Forgets the events received so far.
+     */
+    public void clearEvents() {
+        synchronized (events) {
+            events.clear();
+        }
+    }
+
+    /**
+     * Waits until a number of events has been received.
+     *
+     * @param count number of events.
+     * @param timeout ms to wait at most.
+     * @return {@code true} if the events arrived in time.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public boolean awaitEvents(int count, long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (events) {
+            while (events.size() < count) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    return false;
+                }
+                events.wait(wait);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * @return number of pings received so far.
+     */
+    public long getPingCount() {
+        return pingCount.get();
+    }
+
+    /**
+     * @return number of connections accepted so far.
+     */
+    public int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    /**
+     * @return number of connections currently open.
+     */
+    public int getOpenConnectionCount() {
+        return connections.size();
+    }
+
+    /**
+     * A client connection, receiving its decoded messages.
+     */
+    private class Connection implements RequestReceiver, ErrorListener {
+        final int id;
+        final Socket socket;
+        int eventCount;
+
+        Connection(int id, Socket socket) {
+            this.id = id;
+            this.socket = socket;
+        }
+
+        public void onKeyEvent(Code keycode, Action action) {
+            record(this, EventType.KEY, keycode + " " + action);
+        }
+
+        public void onMouseEvent(int xDelta, int yDelta) {
+            record(this, EventType.MOUSE, xDelta + " " + yDelta);
+        }
+
+        public void onMouseWheel(int xScroll, int yScroll) {
+            record(this, EventType.WHEEL, xScroll + " " + yScroll);
+        }
+
+        public void onData(String type, String data) {
+            record(this, EventType.DATA, type + " " + data);
+        }
+
+        public void onConnect(ConnectInfo connectInfo) {
+            record(this, EventType.CONNECT, connectInfo.toString());
+        }
+
+        public boolean onFling(String uri) {
+            record(this, EventType.FLING, uri);
+            return flingResult;
+        }
+
+        public void onIoError(String message, Throwable exception) {
+            Log.d(LOG_TAG, "Connection " + id + " closed: " + message);
+            close();
+        }
+
+        void close() {
+            connections.remove(this);
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+}
@@ -0,0 +1,563 @@
+/*
+ * Copyright (C) 2012 ENTERTAILION, LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.entertailion.java.anymote.test;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.entertailion.java.anymote.client.AnymoteSender;
+import com.entertailion.java.anymote.connection.DiscoveryResponseParser;
+import com.entertailion.java.anymote.connection.KeyStoreManager;
+import com.entertailion.java.anymote.util.JavaPlatform;
+import com.entertailion.java.anymote.util.Log;
+import com.entertailion.java.anymote.util.Message;
+import com.entertailion.java.anymote.util.MessageThread;
+
+/**
+ * Micro-benchmarks for the messaging and send hot paths.
+ * <p>
+ * Each benchmark runs {@link #WARMUP_ITERATIONS} untimed iterations and then
+ * {@link #MEASUREMENT_ITERATIONS} timed ones of about {@link #ITERATION_MS}
+ * each, and reports the mean score with its standard deviation, in a table
+ * laid out like JMH's. Bytes allocated per operation are reported where the
+ * JVM can count them, and latency percentiles where a benchmark records
+ * them.
+ * <p>
+ * Usage: {@code Benchmarks [-b baseline] [-o results] [name filter]}. With
+ * {@code -b}, every score is compared to the baseline file and changes for
+ * the worse of more than {@link #REGRESSION_THRESHOLD} are flagged;
+ * {@code -o} writes the results in the same format, for use as the next
+ * baseline. The sender benchmark pairs with a {@link LoopbackTv}, so it keeps
+ * its key store in the working directory like {@link Example} does.
+ */
+public class Benchmarks {
+    private static final String LOG_TAG = "Benchmarks";
+
+    private static final int WARMUP_ITERATIONS = 3;
+    private static final int MEASUREMENT_ITERATIONS = 5;
+    private static final long ITERATION_MS = 1000;
+
+    /**
+     * Relative change of a score that counts as a regression.
+     */
+    private static final double REGRESSION_THRESHOLD = 0.2;
+
+    /**
+     * Receives values so the JIT cannot remove the work producing them.
+     */
+    static volatile int sink;
+
+    /**
+     * A benchmark.
+     */
+    abstract static class Benchmark {
+        final String name;
+
+        /**
+         * {@code true} to report operations per second, {@code false} for
+         * nanoseconds per operation.
+         */
+        final boolean throughput;
+
+        /**
+         * Latencies recorded by the benchmark, in ns, or {@code null}.
+         */
+        LatencyRecorder latencies;
+
+        Benchmark(String name, boolean throughput) {
+            this.name = name;
+            this.throughput = throughput;
+        }
+
+        void setUp() throws Exception {
+        }
+
+        void tearDown() throws Exception {
+        }
+
+        /**
+         * Runs operations until the deadline.
+         *
+         * @param deadline {@link System#nanoTime()} to stop at.
+         * @return number of operations completed.
+         */
+        abstract long iteration(long deadline) throws Exception;
+    }
+
+    /**
+     * A result row.
+     */
+    static final class Row {
+        final String name;
+        final String mode;
+        final double score;
+        final double error;
+        final String unit;
+
+        Row(String name, String mode, double score, double error, String unit) {
+            this.name = name;
+            this.mode = mode;
+            this.score = score;
+            this.error = error;
+            this.unit = unit;
+        }
+
+        String key() {
+            return name + " " + mode;
+        }
+
+        /**
+         * @return {@code true} if a higher score is better.
+         */
+        boolean higherIsBetter() {
+            return "thrpt".equals(mode);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%-44s %6s %3d %14.3f +- %12.3f  %s", name, mode,
+                    MEASUREMENT_ITERATIONS, score, error, unit);
+        }
+
+        static Row parse(String line) {
+            String[] f = line.trim().split("\\s+");
+            if (f.length != 7 || !"+-".equals(f[4])) {
+                return null;
+            }
+            try {
+                return new Row(f[0], f[1], Double.parseDouble(f[3]), Double.parseDouble(f[5]),
+                        f[6]);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Enqueue and dispatch through a {@link MessageThread} from several
+     * producer threads; records enqueue to dispatch latency.
+     */
+    static final class MessageThreadBenchmark extends Benchmark {
+        private final int producers;
+        private final AtomicLong handled = new AtomicLong();
+        private MessageThread consumer;
+
+        MessageThreadBenchmark(int producers) {
+            super("messageThread.dispatch:producers=" + producers, true);
+            this.producers = producers;
+            latencies = new LatencyRecorder(1 << 20);
+        }
+
+        @Override
+        void setUp() {
+            consumer = new MessageThread() {
+                public void handleMessage(Message message) {
+                    long sent = ((long) message.arg1 << 32) | (message.arg2 & 0xffffffffL);
+                    latencies.record(System.nanoTime() - sent);
+                    handled.incrementAndGet();
+                }
+            };
+            consumer.setDaemon(true);
+            consumer.start();
+        }
+
+        @Override
+        long iteration(final long deadline) throws InterruptedException {
+            long start = handled.get();
+            Thread[] threads = new Thread[producers];
+            final AtomicLong sent = new AtomicLong();
+            for (int i = 0; i < producers; i++) {
+                threads[i] = new Thread(new Runnable() {
+                    public void run() {
+                        long count = 0;
+                        while (System.nanoTime() < deadline) {
+                            Message message = consumer.obtainMessage(1);
+                            long now = System.nanoTime();
+                            message.arg1 = (int) (now >>> 32);
+                            message.arg2 = (int) now;
+                            consumer.sendMessage(message);
+                            count++;
+                        }
+                        sent.addAndGet(count);
+                    }
+                });
+                threads[i].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            while (handled.get() - start < sent.get()) {
+                Thread.yield();
+            }
+            return sent.get();
+        }
+
+        @Override
+        void tearDown() {
+            consumer.terminate();
+            consumer.sendEmptyMessage(0);
+        }
+    }
+
+    /**
+     * {@link AnymoteSender#sendMoveRelative(int, int)} through the sender
+     * thread, the Anymote encoder and TLS, until the server has decoded
+     * every event. Moves merged into one still queued count as sent.
+     */
+    static final class SendMoveBenchmark extends Benchmark {
+        private static final int BATCH = 100;
+        private LoopbackTv tv;
+        private AnymoteSender sender;
+
+        SendMoveBenchmark() {
+            super("anymoteSender.sendMoveRelative", true);
+        }
+
+        @Override
+        void setUp() throws Exception {
+            JavaPlatform platform = new JavaPlatform();
+            KeyStoreManager keyStore = new KeyStoreManager();
+            keyStore.initialize(platform);
+            tv = new LoopbackTv("BenchmarkTV");
+            sender = tv.connect(keyStore, platform, 30000);
+        }
+
+        @Override
+        long iteration(long deadline) throws InterruptedException {
+            AnymoteTestServer server = tv.getAnymoteServer();
+            server.clearEvents();
+            int count = 0;
+            int queued = 0;
+            while (System.nanoTime() < deadline) {
+                for (int i = 0; i < BATCH; i++) {
+                    if (sender.sendMoveRelative(i, -i)) {
+                        queued++;
+                    }
+                }
+                count += BATCH;
+            }
+            if (!server.awaitEvents(queued, 30000)) {
+                throw new IllegalStateException("Server received " + server.getEventCount()
+                        + " of " + queued + " events");
+            }
+            return count;
+        }
+
+        @Override
+        void tearDown() {
+            if (sender != null) {
+                sender.destroy();
+            }
+            if (tv != null) {
+                tv.stop();
+            }
+        }
+    }
+
+    /**
+     * {@link Message#obtain()}.
+     */
+    static final class MessageObtainBenchmark extends Benchmark {
+        MessageObtainBenchmark() {
+            super("message.obtain", false);
+        }
+
+        @Override
+        long iteration(long deadline) {
+            long count = 0;
+            int acc = 0;
+            while (System.nanoTime() < deadline) {
+                for (int i = 0; i < 1000; i++) {
+                    Message message = Message.obtain();
+                    message.what = i;
+                    acc += message.what;
+                }
+                count += 1000;
+            }
+            sink = acc;
+            return count;
+        }
+    }
+
+    /**
+     * {@link MessageThread#removeMessage(int)} for a code not in a queue
+     * of the given depth.
+     */
+    static final class RemoveMessageBenchmark extends Benchmark {
+        private final int depth;
+        private MessageThread thread;
+
+        RemoveMessageBenchmark(int depth) {
+            super("messageThread.removeMessage:depth=" + depth, false);
+            this.depth = depth;
+        }
+
+        @Override
+        void setUp() {
+            // never started, so the queue stays full
+            thread = new MessageThread() {
+                public void handleMessage(Message message) {
+                }
+            };
+            for (int i = 0; i < depth; i++) {
+                thread.sendEmptyMessage(1);
+            }
+        }
+
+        @Override
+        long iteration(long deadline) {
+            long count = 0;
+            while (System.nanoTime() < deadline) {
+                for (int i = 0; i < 100; i++) {
+                    thread.removeMessage(2);
+                }
+                count += 100;
+            }
+            return count;
+        }
+
+        @Override
+        void tearDown() {
+            thread.terminate();
+        }
+    }
+
+    /**
+     * {@link DiscoveryResponseParser#parse(byte[], int, int)} of a valid
+     * response.
+     */
+    static final class ParseBenchmark extends Benchmark {
+        private final DiscoveryResponseParser parser = new DiscoveryResponseParser(
+                "_anymote._tcp");
+        private final byte[] response = "_anymote._tcp Living-Room-TV 9551\n".getBytes();
+
+        ParseBenchmark() {
+            super("discovery.parse", false);
+        }
+
+        @Override
+        long iteration(long deadline) {
+            long count = 0;
+            int acc = 0;
+            while (System.nanoTime() < deadline) {
+                for (int i = 0; i < 1000; i++) {
+                    if (parser.parse(response, 0, response.length)) {
+                        acc += parser.getPort();
+                    }
+                }
+                count += 1000;
+            }
+            sink = acc;
+            return count;
+        }
+    }
+
+    static List<Benchmark> createBenchmarks() {
+        List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+        benchmarks.add(new MessageThreadBenchmark(1));
+        benchmarks.add(new MessageThreadBenchmark(4));
+        benchmarks.add(new MessageThreadBenchmark(16));
+        benchmarks.add(new MessageObtainBenchmark());
+        benchmarks.add(new RemoveMessageBenchmark(1));
+        benchmarks.add(new RemoveMessageBenchmark(10));
+        benchmarks.add(new RemoveMessageBenchmark(99));
+        benchmarks.add(new ParseBenchmark());
+        benchmarks.add(new SendMoveBenchmark());
+        return benchmarks;
+    }
+
+    /**
+     * Runs a benchmark and returns its result rows.
+     */
+    static List<Row> run(Benchmark benchmark) throws Exception {
+        benchmark.setUp();
+        try {
+            for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+                benchmark.iteration(System.nanoTime() + ITERATION_MS * 1000000);
+            }
+            double[] scores = new double[MEASUREMENT_ITERATIONS];
+            double[] allocations = new double[MEASUREMENT_ITERATIONS];
+            double[] p50 = new double[MEASUREMENT_ITERATIONS];
+            double[] p99 = new double[MEASUREMENT_ITERATIONS];
+            for (int i = 0; i < MEASUREMENT_ITERATIONS; i++) {
+                if (benchmark.latencies != null) {
+                    benchmark.latencies.reset();
+                }
+                long allocatedBefore = getAllocatedBytes();
+                long start = System.nanoTime();
+                long ops = benchmark.iteration(start + ITERATION_MS * 1000000);
+                long elapsed = System.nanoTime() - start;
+                long allocated = getAllocatedBytes() - allocatedBefore;
+                scores[i] = benchmark.throughput ? ops * 1e9 / elapsed : (double) elapsed / ops;
+                allocations[i] = allocatedBefore < 0 ? -1 : (double) allocated / ops;
+                if (benchmark.latencies != null) {
+                    p50[i] = benchmark.latencies.percentile(0.5) / 1000.0;
+                    p99[i] = benchmark.latencies.percentile(0.99) / 1000.0;
+                }
+            }
+            List<Row> rows = new ArrayList<Row>();
+            rows.add(row(benchmark.name, benchmark.throughput ? "thrpt" : "avgt", scores,
+                    benchmark.throughput ? "ops/s" : "ns/op"));
+            if (allocations[0] >= 0) {
+                rows.add(row(benchmark.name + ":alloc", "avgt", allocations, "B/op"));
+            }
+            if (benchmark.latencies != null) {
+                rows.add(row(benchmark.name + ":p50", "sample", p50, "us"));
+                rows.add(row(benchmark.name + ":p99", "sample", p99, "us"));
+            }
+            return rows;
+        } finally {
+            benchmark.tearDown();
+        }
+    }
+
+    private static Row row(String name, String mode, double[] values, String unit) {
+        double sum = 0;
+        for (double value : values) {
+            sum += value;
+        }
+        double mean = sum / values.length;
+        double squares = 0;
+        for (double value : values) {
+            squares += (value - mean) * (value - mean);
+        }
+        return new Row(name, mode, mean, Math.sqrt(squares / Math.max(1, values.length - 1)),
+                unit);
+    }
+
+    /**
+     * Returns the bytes allocated by all live threads, or -1 if the JVM does
+     * not count them.
+     */
+    static long getAllocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+        if (!sunBean.isThreadAllocatedMemorySupported()
+                || !sunBean.isThreadAllocatedMemoryEnabled()) {
+            return -1;
+        }
+        long total = 0;
+        for (long bytes : sunBean.getThreadAllocatedBytes(bean.getAllThreadIds())) {
+            if (bytes > 0) {
+                total += bytes;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Reads result rows from a file written with {@code -o}.
+     */
+    static Map<String, Row> readResults(String fileName) throws IOException {
+        Map<String, Row> rows = new HashMap<String, Row>();
+        BufferedReader reader = new BufferedReader(new FileReader(fileName));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                Row row = line.startsWith("#") ? null : Row.parse(line);
+                if (row != null) {
+                    rows.put(row.key(), row);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return rows;
+    }
+
+    private static String header() {
+        return String.format(Locale.US, "%-44s %6s %3s %14s   %12s  %s", "Benchmark", "Mode",
+                "Cnt", "Score", "Error", "Units");
+    }
+
+    /**
+     * Runs the benchmarks.
+     *
+     * @param args [-b baseline] [-o results] [name filter]
+     */
+    public static void main(String[] args) throws Exception {
+        String baselineFile = null;
+        String outputFile = null;
+        String filter = null;
+        for (int i = 0; i < args.length; i++) {
+            if ("-b".equals(args[i]) && i + 1 < args.length) {
+                baselineFile = args[++i];
+            } else if ("-o".equals(args[i]) && i + 1 < args.length) {
+                outputFile = args[++i];
+            } else {
+                filter = args[i];
+            }
+        }
+        Map<String, Row> baseline = baselineFile != null ? readResults(baselineFile) : null;
+
+        List<Row> results = new ArrayList<Row>();
+        for (Benchmark benchmark : createBenchmarks()) {
+            if (filter != null && !benchmark.name.contains(filter)) {
+                continue;
+            }
+            Log.i(LOG_TAG, "Running " + benchmark.name);
+            results.addAll(run(benchmark));
+        }
+
+        System.out.println(header());
+        int regressions = 0;
+        for (Row row : results) {
+            String line = row.toString();
+            Row base = baseline != null ? baseline.get(row.key()) : null;
+            if (base != null && base.score != 0) {
+                double change = (row.score - base.score) / base.score;
+                boolean worse = row.higherIsBetter() ? change < -REGRESSION_THRESHOLD
+                        : change > REGRESSION_THRESHOLD;
+                line += String.format(Locale.US, "  %+6.1f%%%s", change * 100,
+                        worse ? "  REGRESSION" : "");
+                if (worse) {
+                    regressions++;
+                }
+            }
+            System.out.println(line);
+        }
+        if (baseline != null) {
+            System.out.println(regressions + " regression(s) against " + baselineFile);
+        }
+        if (outputFile != null) {
+            PrintWriter out = new PrintWriter(new FileWriter(outputFile));
+            try {
+                out.println("# " + System.getProperty("java.vm.name") + " "
+                        + System.getProperty("java.version") + ", "
+                        + Runtime.getRuntime().availableProcessors() + " CPUs");
+                out.println(header());
+                for (Row row : results) {
+                    out.println(row);
+                }
+            } finally {
+                out.close();
+            }
+        }
+        System.exit(regressions > 0 ? 1 : 0);
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2012 ENTERTAILION, LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.entertailion.java.anymote.test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import com.entertailion.java.anymote.client.AnymoteSender;
+import com.entertailion.java.anymote.client.AnymoteSender.SendListener;
+import com.entertailion.java.anymote.connection.ConnectingTask;
+import com.entertailion.java.anymote.connection.KeyStoreManager;
+import com.entertailion.java.anymote.connection.TvDevice;
+import com.entertailion.java.anymote.util.Constants;
+import com.entertailion.java.anymote.util.JavaPlatform;
+
+/**
+ * Benchmark of connection setup, timing each phase of a connection as
+ * {@link ConnectingTask#run()} makes it to a paired device.
+ * <p>
+ * The phases are loading the key store, initializing the SSL context, the
+ * TCP connect, the TLS handshake, {@link AnymoteSender#attemptToConnect},
+ * and the wait for the acknowledgement of the first ping. Cold connections
+ * load a new {@link KeyStoreManager} each time, so they get a new SSL
+ * context and a full handshake; warm ones share one, as reconnects of a
+ * running client do, so they can resume the TLS session. The very first
+ * connection of the JVM is reported on its own.
+ * <p>
+ * Connections go to a {@link LoopbackTv}, after pairing with it once.
+ * <p>
+ * Usage: {@code ConnectBenchmark [-n connections] [-w warmup connections]
+ * [-l server latency ms]}
+ * <p>
+ * The key store is kept in the working directory, as {@link Example} does.
+ */
+public class ConnectBenchmark {
+
+    private static final String[] PHASES = {
+            "KeyStoreManager load", "SSLContext init", "TCP connect", "TLS handshake",
+            "AnymoteSender.attemptToConnect", "first ack" };
+
+    /**
+     * ms to wait at most for the first ack.
+     */
+    private static final long ACK_TIMEOUT = 10000;
+
+    private int connections = 50;
+    private int warmup = 5;
+    private int serverLatency;
+
+    private JavaPlatform platform;
+    private KeyStoreManager keyStore;
+    private LoopbackTv tv;
+    private ConnectingTask task;
+    private AnymoteSender sender;
+
+    private volatile CountDownLatch firstAck;
+    private volatile long firstAckTime;
+    private int resumed;
+
+    /**
+     * Timings of one variant, one recorder per phase.
+     */
+    private static class Variant {
+        final LatencyRecorder[] phases = new LatencyRecorder[PHASES.length + 1];
+
+        Variant() {
+            for (int i = 0; i < phases.length; i++) {
+                phases[i] = new LatencyRecorder(Integer.MAX_VALUE);
+            }
+        }
+
+        void record(long[] times) {
+            long total = 0;
+            for (int i = 0; i < times.length; i++) {
+                phases[i].record(times[i]);
+                total += times[i];
+            }
+            phases[PHASES.length].record(total);
+        }
+    }
+
+    private void parse(String[] args) {
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            if ("-n".equals(args[i])) {
+                connections = Integer.parseInt(value);
+            } else if ("-w".equals(args[i])) {
+                warmup = Integer.parseInt(value);
+            } else if ("-l".equals(args[i])) {
+                serverLatency = Integer.parseInt(value);
+            } else {
+                throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+    }
+
+    private void run() throws Exception {
+        platform = new JavaPlatform();
+        keyStore = new KeyStoreManager();
+        keyStore.initialize(platform);
+        tv = new LoopbackTv("ConnectTV");
+        // pair, so that the key store trusts the device
+        tv.connect(keyStore, platform, 30000).destroy();
+        tv.getAnymoteServer().setLatency(serverLatency);
+
+        task = new ConnectingTask(tv.getDevice(), keyStore, platform);
+        sender = new AnymoteSender(task);
+        sender.setSendListener(new SendListener() {
+            public void onMessageSent(long enqueuedAt) {
+            }
+
+            public void onPingAcked(long enqueuedAt) {
+                CountDownLatch latch = firstAck;
+                if (latch != null && latch.getCount() > 0) {
+                    firstAckTime = System.nanoTime();
+                    latch.countDown();
+                }
+            }
+        });
+
+        Variant first = new Variant();
+        first.record(connect(true));
+        Variant cold = measure(true);
+        int coldResumed = resumed;
+        Variant warm = measure(false);
+        int warmResumed = resumed;
+
+        System.out.println(String.format(Locale.US,
+                "%d connections per variant after %d warmup, server latency %d ms", connections,
+                warmup, serverLatency));
+        System.out.println(String.format(Locale.US, "%-32s %10s %10s %10s %10s %10s", "phase (ms)",
+                "first", "cold p50", "cold p99", "warm p50", "warm p99"));
+        for (int i = 0; i <= PHASES.length; i++) {
+            System.out.println(String.format(Locale.US,
+                    "%-32s %10.3f %10.3f %10.3f %10.3f %10.3f", i < PHASES.length ? PHASES[i]
+                            : "total", first.phases[i].percentile(0.5) / 1e6,
+                    cold.phases[i].percentile(0.5) / 1e6, cold.phases[i].percentile(0.99) / 1e6,
+                    warm.phases[i].percentile(0.5) / 1e6, warm.phases[i].percentile(0.99) / 1e6));
+        }
+        System.out.println(String.format(Locale.US, "resumed TLS sessions: cold %d/%d, warm %d/%d",
+                coldResumed, connections, warmResumed, connections));
+
+        sender.destroy();
+        task.disconnect();
+        tv.stop();
+    }
+
+    /**
+     * Times the connections of a variant, after its warmup.
+     */
+    private Variant measure(boolean cold) throws Exception {
+        for (int i = 0; i < warmup; i++) {
+            connect(cold);
+        }
+        resumed = 0;
+        Variant variant = new Variant();
+        for (int i = 0; i < connections; i++) {
+            variant.record(connect(cold));
+        }
+        return variant;
+    }
+
+    /**
+     * Connects and disconnects once, the way {@link ConnectingTask} connects.
+     *
+     * @param cold {@code true} to load a new key store.
+     * @return duration of each phase, in ns.
+     */
+    private long[] connect(boolean cold) throws Exception {
+        long[] times = new long[PHASES.length];
+        TvDevice device = tv.getDevice();
+
+        long start = System.nanoTime();
+        KeyStoreManager manager = keyStore;
+        if (cold) {
+            manager = new KeyStoreManager();
+            manager.initialize(platform);
+        }
+        long loaded = System.nanoTime();
+        times[0] = loaded - start;
+
+        SSLContext sslContext = manager.getSslContext();
+        SSLSocketFactory factory = sslContext.getSocketFactory();
+        long initialized = System.nanoTime();
+        times[1] = initialized - loaded;
+
+        Socket socket = new Socket();
+        socket.connect(new InetSocketAddress(device.getAddress(), device.getPort()),
+                Constants.integer.connect_timeout);
+        long connected = System.nanoTime();
+        times[2] = connected - initialized;
+
+        SSLSocket sslsock = (SSLSocket) factory.createSocket(socket, device.getAddress()
+                .getHostAddress(), device.getPort(), true);
+        try {
+            sslsock.setUseClientMode(true);
+            sslsock.setKeepAlive(true);
+            sslsock.setTcpNoDelay(true);
+            sslsock.setSoTimeout(Constants.integer.handshake_timeout);
+            long handshakeStart = System.currentTimeMillis();
+            sslsock.startHandshake();
+            sslsock.setSoTimeout(0);
+            long handshaken = System.nanoTime();
+            times[3] = handshaken - connected;
+            if (sslsock.getSession().getCreationTime() < handshakeStart) {
+                resumed++;
+            }
+
+            firstAck = new CountDownLatch(1);
+            if (!sender.attemptToConnect(sslsock)) {
+                throw new IOException("Could not start sender");
+            }
+            long started = System.nanoTime();
+            times[4] = started - handshaken;
+
+            if (!firstAck.await(ACK_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                throw new IOException("No ack received");
+            }
+            times[5] = firstAckTime - started;
+        } finally {
+            sender.disconnect();
+            sslsock.close();
+        }
+        return times;
+    }
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args see the class description.
+     */
+    public static void main(String[] args) throws Exception {
+        ConnectBenchmark benchmark = new ConnectBenchmark();
+        benchmark.parse(args);
+        benchmark.run();
+        System.exit(0);
+    }
+}
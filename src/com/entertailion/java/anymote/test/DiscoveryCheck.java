@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2012 ENTERTAILION, LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.entertailion.java.anymote.test;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.entertailion.java.anymote.connection.MultiInterfaceDiscoveryClient.Subnet;
+import com.entertailion.java.anymote.connection.TvDevice;
+import com.entertailion.java.anymote.connection.TvDiscoveryService;
+import com.entertailion.java.anymote.connection.TvDiscoveryService.DiscoveryListener;
+import com.entertailion.java.anymote.util.Constants;
+import com.entertailion.java.anymote.util.JavaPlatform;
+
+/**
+ * Checks {@link TvDiscoveryService} scans against {@link DiscoveryResponder}s,
+ * one on {@code 127.0.0.1} and one on {@code 127.0.0.2}, whose devices share
+ * their names:
+ * <ul>
+ * <li>{@code discoverTvs(count, timeout)} returns as soon as all devices
+ * answered, before the scan ends;</li>
+ * <li>devices with the same name at different addresses are all kept, and
+ * each is added once however many probes it answers;</li>
+ * <li>a request that joins a scan after the devices answered gets them
+ * without waiting for further responses;</li>
+ * <li>the probes per device of the scan are reported.</li>
+ * </ul>
+ * <p>
+ * Usage: {@code DiscoveryCheck [-n devices per responder] [-d max delay ms]}
+ * <p>
+ * Run it from an empty directory: the service caches the devices it finds in
+ * the working directory.
+ */
+public class DiscoveryCheck {
+
+    private static final String SERVICE_TYPE = "_anymote._tcp";
+
+    /**
+     * Time a joined scan may take to hand over the devices already found.
+     */
+    private static final int JOIN_MS = 500;
+
+    private int devices = 3;
+    private int maxDelay = 100;
+    private int failures;
+
+    private void parse(String[] args) {
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if ("-n".equals(args[i])) {
+                devices = Integer.parseInt(args[i + 1]);
+            } else if ("-d".equals(args[i])) {
+                maxDelay = Integer.parseInt(args[i + 1]);
+            } else {
+                throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+    }
+
+    private void run() throws Exception {
+        Inet4Address first = (Inet4Address) InetAddress.getByName("127.0.0.1");
+        Inet4Address second = (Inet4Address) InetAddress.getByName("127.0.0.2");
+        DiscoveryResponder one = new DiscoveryResponder(first, 0, SERVICE_TYPE, devices);
+        DiscoveryResponder two = new DiscoveryResponder(second, one.getPort(), SERVICE_TYPE,
+                devices);
+        one.setDelay(0, maxDelay);
+        two.setDelay(0, maxDelay);
+        one.start();
+        two.start();
+        int expected = 2 * devices;
+
+        TvDiscoveryService discovery = TvDiscoveryService.getInstance(new JavaPlatform());
+        final AtomicInteger added = new AtomicInteger();
+        final AtomicInteger updated = new AtomicInteger();
+        discovery.addDiscoveryListener(new DiscoveryListener() {
+            public void onDeviceAdded(TvDevice device) {
+                added.incrementAndGet();
+            }
+
+            public void onDeviceUpdated(TvDevice device) {
+                updated.incrementAndGet();
+            }
+
+            public void onDeviceLost(TvDevice device) {
+            }
+
+            public void onDiscoveryComplete() {
+            }
+        });
+        try {
+            // a scan revalidating cached devices probes the host's subnets
+            awaitScanEnd(discovery);
+            List<Subnet> subnets = new ArrayList<Subnet>();
+            subnets.add(new Subnet("lo", first, first));
+            subnets.add(new Subnet("lo", first, second));
+            discovery.setBroadcastTargets(subnets, one.getPort());
+
+            long start = System.currentTimeMillis();
+            List<TvDevice> found = discovery.discoverTvs(expected, Constants.integer.broadcast_timeout);
+            long elapsed = System.currentTimeMillis() - start;
+            System.out.println("first " + expected + " devices in " + elapsed + " ms");
+            expect("all devices are found", found != null && found.size() == expected);
+            expect("devices are returned before the scan ends",
+                    elapsed < Constants.integer.broadcast_timeout);
+
+            awaitScanEnd(discovery);
+            System.out.println("responders: " + one + "; " + two);
+            expect("devices sharing a name at different addresses are kept apart",
+                    discovery.getRegistry().size() == expected);
+            expect("each device is added once", added.get() == expected && updated.get() == 0);
+            expect("probes per device are reported", discovery.getProbeCount() > 0
+                    && discovery.getLastScanProbesPerDevice() > 0);
+
+            discovery.rescan();
+            Thread.sleep(maxDelay + JOIN_MS);
+            start = System.currentTimeMillis();
+            found = discovery.discoverTvs(expected, Constants.integer.broadcast_timeout);
+            elapsed = System.currentTimeMillis() - start;
+            System.out.println("joined scan returned " + (found != null ? found.size() : 0)
+                    + " devices in " + elapsed + " ms");
+            expect("a late request gets the devices the scan already found",
+                    found != null && found.size() == expected && elapsed < JOIN_MS);
+            awaitScanEnd(discovery);
+        } finally {
+            discovery.setBroadcastTargets(null, 0);
+            one.stop();
+            two.stop();
+        }
+    }
+
+    private static void awaitScanEnd(TvDiscoveryService discovery) throws InterruptedException {
+        while (discovery.isScanning()) {
+            Thread.sleep(50);
+        }
+    }
+
+    private void expect(String check, boolean passed) {
+        System.out.println((passed ? "ok      " : "FAILED  ") + check);
+        if (!passed) {
+            failures++;
+        }
+    }
+
+    /**
+     * Runs the checks; exits with 1 if any failed.
+     *
+     * @param args see the class description.
+     */
+    public static void main(String[] args) throws Exception {
+        DiscoveryCheck check = new DiscoveryCheck();
+        check.parse(args);
+        check.run();
+        System.out.println(check.failures == 0 ? "PASSED" : "FAILED: " + check.failures
+                + " checks");
+        System.exit(check.failures == 0 ? 0 : 1);
+    }
+}
@@ -0,0 +1,359 @@
+/*
+ * Copyright (C) 2012 ENTERTAILION, LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.entertailion.java.anymote.test;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Random;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.entertailion.java.anymote.util.Log;
+
+/**
+ * Stand-in for Google TV devices answering discovery probes, for testing and
+ * benchmarking discovery without real devices.
+ * <p>
+ * The responder listens on the loopback address, or any other given one, and
+ * answers every
+ * {@code "discover <service type> <port>"} probe for the expected service
+ * type with one response per simulated device. Device {@code i} is named
+ * {@code "<prefix><i>"} and advertises port {@code basePort + i}. Each
+ * response can be delayed, dropped or replaced by a malformed packet; all
+ * random choices come from a seeded generator so runs can be repeated.
+ * <p>
+ * Point a {@code BroadcastDiscoveryClient} at {@code 127.0.0.1} and
+ * {@link #getPort()} to use it, or pass a loopback subnet and that port to
+ * {@code TvDiscoveryService.setBroadcastTargets}. Several responders can
+ * share a port on different loopback addresses, such as {@code 127.0.0.2}.
+ */
+public class DiscoveryResponder implements Runnable {
+    private static final String LOG_TAG = "DiscoveryResponder";
+
+    /**
+     * Port Google TV devices answer probes on.
+     */
+    public static final int DEFAULT_PORT = 9101;
+
+    private static final String COMMAND_DISCOVER = "discover";
+
+    private final DatagramSocket socket;
+    private final String serviceType;
+    private final int deviceCount;
+    private final Timer timer;
+    private final Random random;
+    private volatile boolean running;
+
+    private String namePrefix = "SimulatedTV-";
+    private int basePort = 9551;
+    private int minDelay;
+    private int maxDelay;
+    private double lossRate;
+    private double malformedRate;
+
+    private final AtomicLong probes = new AtomicLong();
+    private final AtomicLong responses = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong malformed = new AtomicLong();
+
+    /**
+     * Constructor
+     *
+     * @param port UDP port to listen on, 0 for any free port.
+     * @param serviceType service type to answer for, such as
+     *            {@code "_anymote._tcp"}.
+     * @param deviceCount number of simulated devices.
+     * @throws IOException if the port cannot be bound.
+     */
+    public DiscoveryResponder(int port, String serviceType, int deviceCount) throws IOException {
+        this(InetAddress.getByName("127.0.0.1"), port, serviceType, deviceCount);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param address local address to listen on.
+     * @param port UDP port to listen on, 0 for any free port.
+     * @param serviceType service type to answer for, such as
+     *            {@code "_anymote._tcp"}.
+     * @param deviceCount number of simulated devices.
+     * @throws IOException if the port cannot be bound.
+     */
+    public DiscoveryResponder(InetAddress address, int port, String serviceType, int deviceCount)
+            throws IOException {
+        this.serviceType = serviceType;
+        this.deviceCount = deviceCount;
+        socket = new DatagramSocket(new InetSocketAddress(address, port));
+        timer = new Timer("DiscoveryResponder", true);
+        random = new Random(0);
+        running = true;
+    }
+
+    /**
+     * Sets the name prefix of the simulated devices.
+     *
+     * @param namePrefix name prefix, must not contain white space.
+     */
+    public void setNamePrefix(String namePrefix) {
+        this.namePrefix = namePrefix;
+    }
+
+    /**
+     * Sets the port advertised by the first device; the others follow.
+     *
+     * @param basePort port of device 0.
+     */
+    public void setBasePort(int basePort) {
+        this.basePort = basePort;
+    }
+
+    /**
+     * Delays each response by a random time in the given range.
+     *
+     * @param minDelay shortest delay in ms.
+     * @param maxDelay longest delay in ms.
+     */
+    public void setDelay(int minDelay, int maxDelay) {
+        this.minDelay = minDelay;
+        this.maxDelay = Math.max(minDelay, maxDelay);
+    }
+
+    /**
+     * Drops responses at random.
+     *
+     * @param lossRate fraction of responses not sent, 0 to 1.
+     */
+    public void setLossRate(double lossRate) {
+        this.lossRate = lossRate;
+    }
+
+    /**
+     * Sends malformed responses at random.
+     *
+     * @param malformedRate fraction of responses replaced by a malformed
+     *            packet, 0 to 1.
+     */
+    public void setMalformedRate(double malformedRate) {
+        this.malformedRate = malformedRate;
+    }
+
+    /**
+     * Reseeds the random generator.
+     *
+     * @param seed seed.
+     */
+    public synchronized void setSeed(long seed) {
+        random.setSeed(seed);
+    }
+
+    /**
+     * @return port the responder listens on.
+     */
+    public int getPort() {
+        return socket.getLocalPort();
+    }
+
+    /**
+     * Starts the responder on a daemon thread.
+     *
+     * @return this responder.
+     */
+    public DiscoveryResponder start() {
+        Thread thread = new Thread(this, LOG_TAG);
+        thread.setDaemon(true);
+        thread.start();
+        return this;
+    }
+
+    public void run() {
+        Log.i(LOG_TAG, "Answering for " + deviceCount + " devices on port " + getPort());
+        byte[] buffer = new byte[256];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        while (running) {
+            try {
+                packet.setLength(buffer.length);
+                socket.receive(packet);
+                handleProbe(new String(packet.getData(), packet.getOffset(), packet.getLength(),
+                        "UTF-8"), packet.getAddress());
+            } catch (IOException e) {
+                // SocketException - stop() was called
+                break;
+            }
+        }
+        timer.cancel();
+        Log.i(LOG_TAG, "Exiting responder loop: " + this);
+    }
+
+    /**
+     * Stops the responder.
+     */
+    public void stop() {
+        running = false;
+        socket.close();
+        timer.cancel();
+    }
+
+    private void handleProbe(String probe, InetAddress sender) {
+        String[] tokens = probe.trim().split("\\s+");
+        if (tokens.length != 3 || !COMMAND_DISCOVER.equals(tokens[0])
+                || !serviceType.equals(tokens[1])) {
+            Log.v(LOG_TAG, "Ignoring probe: " + probe.trim());
+            return;
+        }
+        int replyPort;
+        try {
+            replyPort = Integer.parseInt(tokens[2]);
+        } catch (NumberFormatException e) {
+            Log.v(LOG_TAG, "Ignoring probe: " + probe.trim());
+            return;
+        }
+        probes.incrementAndGet();
+        SocketAddress target = new InetSocketAddress(sender, replyPort);
+        for (int i = 0; i < deviceCount; i++) {
+            respond(i, target);
+        }
+    }
+
+    /**
+     * Sends, delays, drops or garbles the response of one device.
+     */
+    private synchronized void respond(int device, final SocketAddress target) {
+        if (random.nextDouble() < lossRate) {
+            dropped.incrementAndGet();
+            return;
+        }
+        final byte[] response;
+        if (random.nextDouble() < malformedRate) {
+            response = makeMalformedResponse(device);
+            malformed.incrementAndGet();
+        } else {
+            response = makeResponse(device);
+        }
+        int delay = minDelay + (maxDelay > minDelay ? random.nextInt(maxDelay - minDelay + 1) : 0);
+        if (delay == 0) {
+            send(response, target);
+            return;
+        }
+        try {
+            timer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    send(response, target);
+                }
+            }, delay);
+        } catch (IllegalStateException e) {
+            // stopped
+        }
+    }
+
+    private void send(byte[] response, SocketAddress target) {
+        try {
+            socket.send(new DatagramPacket(response, response.length, target));
+            responses.incrementAndGet();
+        } catch (IOException e) {
+            if (running) {
+                Log.w(LOG_TAG, "Could not send response", e);
+            }
+        }
+    }
+
+    private byte[] makeResponse(int device) {
+        return toBytes(serviceType + " " + namePrefix + device + " " + (basePort + device) + "\n");
+    }
+
+    private byte[] makeMalformedResponse(int device) {
+        switch (random.nextInt(5)) {
+            case 0:
+                return new byte[0];
+            case 1:
+                return toBytes(serviceType + " " + namePrefix + device);
+            case 2:
+                return toBytes(serviceType + " " + namePrefix + device + " 99999");
+            case 3:
+                return toBytes("_other._tcp " + namePrefix + device + " " + (basePort + device));
+            default:
+                byte[] garbage = new byte[1 + random.nextInt(64)];
+                random.nextBytes(garbage);
+                return garbage;
+        }
+    }
+
+    private static byte[] toBytes(String message) {
+        try {
+            return message.getBytes("UTF-8");
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return number of valid probes received.
+     */
+    public long getProbeCount() {
+        return probes.get();
+    }
+
+    /**
+     * @return number of responses sent, including malformed ones.
+     */
+    public long getResponseCount() {
+        return responses.get();
+    }
+
+    /**
+     * @return number of responses dropped.
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * @return number of malformed responses.
+     */
+    public long getMalformedCount() {
+        return malformed.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d probes, %d responses, %d dropped, %d malformed",
+                probes.get(), responses.get(), dropped.get(), malformed.get());
+    }
+
+    /**
+     * Runs a responder until killed.
+     *
+     * @param args [devices [port [loss rate [malformed rate [max delay ms]]]]]
+     */
+    public static void main(String[] args) throws Exception {
+        int devices = args.length > 0 ? Integer.parseInt(args[0]) : 1;
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_PORT;
+        DiscoveryResponder responder = new DiscoveryResponder(port, "_anymote._tcp", devices);
+        if (args.length > 2) {
+            responder.setLossRate(Double.parseDouble(args[2]));
+        }
+        if (args.length > 3) {
+            responder.setMalformedRate(Double.parseDouble(args[3]));
+        }
+        if (args.length > 4) {
+            responder.setDelay(0, Integer.parseInt(args[4]));
+        }
+        responder.run();
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2012 ENTERTAILION, LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.entertailion.java.anymote.test;
+
+import java.util.Arrays;
+
+/**
+ * Records latency samples for percentile reporting. Samples beyond the
+ * capacity are counted but not kept.
+ * <p>
+ * Not thread-safe: each recorder must have a single writer, and be read
+ * only once writing has stopped.
+ */
+class LatencyRecorder {
+    private long[] samples;
+    private int size;
+    private long count;
+    private final int capacity;
+
+    /**
+     * Constructor
+     *
+     * @param capacity maximum number of samples kept.
+     */
+    LatencyRecorder(int capacity) {
+        this.capacity = capacity;
+        samples = new long[Math.min(capacity, 1024)];
+    }
+
+    /**
+     * Records a latency.
+     *
+     * @param nanos latency in ns.
+     */
+    void record(long nanos) {
+        count++;
+        if (size == samples.length) {
+            if (size == capacity) {
+                return;
+            }
+            samples = Arrays.copyOf(samples, Math.min(capacity, size * 2));
+        }
+        samples[size++] = nanos;
+    }
+
+    /**
+     * Adds the samples of another recorder.
+     *
+     * @param other recorder to add.
+     */
+    void add(LatencyRecorder other) {
+        for (int i = 0; i < other.size; i++) {
+            record(other.samples[i]);
+        }
+        count += other.count - other.size;
+    }
+
+    void reset() {
+        size = 0;
+        count = 0;
+    }
+
+    /**
+     * @return number of latencies recorded.
+     */
+    long getCount() {
+        return count;
+    }
+
+    /**
+     * @param fraction percentile, such as 0.99.
+     * @return latency at the percentile, in ns, or 0 if none was recorded.
+     */
+    long percentile(double fraction) {
+        if (size == 0) {
+            return 0;
+        }
+        long[] sorted = Arrays.copyOf(samples, size);
+        Arrays.sort(sorted);
+        return sorted[Math.min(size - 1, (int) (fraction * size))];
+    }
+}
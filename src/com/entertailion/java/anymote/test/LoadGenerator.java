@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2012 ENTERTAILION, LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.entertailion.java.anymote.test;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+import com.entertailion.java.anymote.client.AnymoteSender;
+import com.entertailion.java.anymote.client.AnymoteSender.SendListener;
+import com.entertailion.java.anymote.client.SenderStats;
+import com.entertailion.java.anymote.connection.KeyStoreManager;
+import com.entertailion.java.anymote.util.JavaPlatform;
+import com.google.anymote.Key.Action;
+import com.google.anymote.Key.Code;
+
+/**
+ * Load generator measuring input latency through the client stack.
+ * <p>
+ * Connects N sessions to a {@link LoopbackTv} and has each send M events per
+ * second, a mix of key, mouse move and data messages, paced at fixed
+ * intervals whether or not earlier events have gone out. Mouse moves made
+ * while one is still queued are merged into it. A ping is sent
+ * after every few events. It reports percentiles of the time from
+ * enqueueing an event to its write to the socket, and from enqueueing a
+ * ping to its acknowledgement, with the throughput reached and the garbage
+ * collection and allocation of the run.
+ * <p>
+ * Usage: {@code LoadGenerator [-n sessions] [-r events/s per session]
+ * [-d seconds] [-m key:mouse:data] [-p events per ping] [-l server latency ms]
+ * [-i 1]}. With {@code -i 1}, {@link SenderStats} are recorded during the
+ * run and printed for all sessions.
+ * <p>
+ * The key store is kept in the working directory, as {@link Example} does.
+ */
+public class LoadGenerator {
+
+    private int sessions = 4;
+    private int rate = 200;
+    private int duration = 10;
+    private int keyWeight = 30;
+    private int mouseWeight = 60;
+    private int dataWeight = 10;
+    private int pingInterval = 50;
+    private int serverLatency;
+    private boolean instrumented;
+
+    /**
+     * A client session and its measurements.
+     */
+    private class Session implements SendListener, Runnable {
+        final AnymoteSender sender;
+        final LatencyRecorder wire = new LatencyRecorder(1 << 20);
+        final LatencyRecorder ack = new LatencyRecorder(1 << 16);
+        final Random random;
+        long sent;
+        long merged;
+        long deadline;
+
+        Session(AnymoteSender sender, long seed) {
+            this.sender = sender;
+            random = new Random(seed);
+        }
+
+        public void onMessageSent(long enqueuedAt) {
+            wire.record(System.nanoTime() - enqueuedAt);
+        }
+
+        public void onPingAcked(long enqueuedAt) {
+            ack.record(System.nanoTime() - enqueuedAt);
+        }
+
+        public void run() {
+            long interval = 1000000000L / rate;
+            long next = System.nanoTime();
+            int total = keyWeight + mouseWeight + dataWeight;
+            while (next < deadline) {
+                long wait = next - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+                int pick = random.nextInt(total);
+                if (pick < keyWeight) {
+                    sender.sendKey(Code.KEYCODE_DPAD_DOWN, (sent & 1) == 0 ? Action.DOWN
+                            : Action.UP);
+                } else if (pick < keyWeight + mouseWeight) {
+                    if (!sender.sendMoveRelative(random.nextInt(21) - 10,
+                            random.nextInt(21) - 10)) {
+                        merged++;
+                    }
+                } else {
+                    sender.sendData("load " + sent);
+                }
+                sent++;
+                if (pingInterval > 0 && sent % pingInterval == 0) {
+                    sender.sendPing();
+                }
+                next += interval;
+            }
+        }
+    }
+
+    private void parse(String[] args) {
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            if ("-n".equals(args[i])) {
+                sessions = Integer.parseInt(value);
+            } else if ("-r".equals(args[i])) {
+                rate = Integer.parseInt(value);
+            } else if ("-d".equals(args[i])) {
+                duration = Integer.parseInt(value);
+            } else if ("-m".equals(args[i])) {
+                String[] weights = value.split(":");
+                keyWeight = Integer.parseInt(weights[0]);
+                mouseWeight = Integer.parseInt(weights[1]);
+                dataWeight = Integer.parseInt(weights[2]);
+            } else if ("-p".equals(args[i])) {
+                pingInterval = Integer.parseInt(value);
+            } else if ("-l".equals(args[i])) {
+                serverLatency = Integer.parseInt(value);
+            } else if ("-i".equals(args[i])) {
+                instrumented = Integer.parseInt(value) != 0;
+            } else {
+                throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+    }
+
+    private void run() throws Exception {
+        JavaPlatform platform = new JavaPlatform();
+        KeyStoreManager keyStore = new KeyStoreManager();
+        keyStore.initialize(platform);
+        LoopbackTv tv = new LoopbackTv("LoadTV");
+        tv.getAnymoteServer().setLatency(serverLatency);
+
+        SenderStats.setEnabled(instrumented);
+        List<Session> list = new ArrayList<Session>();
+        for (int i = 0; i < sessions; i++) {
+            Session session = new Session(tv.connect(keyStore, platform, 30000), i);
+            session.sender.setSendListener(session);
+            list.add(session);
+        }
+        // each session starts with a connect message
+        tv.getAnymoteServer().awaitEvents(sessions, 30000);
+        tv.getAnymoteServer().clearEvents();
+        System.out.println(String.format(Locale.US,
+                "%d sessions x %d events/s for %d s, mix key:mouse:data %d:%d:%d, "
+                        + "ping every %d events, server latency %d ms", sessions, rate,
+                duration, keyWeight, mouseWeight, dataWeight, pingInterval, serverLatency));
+
+        long gcCount = getGcCount();
+        long gcTime = getGcTime();
+        long allocated = Benchmarks.getAllocatedBytes();
+        long start = System.nanoTime();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (Session session : list) {
+            session.deadline = start + duration * 1000000000L;
+            Thread thread = new Thread(session, "LoadGenerator");
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long events = 0;
+        long merged = 0;
+        for (Session session : list) {
+            events += session.sent;
+            merged += session.merged;
+        }
+        boolean drained = tv.getAnymoteServer().awaitEvents((int) (events - merged), 30000);
+        long elapsed = System.nanoTime() - start;
+        // let the last pings be acknowledged
+        Thread.sleep(200);
+        long allocatedAfter = Benchmarks.getAllocatedBytes();
+
+        LatencyRecorder wire = new LatencyRecorder(Integer.MAX_VALUE);
+        LatencyRecorder ack = new LatencyRecorder(Integer.MAX_VALUE);
+        for (Session session : list) {
+            session.sender.setSendListener(null);
+            wire.add(session.wire);
+            ack.add(session.ack);
+        }
+        int received = tv.getAnymoteServer().getEventCount();
+        System.out.println(String.format(Locale.US,
+                "sent %d events in %.2f s: %.1f events/s; %d mouse moves merged; "
+                        + "server received %d%s", events, elapsed / 1e9, events * 1e9 / elapsed,
+                merged, received, drained ? "" : " (timed out waiting for the rest)"));
+        printLatency("enqueue-to-wire", wire);
+        printLatency("enqueue-to-ack", ack);
+        System.out.println(String.format(Locale.US, "GC: %d collections, %d ms",
+                getGcCount() - gcCount, getGcTime() - gcTime));
+        if (allocated >= 0) {
+            long bytes = allocatedAfter - allocated;
+            System.out.println(String.format(Locale.US, "allocated %.1f MB, %.0f B/event",
+                    bytes / 1048576.0, events > 0 ? (double) bytes / events : 0.0));
+        }
+        if (instrumented) {
+            SenderStats.setEnabled(false);
+            System.out.println("stats: " + SenderStats.getAggregate());
+        }
+        for (Session session : list) {
+            session.sender.destroy();
+        }
+        tv.stop();
+    }
+
+    private static void printLatency(String name, LatencyRecorder recorder) {
+        System.out.println(String.format(Locale.US,
+                "%-16s n=%-8d p50=%8.1f us  p99=%8.1f us  p99.9=%8.1f us  max=%8.1f us", name,
+                recorder.getCount(), recorder.percentile(0.5) / 1000.0,
+                recorder.percentile(0.99) / 1000.0, recorder.percentile(0.999) / 1000.0,
+                recorder.percentile(1.0) / 1000.0));
+    }
+
+    private static long getGcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, bean.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long getGcTime() {
+        long time = 0;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += Math.max(0, bean.getCollectionTime());
+        }
+        return time;
+    }
+
+    /**
+     * Runs the load generator.
+     *
+     * @param args see the class description.
+     */
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        generator.parse(args);
+        generator.run();
+        System.exit(0);
+    }
+}
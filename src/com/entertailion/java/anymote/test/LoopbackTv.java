@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2012 ENTERTAILION, LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.entertailion.java.anymote.test;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.entertailion.java.anymote.client.AnymoteSender;
+import com.entertailion.java.anymote.client.PinListener;
+import com.entertailion.java.anymote.connection.ConnectingTask;
+import com.entertailion.java.anymote.connection.ConnectingTask.ConnectionListener;
+import com.entertailion.java.anymote.connection.KeyStoreManager;
+import com.entertailion.java.anymote.connection.TvDevice;
+import com.entertailion.java.anymote.util.Log;
+import com.entertailion.java.anymote.util.Platform;
+
+/**
+ * A simulated Google TV on the loopback address: an {@link AnymoteTestServer}
+ * and a {@link PairingTestServer} on the next port, sharing one identity.
+ * The pairing server uses a fixed nonce, so {@link #connect} can answer the
+ * PIN itself and clients pair and connect with no user input.
+ */
+public class LoopbackTv {
+    private static final String LOG_TAG = "LoopbackTv";
+
+    /**
+     * Attempts at finding two free consecutive ports.
+     */
+    private static final int PORT_ATTEMPTS = 20;
+
+    private final AnymoteTestServer anymoteServer;
+    private final PairingTestServer pairingServer;
+    private final TvDevice device;
+
+    /**
+     * Starts both servers.
+     *
+     * @param name name of the simulated device.
+     * @throws IOException if no ports could be bound.
+     * @throws GeneralSecurityException if the identity could not be created.
+     */
+    public LoopbackTv(String name) throws IOException, GeneralSecurityException {
+        TestServerIdentity identity = new TestServerIdentity(name);
+        AnymoteTestServer anymote = null;
+        PairingTestServer pairing = null;
+        for (int i = 0; pairing == null; i++) {
+            anymote = new AnymoteTestServer(0, identity);
+            try {
+                pairing = new PairingTestServer(anymote.getPort() + 1, identity);
+            } catch (IOException e) {
+                anymote.stop();
+                if (i >= PORT_ATTEMPTS) {
+                    throw e;
+                }
+            }
+        }
+        anymoteServer = anymote.start();
+        pairingServer = pairing.start();
+        pairingServer.setNonce(new byte[] {
+                0x42 });
+        device = new TvDevice(name, (Inet4Address) InetAddress.getByName("127.0.0.1"),
+                anymoteServer.getPort());
+    }
+
+    /**
+     * @return the device, as discovery would report it.
+     */
+    public TvDevice getDevice() {
+        return device;
+    }
+
+    /**
+     * @return the Anymote server.
+     */
+    public AnymoteTestServer getAnymoteServer() {
+        return anymoteServer;
+    }
+
+    /**
+     * @return the pairing server.
+     */
+    public PairingTestServer getPairingServer() {
+        return pairingServer;
+    }
+
+    /**
+     * Connects to the device as the client service does, pairing first if
+     * the key store does not trust it yet.
+     *
+     * @param keyStore initialized client key store.
+     * @param platform client platform.
+     * @param timeout ms to wait at most.
+     * @return connected sender.
+     * @throws IOException if the connection failed or timed out.
+     */
+    public AnymoteSender connect(KeyStoreManager keyStore, Platform platform, long timeout)
+            throws IOException {
+        final AnymoteSender[] sender = new AnymoteSender[1];
+        final CountDownLatch done = new CountDownLatch(1);
+        final ConnectingTask task = new ConnectingTask(device, keyStore, platform);
+        task.setConnectionListener(new ConnectionListener() {
+            public void attemptToConnect(TvDevice device) {
+            }
+
+            public void onConnected(TvDevice device, AnymoteSender anymoteProxy) {
+                sender[0] = anymoteProxy;
+                done.countDown();
+            }
+
+            public void onConnectionFailed() {
+                done.countDown();
+            }
+
+            public void onSecretRequired(final PinListener pinListener) {
+                new Thread(new Runnable() {
+                    public void run() {
+                        pinListener.onSecretEntered(awaitSecret());
+                    }
+                }, LOG_TAG).start();
+            }
+
+            public void onConnectionPairing() {
+                Log.d(LOG_TAG, "Pairing with " + device);
+            }
+
+            public void onConnectionDisconnected() {
+            }
+        });
+        task.start();
+        try {
+            if (!done.await(timeout, TimeUnit.MILLISECONDS)) {
+                task.cancel();
+                throw new IOException("Timed out connecting to " + device);
+            }
+        } catch (InterruptedException e) {
+            task.cancel();
+            throw new IOException("Interrupted connecting to " + device);
+        }
+        if (sender[0] == null) {
+            throw new IOException("Could not connect to " + device);
+        }
+        return sender[0];
+    }
+
+    /**
+     * Waits for the pairing server to show its secret.
+     */
+    private String awaitSecret() {
+        try {
+            while (pairingServer.getLastSecret() == null) {
+                Thread.sleep(5);
+            }
+        } catch (InterruptedException e) {
+            return null;
+        }
+        return pairingServer.getLastSecret();
+    }
+
+    /**
+     * Stops both servers.
+     */
+    public void stop() {
+        anymoteServer.stop();
+        pairingServer.stop();
+    }
+}
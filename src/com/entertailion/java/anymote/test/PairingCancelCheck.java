@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2012 ENTERTAILION, LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.entertailion.java.anymote.test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.entertailion.java.anymote.client.AnymoteSender;
+import com.entertailion.java.anymote.client.PinListener;
+import com.entertailion.java.anymote.connection.ConnectingTask;
+import com.entertailion.java.anymote.connection.ConnectingTask.ConnectionListener;
+import com.entertailion.java.anymote.connection.KeyStoreManager;
+import com.entertailion.java.anymote.connection.PairingStateMachine;
+import com.entertailion.java.anymote.connection.TvDevice;
+import com.entertailion.java.anymote.util.JavaPlatform;
+
+/**
+ * Checks how a {@link ConnectingTask} reports the end of pairing with a
+ * {@link LoopbackTv} it is not paired with yet:
+ * <ul>
+ * <li>cancelling the task while the session awaits the secret reports
+ * nothing, as when a connection is superseded;</li>
+ * <li>the user cancelling the PIN entry reports one failure;</li>
+ * <li>entering the secret connects, on a thread other than the pairing
+ * executor's.</li>
+ * </ul>
+ * <p>
+ * Usage: {@code PairingCancelCheck}
+ * <p>
+ * The key store is kept in the working directory, as {@link Example} does.
+ */
+public class PairingCancelCheck {
+
+    private static final int TIMEOUT_MS = 10000;
+
+    /**
+     * Time to wait for callbacks which should not come.
+     */
+    private static final int QUIET_MS = 2000;
+
+    private JavaPlatform platform;
+    private KeyStoreManager keyStore;
+    private int failures;
+
+    /**
+     * Records the callbacks of one task.
+     */
+    private static class Recorder implements ConnectionListener {
+        final CountDownLatch secretRequired = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicInteger connected = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        volatile PinListener pinListener;
+        volatile String connectedThread;
+
+        public void attemptToConnect(TvDevice device) {
+        }
+
+        public void onConnected(TvDevice device, AnymoteSender anymoteProxy) {
+            connectedThread = Thread.currentThread().getName();
+            connected.incrementAndGet();
+            done.countDown();
+        }
+
+        public void onConnectionFailed() {
+            failed.incrementAndGet();
+            done.countDown();
+        }
+
+        public void onSecretRequired(PinListener pinListener) {
+            this.pinListener = pinListener;
+            secretRequired.countDown();
+        }
+
+        public void onConnectionPairing() {
+        }
+
+        public void onConnectionDisconnected() {
+        }
+    }
+
+    private void run() throws Exception {
+        platform = new JavaPlatform();
+        keyStore = new KeyStoreManager();
+        keyStore.initialize(platform);
+        LoopbackTv tv = new LoopbackTv("PairingCancelTV");
+        try {
+            checkTaskCancel(tv);
+            checkUserCancel(tv);
+            checkPaired(tv);
+        } finally {
+            tv.stop();
+        }
+    }
+
+    /**
+     * Starts a task and waits until its pairing session awaits the secret.
+     */
+    private Recorder startPairing(TvDevice device, ConnectingTask task) throws Exception {
+        Recorder recorder = new Recorder();
+        task.setConnectionListener(recorder);
+        task.start();
+        if (!recorder.secretRequired.await(TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+            throw new IllegalStateException("No secret requested by " + device);
+        }
+        PairingStateMachine session = (PairingStateMachine) recorder.pinListener;
+        expect("session awaits the secret",
+                session.getState() == PairingStateMachine.State.AWAITING_SECRET);
+        return recorder;
+    }
+
+    private void checkTaskCancel(LoopbackTv tv) throws Exception {
+        ConnectingTask task = new ConnectingTask(tv.getDevice(), keyStore, platform);
+        Recorder recorder = startPairing(tv.getDevice(), task);
+        task.cancel();
+        recorder.done.await(QUIET_MS, TimeUnit.MILLISECONDS);
+        expect("task cancel reports no failure", recorder.failed.get() == 0);
+        expect("task cancel reports no connection", recorder.connected.get() == 0);
+    }
+
+    private void checkUserCancel(LoopbackTv tv) throws Exception {
+        ConnectingTask task = new ConnectingTask(tv.getDevice(), keyStore, platform);
+        Recorder recorder = startPairing(tv.getDevice(), task);
+        recorder.pinListener.onCancel();
+        recorder.done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        Thread.sleep(QUIET_MS);
+        expect("user cancel reports one failure", recorder.failed.get() == 1);
+        task.cancel();
+    }
+
+    private void checkPaired(LoopbackTv tv) throws Exception {
+        ConnectingTask task = new ConnectingTask(tv.getDevice(), keyStore, platform);
+        Recorder recorder = startPairing(tv.getDevice(), task);
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (tv.getPairingServer().getLastSecret() == null
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        recorder.pinListener.onSecretEntered(tv.getPairingServer().getLastSecret());
+        recorder.done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        expect("secret entry connects", recorder.connected.get() == 1);
+        expect("connection is not made on the pairing executor",
+                !"PairingStateMachine".equals(recorder.connectedThread));
+        task.cancel();
+    }
+
+    private void expect(String check, boolean passed) {
+        System.out.println((passed ? "ok      " : "FAILED  ") + check);
+        if (!passed) {
+            failures++;
+        }
+    }
+
+    /**
+     * Runs the checks; exits with 1 if any failed.
+     *
+     * @param args none.
+     */
+    public static void main(String[] args) throws Exception {
+        PairingCancelCheck check = new PairingCancelCheck();
+        check.run();
+        System.out.println(check.failures == 0 ? "PASSED" : "FAILED: " + check.failures
+                + " checks");
+        System.exit(check.failures == 0 ? 0 : 1);
+    }
+}
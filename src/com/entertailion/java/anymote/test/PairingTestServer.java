@@ -0,0 +1,340 @@
+/*
+ * Copyright (C) 2012 ENTERTAILION, LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.entertailion.java.anymote.test;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+
+import com.entertailion.java.anymote.util.Log;
+import com.google.polo.exception.BadSecretException;
+import com.google.polo.exception.PoloException;
+import com.google.polo.pairing.PairingContext;
+import com.google.polo.pairing.PairingListener;
+import com.google.polo.pairing.PairingSession;
+import com.google.polo.pairing.ServerPairingSession;
+import com.google.polo.pairing.message.EncodingOption;
+import com.google.polo.pairing.message.PoloMessage.PoloMessageType;
+import com.google.polo.pairing.message.SecretAckMessage;
+import com.google.polo.pairing.message.SecretMessage;
+import com.google.polo.wire.PoloWireInterface;
+import com.google.polo.wire.WireFormat;
+
+/**
+ * Local stand-in for the Polo pairing service of a Google TV, for measuring
+ * pairing and certificate storage without hardware.
+ * <p>
+ * The server accepts TLS connections on the loopback address and runs a
+ * server-side Polo session for each, on its own thread, so many clients can
+ * pair at once. It takes the output device role with 4-digit hexadecimal
+ * secrets, as a Google TV does. The secret it would show on screen is
+ * handed to the {@link SecretListener}; it is derived from both
+ * certificates and a nonce, which is random unless one is injected with
+ * {@link #setNonce(byte[])}, in which case the secret is the same for every
+ * session of a client.
+ * <p>
+ * Clients connect to the pairing port one above the Anymote port, so run an
+ * {@link AnymoteTestServer} on {@code getPort() - 1} with the same
+ * {@link TestServerIdentity} to simulate a whole device.
+ */
+public class PairingTestServer implements Runnable {
+    private static final String LOG_TAG = "PairingTestServer";
+
+    /**
+     * Service name the server answers for.
+     */
+    private static final String SERVICE_NAME = "AnyMote";
+
+    /**
+     * Receives the secrets the server shows.
+     */
+    public interface SecretListener {
+        /**
+         * Called when a session shows its secret. The client must enter it
+         * for pairing to succeed.
+         *
+         * @param secret the secret, such as {@code "3F2A"}.
+         * @param clientCertificate certificate of the client pairing.
+         */
+        void onSecretShown(String secret, Certificate clientCertificate);
+    }
+
+    private final TestServerIdentity identity;
+    private final SSLServerSocket serverSocket;
+    private final SecureRandom random;
+    private final List<Certificate> pairedCertificates;
+    private final AtomicInteger sessionCount;
+    private final AtomicInteger failedCount;
+    private volatile boolean running;
+
+    private volatile SecretListener secretListener;
+    private volatile byte[] nonce;
+    private volatile int secretDelay;
+    private volatile String lastSecret;
+
+    /**
+     * Constructor
+     *
+     * @param port port to listen on, 0 for any free port.
+     * @param identity certificate and key of the server.
+     * @throws IOException if the port could not be bound.
+     */
+    public PairingTestServer(int port, TestServerIdentity identity) throws IOException {
+        this.identity = identity;
+        serverSocket = identity.createServerSocket(port);
+        random = new SecureRandom();
+        pairedCertificates = new ArrayList<Certificate>();
+        sessionCount = new AtomicInteger();
+        failedCount = new AtomicInteger();
+        running = true;
+    }
+
+    /**
+     * @return port the server listens on.
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * @return certificate and key of the server.
+     */
+    public TestServerIdentity getIdentity() {
+        return identity;
+    }
+
+    /**
+     * Sets the listener for the secrets shown.
+     *
+     * @param secretListener secret listener.
+     */
+    public void setSecretListener(SecretListener secretListener) {
+        this.secretListener = secretListener;
+    }
+
+    /**
+     * Fixes the nonce, and so the secret, of all sessions.
+     *
+     * @param nonce nonce of one byte for 4-digit secrets, or {@code null}
+     *            for a random nonce per session.
+     */
+    public void setNonce(byte[] nonce) {
+        this.nonce = nonce != null ? nonce.clone() : null;
+    }
+
+    /**
+     * Delays showing the secret, as a TV drawing its pairing dialog does.
+     *
+     * @param secretDelay delay in ms.
+     */
+    public void setSecretDelay(int secretDelay) {
+        this.secretDelay = secretDelay;
+    }
+
+    /**
+     * @return the secret shown last, or {@code null} if none was shown yet.
+     */
+    public String getLastSecret() {
+        return lastSecret;
+    }
+
+    /**
+     * @return number of sessions started.
+     */
+    public int getSessionCount() {
+        return sessionCount.get();
+    }
+
+    /**
+     * @return number of sessions which did not pair.
+     */
+    public int getFailedCount() {
+        return failedCount.get();
+    }
+
+    /**
+     * @return certificates of the clients which paired.
+     */
+    public List<Certificate> getPairedCertificates() {
+        synchronized (pairedCertificates) {
+            return new ArrayList<Certificate>(pairedCertificates);
+        }
+    }
+
+    /**
+     * Starts the server on a daemon thread.
+     *
+     * @return this server.
+     */
+    public PairingTestServer start() {
+        Thread thread = new Thread(this, LOG_TAG);
+        thread.setDaemon(true);
+        thread.start();
+        return this;
+    }
+
+    public void run() {
+        Log.i(LOG_TAG, "Listening on port " + getPort());
+        while (running) {
+            try {
+                final SSLSocket socket = (SSLSocket) serverSocket.accept();
+                Thread thread = new Thread(new Runnable() {
+                    public void run() {
+                        pair(socket);
+                    }
+                }, LOG_TAG + " session");
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                // SocketException - stop() was called
+                break;
+            }
+        }
+        Log.i(LOG_TAG, "Exiting server loop");
+    }
+
+    /**
+     * Stops accepting connections. Sessions in progress run to completion.
+     */
+    public void stop() {
+        running = false;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    /**
+     * Runs one pairing session.
+     */
+    private void pair(SSLSocket socket) {
+        int id = sessionCount.incrementAndGet();
+        boolean paired = false;
+        try {
+            socket.startHandshake();
+            PairingContext context = PairingContext.fromSslSocket(socket, true);
+            PoloWireInterface protocol = WireFormat.PROTOCOL_BUFFERS.getWireInterface(context);
+            TestPairingSession session = new TestPairingSession(protocol, context);
+            EncodingOption hexEnc = new EncodingOption(
+                    EncodingOption.EncodingType.ENCODING_HEXADECIMAL, 4);
+            session.addInputEncoding(hexEnc);
+            session.addOutputEncoding(hexEnc);
+            paired = session.doPair(new LogListener(context.getClientCertificate()));
+            if (paired) {
+                synchronized (pairedCertificates) {
+                    pairedCertificates.add(context.getClientCertificate());
+                }
+            }
+        } catch (PoloException e) {
+            Log.w(LOG_TAG, "Session " + id + " failed: " + e.getMessage());
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Session " + id + " failed: " + e.getMessage());
+        } finally {
+            if (!paired) {
+                failedCount.incrementAndGet();
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+        Log.d(LOG_TAG, "Session " + id + (paired ? " paired" : " did not pair"));
+    }
+
+    /**
+     * Server session taking the nonce from the test server.
+     */
+    private class TestPairingSession extends ServerPairingSession {
+
+        TestPairingSession(PoloWireInterface protocol, PairingContext context) {
+            super(protocol, context, SERVICE_NAME);
+        }
+
+        /**
+         * Runs the output device side of the pairing phase.
+         */
+        @Override
+        protected void doPairingPhase() throws PoloException, IOException {
+            if (isInputDevice()) {
+                throw new PoloException("Client did not take the input role");
+            }
+            int length = mSessionConfig.getEncoding().getSymbolLength() / 2
+                    / mEncoder.symbolsPerByte();
+            byte[] sessionNonce = nonce;
+            if (sessionNonce == null || sessionNonce.length != length) {
+                sessionNonce = new byte[length];
+                random.nextBytes(sessionNonce);
+            }
+            if (secretDelay > 0) {
+                try {
+                    Thread.sleep(secretDelay);
+                } catch (InterruptedException e) {
+                    throw new PoloException(e);
+                }
+            }
+            mListener.onPerformOutputDeviceRole(this, mChallenge.getGamma(sessionNonce));
+
+            SecretMessage secret = (SecretMessage) getNextMessage(PoloMessageType.SECRET);
+            byte[] alpha = mChallenge.getAlpha(sessionNonce);
+            if (!Arrays.equals(alpha, secret.getSecret())) {
+                throw new BadSecretException("Inband secret did not match");
+            }
+            sendMessage(new SecretAckMessage(alpha));
+        }
+    }
+
+    /**
+     * Shows the secret and forwards Polo log messages.
+     */
+    private class LogListener implements PairingListener {
+        private final Certificate clientCertificate;
+
+        LogListener(Certificate clientCertificate) {
+            this.clientCertificate = clientCertificate;
+        }
+
+        public void onSessionCreated(PairingSession session) {
+        }
+
+        public void onPerformInputDeviceRole(PairingSession session) {
+        }
+
+        public void onPerformOutputDeviceRole(PairingSession session, byte[] gamma) {
+            String secret = session.getEncoder().encodeToString(gamma);
+            lastSecret = secret;
+            Log.d(LOG_TAG, "Showing secret " + secret);
+            SecretListener listener = secretListener;
+            if (listener != null) {
+                listener.onSecretShown(secret, clientCertificate);
+            }
+        }
+
+        public void onSessionEnded(PairingSession session) {
+        }
+
+        public void onLogMessage(LogLevel level, String message) {
+            Log.v(LOG_TAG, "Log: " + message + " (" + level + ")");
+        }
+    }
+}
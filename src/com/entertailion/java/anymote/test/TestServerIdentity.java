@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2012 ENTERTAILION, LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.entertailion.java.anymote.test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLServerSocket;
+
+import com.google.polo.ssl.SSLServerSocketFactoryWrapper;
+import com.google.polo.ssl.SslUtil;
+
+/**
+ * Self-signed identity of a simulated Google TV, shared by its Anymote and
+ * pairing server stand-ins so that the certificate a client stores while
+ * pairing is the one it later sees on the Anymote port.
+ */
+public class TestServerIdentity {
+    private static final String ALIAS = "server";
+    private static final char[] PASSWORD = "anymote".toCharArray();
+
+    private final X509Certificate certificate;
+    private final KeyManager[] keyManagers;
+
+    /**
+     * Generates a new key pair and certificate.
+     *
+     * @param name device name put in the certificate.
+     * @throws GeneralSecurityException if the identity could not be created.
+     */
+    public TestServerIdentity(String name) throws GeneralSecurityException {
+        KeyPair keyPair = SslUtil.generateRsaKeyPair();
+        certificate = SslUtil.generateX509V3Certificate(keyPair, "CN=anymote/" + name);
+        KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+        try {
+            keyStore.load(null, PASSWORD);
+        } catch (IOException e) {
+            throw new GeneralSecurityException("Unable to create empty keyStore", e);
+        }
+        keyStore.setKeyEntry(ALIAS, keyPair.getPrivate(), PASSWORD, new Certificate[] {
+                certificate });
+        KeyManagerFactory factory = KeyManagerFactory.getInstance(KeyManagerFactory
+                .getDefaultAlgorithm());
+        factory.init(keyStore, PASSWORD);
+        keyManagers = factory.getKeyManagers();
+    }
+
+    /**
+     * @return the server certificate.
+     */
+    public X509Certificate getCertificate() {
+        return certificate;
+    }
+
+    /**
+     * @return key managers holding the server key.
+     */
+    public KeyManager[] getKeyManagers() {
+        return keyManagers;
+    }
+
+    /**
+     * Opens a TLS server socket on the loopback address. Clients must present
+     * a certificate, which is accepted without checks.
+     *
+     * @param port port to listen on, 0 for any free port.
+     * @return server socket.
+     * @throws IOException if the socket could not be opened.
+     */
+    public SSLServerSocket createServerSocket(int port) throws IOException {
+        SSLServerSocket socket;
+        try {
+            socket = (SSLServerSocket) SSLServerSocketFactoryWrapper.CreateWithDummyTrustManager(
+                    keyManagers).createServerSocket(port, 50, InetAddress.getByName("127.0.0.1"));
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Unable to create server socket: " + e.getMessage());
+        }
+        socket.setNeedClientAuth(true);
+        return socket;
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2012 ENTERTAILION, LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.entertailion.java.anymote.test;
+
+import com.entertailion.java.anymote.client.WarmConnectionPool;
+import com.entertailion.java.anymote.connection.DeviceRegistry;
+import com.entertailion.java.anymote.connection.KeyStoreManager;
+import com.entertailion.java.anymote.connection.TvDevice;
+import com.entertailion.java.anymote.util.JavaPlatform;
+
+/**
+ * Checks the warm connections made by a {@link WarmConnectionPool}:
+ * <ul>
+ * <li>a {@link LoopbackTv} the client is not paired with is never connected
+ * to;</li>
+ * <li>failed warm connections release their threads: a paired TV which has
+ * gone away is warmed over and over, as the pool does after each discovery,
+ * and the number of live threads must not grow;</li>
+ * <li>a paired TV seen in a {@link DeviceRegistry} the pool follows is warmed
+ * without being passed to the pool.</li>
+ * </ul>
+ * <p>
+ * Usage: {@code WarmPoolLeakCheck [-n rounds]}
+ * <p>
+ * The key store is kept in the working directory, as {@link Example} does.
+ */
+public class WarmPoolLeakCheck {
+
+    /**
+     * Threads allowed above the starting count, for stray short-lived ones.
+     */
+    private static final int SLACK = 4;
+
+    private static final int ROUND_MS = 300;
+    private static final int SETTLE_MS = 5000;
+    private static final int TIMEOUT_MS = 10000;
+
+    private int rounds = 20;
+    private int failures;
+
+    private void parse(String[] args) {
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if ("-n".equals(args[i])) {
+                rounds = Integer.parseInt(args[i + 1]);
+            } else {
+                throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+    }
+
+    private void run() throws Exception {
+        JavaPlatform platform = new JavaPlatform();
+        KeyStoreManager keyStore = new KeyStoreManager();
+        keyStore.initialize(platform);
+        LoopbackTv unpaired = new LoopbackTv("UnpairedTV");
+        // pairs, then goes away
+        LoopbackTv gone = new LoopbackTv("GoneTV");
+        gone.connect(keyStore, platform, TIMEOUT_MS).destroy();
+        gone.stop();
+        LoopbackTv seen = new LoopbackTv("SeenTV");
+        seen.connect(keyStore, platform, TIMEOUT_MS).destroy();
+
+        WarmConnectionPool pool = new WarmConnectionPool(keyStore, platform, 8, 60000);
+        DeviceRegistry registry = new DeviceRegistry(60000);
+        try {
+            // the first rounds start the threads which live on, such as timers
+            warm(pool, unpaired.getDevice(), gone.getDevice(), 2);
+            Thread.sleep(SETTLE_MS);
+            int before = Thread.activeCount();
+            warm(pool, unpaired.getDevice(), gone.getDevice(), rounds);
+            int after = settle(before + SLACK);
+            System.out.println(rounds + " rounds of failed warms: " + before + " threads before, "
+                    + after + " after");
+            expect("unpaired TV is not connected to",
+                    unpaired.getAnymoteServer().getConnectionCount() == 0);
+            expect("failed warm connections release their threads", after <= before + SLACK);
+
+            pool.setDeviceRegistry(registry);
+            registry.onDeviceSeen(seen.getDevice());
+            long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            while (pool.getWarmDevices().isEmpty() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            expect("TV seen in the registry is warmed",
+                    pool.getWarmDevices().contains(seen.getDevice()));
+        } finally {
+            pool.shutdown();
+            registry.shutdown();
+            unpaired.stop();
+            seen.stop();
+        }
+    }
+
+    private static void warm(WarmConnectionPool pool, TvDevice unpaired, TvDevice gone,
+            int rounds) throws InterruptedException {
+        for (int i = 0; i < rounds; i++) {
+            pool.warm(unpaired);
+            pool.warm(gone);
+            Thread.sleep(ROUND_MS);
+        }
+    }
+
+    private void expect(String check, boolean passed) {
+        System.out.println((passed ? "ok      " : "FAILED  ") + check);
+        if (!passed) {
+            failures++;
+        }
+    }
+
+    /**
+     * Waits for the thread count to drop to a limit, or for a timeout.
+     *
+     * @return live threads.
+     */
+    private static int settle(int limit) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + SETTLE_MS;
+        int count = Thread.activeCount();
+        while (count > limit && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+            count = Thread.activeCount();
+        }
+        return count;
+    }
+
+    /**
+     * Runs the checks; exits with 1 if any failed.
+     *
+     * @param args see the class description.
+     */
+    public static void main(String[] args) throws Exception {
+        WarmPoolLeakCheck check = new WarmPoolLeakCheck();
+        check.parse(args);
+        check.run();
+        System.out.println(check.failures == 0 ? "PASSED" : "FAILED: " + check.failures
+                + " checks");
+        System.exit(check.failures == 0 ? 0 : 1);
+    }
+}
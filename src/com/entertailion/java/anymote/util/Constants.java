@@ -19,6 +19,24 @@ public final class Constants {
     public static final class integer {
         public static int broadcast_timeout=3000;
         public static int manual_default_port=9551;  // see https://developers.google.com/tv/remote/docs/communication?hl=en
+        public static int ssl_session_cache_size=256;  // TLS sessions kept for resumption, one per TV
+        public static int ssl_session_timeout=24*60*60;  // seconds a cached TLS session may be resumed
+        public static int connect_timeout=5000;  // ms to establish the TCP connection to a TV
+        public static int handshake_timeout=10000;  // ms for a TLS handshake; the wait for a handshake slot is taken out of it, the rest bounds each handshake read
+        public static int pairing_timeout=15000;  // ms allowed for each pairing step with a TV, not counting PIN entry
+        public static int warm_pool_size=8;  // idle connections kept to discovered, already paired TVs
+        public static int warm_idle_timeout=5*60*1000;  // ms a warm connection is kept after the TV was last discovered
+        public static int max_concurrent_handshakes=Runtime.getRuntime().availableProcessors();  // TLS handshakes allowed in flight at once; read at each handshake
+        public static int discovery_freshness=10000;  // ms a completed scan answers repeat discovery requests without probing again
+        public static int device_ttl=60000;  // ms a discovered TV is kept without answering a probe
+        public static int unicast_probe_rate=200;  // unicast discovery probes sent per second when broadcasts are blocked
+        public static int unicast_tcp_timeout=1000;  // ms to wait for the Anymote port of a host during a unicast sweep
+        public static int device_cache_max_age=7*24*60*60*1000;  // ms a TV is remembered across restarts without being seen
+        public static int trace_message_threshold=50;  // ms a message may wait for queue room or take to handle before it is traced
+        public static int trace_send_threshold=50;  // ms a write to the Anymote socket may take before it is traced
+        public static int trace_connect_threshold=1000;  // ms a TCP connect, TLS handshake or pairing phase may take before it is traced
+        public static int trace_ack_threshold=1000;  // ms a ping may wait for its ack before it is traced
+        public static int trace_discovery_threshold=1000;  // ms probes may take to send, or a TV to answer a scan, before it is traced
     }
     public static final class string {
         public static String app_name="anymote";
@@ -21,6 +21,20 @@ import java.util.logging.Logger;
 public class Log {
 	private static Logger Log = Logger.getLogger("anymote");
 	
+	public static final int VERBOSE = 2;
+	public static final int DEBUG = 3;
+	public static final int INFO = 4;
+	public static final int WARN = 5;
+	public static final int ERROR = 6;
+	
+	private static final Level[] LEVELS = { Level.FINEST, Level.FINEST, Level.FINEST, Level.CONFIG,
+			Level.INFO, Level.WARNING, Level.SEVERE };
+	
+	// Check before building an expensive message
+	public static boolean isLoggable(String tag, int level) {
+		return Log.isLoggable(LEVELS[Math.max(0, Math.min(level, ERROR))]);
+	}
+	
 	public static void e(String tag, String message, Throwable e) {
 		Log.log(Level.SEVERE, tag+": "+message, e);
 	}
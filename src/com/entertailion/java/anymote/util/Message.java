@@ -51,6 +51,12 @@ public final class Message {
      * the {@link android.os.Build.VERSION_CODES#FROYO} release.
      */
     public Object obj;
+
+    /**
+     * The {@link System#nanoTime()} at which the message was put in the
+     * queue of a {@link MessageThread}.
+     */
+    public long when;
     
     
     public static Message obtain() {
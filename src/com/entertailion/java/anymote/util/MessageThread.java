@@ -39,7 +39,11 @@ public abstract class MessageThread extends Thread {
     		try {
 				Message message = queue.take();
 				if (message!=null) {
+					long start = Trace.start();
 					handleMessage(message);
+					if (start != 0) {
+						Trace.end(Trace.Event.DISPATCH, start, getName());
+					}
 				}
 			} catch (InterruptedException e) {
 				running = false;
@@ -63,11 +67,29 @@ public abstract class MessageThread extends Thread {
     public abstract void handleMessage(Message message);
 
     public void removeMessage(int what) {
+    	removeMessages(what);
+    }
+
+    /**
+     * Remove the queued messages of a type
+     * @param what
+     * @return number of messages removed
+     */
+    protected int removeMessages(int what) {
+    	int removed = 0;
     	for(Message message:queue) {
-    		if (message.what==what) {
-    			queue.remove(message);
+    		if (message.what==what && queue.remove(message)) {
+    			removed++;
     		}
     	}
+    	return removed;
+    }
+
+    /**
+     * @return number of messages waiting in the queue
+     */
+    public int getQueueSize() {
+    	return queue.size();
     }
     
     /**
@@ -76,10 +98,23 @@ public abstract class MessageThread extends Thread {
      */
     public void sendMessage(Message message) {
     	if (message!=null) {
-	    	try {
-				queue.put(message);
-			} catch (InterruptedException e) {
-			}
+	    	enqueue(message);
+    	}
+    }
+
+    /**
+     * Put a message in the queue, waiting for room if it is full
+     * @param message
+     */
+    private void enqueue(Message message) {
+    	long start = Trace.start();
+    	try {
+    		message.when = System.nanoTime();
+    		queue.put(message);
+    	} catch (InterruptedException e) {
+    	}
+    	if (start != 0) {
+    		Trace.end(Trace.Event.ENQUEUE, start, getName());
     	}
     }
 
@@ -104,10 +139,7 @@ public abstract class MessageThread extends Thread {
 	
 				@Override
 				public void run() {
-			    	try {
-						queue.put(message);
-					} catch (InterruptedException e) {
-					}
+					enqueue(message);
 				}
 	    		
 	    	};
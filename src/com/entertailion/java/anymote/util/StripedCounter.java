@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2012 ENTERTAILION, LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.entertailion.java.anymote.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A set of counters that many threads can update without contending.
+ * <p>
+ * Each thread adds to one of several stripes, chosen by its id, and a read
+ * sums the stripes. Stripes are padded to separate cache lines. Reads are
+ * not atomic across slots or stripes, which is fine for statistics.
+ */
+public final class StripedCounter {
+
+    /**
+     * Number of stripes, a power of two.
+     */
+    private static final int STRIPES = Integer.highestOneBit(Math.max(1, Runtime.getRuntime()
+            .availableProcessors() * 2 - 1)) * 2;
+
+    /**
+     * Longs in a cache line, kept between stripes.
+     */
+    private static final int PADDING = 8;
+
+    private final int slots;
+    private final int stride;
+    private final AtomicLongArray cells;
+
+    /**
+     * Constructor
+     *
+     * @param slots number of counters.
+     */
+    public StripedCounter(int slots) {
+        this.slots = slots;
+        stride = slots + PADDING;
+        cells = new AtomicLongArray(STRIPES * stride);
+    }
+
+    /**
+     * @return number of counters.
+     */
+    public int getSlots() {
+        return slots;
+    }
+
+    /**
+     * Adds to a counter.
+     *
+     * @param slot index of the counter.
+     * @param delta amount to add.
+     */
+    public void add(int slot, long delta) {
+        int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+        cells.getAndAdd(stripe * stride + slot, delta);
+    }
+
+    /**
+     * Adds one to a counter.
+     *
+     * @param slot index of the counter.
+     */
+    public void increment(int slot) {
+        add(slot, 1);
+    }
+
+    /**
+     * @param slot index of the counter.
+     * @return value of the counter.
+     */
+    public long get(int slot) {
+        long sum = 0;
+        for (int i = slot; i < cells.length(); i += stride) {
+            sum += cells.get(i);
+        }
+        return sum;
+    }
+
+    /**
+     * Adds the values of all counters to an array, without allocating.
+     *
+     * @param values array of at least {@link #getSlots()} values.
+     */
+    public void addTo(long[] values) {
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            int base = stripe * stride;
+            for (int slot = 0; slot < slots; slot++) {
+                values[slot] += cells.get(base + slot);
+            }
+        }
+    }
+
+    /**
+     * @return values of all counters.
+     */
+    public long[] get() {
+        long[] values = new long[slots];
+        addTo(values);
+        return values;
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2012 ENTERTAILION, LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.entertailion.java.anymote.util;
+
+/**
+ * Timed trace events of the client stack: queueing and handling of
+ * messages, writes to the socket, connection and pairing phases, ping round
+ * trips and discovery probes and responses.
+ * <p>
+ * Events go to a {@link Sink}, which may log them or forward them to a
+ * profiler such as Java Flight Recorder. Each event type has a threshold,
+ * and only occurrences lasting at least that long are passed on, so tracing
+ * can stay on and report only what is slow; a threshold of 0 reports every
+ * occurrence. Without a sink, tracing costs one volatile read per event.
+ * <p>
+ * {@link #start()} returns 0 while there is no sink. A detail that costs
+ * anything to build, such as a concatenation, is only built when the start
+ * is not 0, so that nothing is allocated while tracing is off:
+ *
+ * <pre>
+ * long start = Trace.start();
+ * doWork();
+ * if (start != 0) {
+ *     Trace.end(Trace.Event.PAIRING, start, &quot;verify &quot; + name);
+ * }
+ * </pre>
+ */
+public final class Trace {
+    private static final String LOG_TAG = "Trace";
+
+    /**
+     * Types of trace events.
+     */
+    public enum Event {
+        /**
+         * A message waited for room in a {@link MessageThread} queue.
+         */
+        ENQUEUE("enqueue", Constants.integer.trace_message_threshold),
+        /**
+         * A {@link MessageThread} handled a message.
+         */
+        DISPATCH("dispatch", Constants.integer.trace_message_threshold),
+        /**
+         * An Anymote message was written to the socket.
+         */
+        SEND("send", Constants.integer.trace_send_threshold),
+        /**
+         * A TCP connection was opened to a device.
+         */
+        CONNECT("connect", Constants.integer.trace_connect_threshold),
+        /**
+         * A TLS handshake with a device completed.
+         */
+        HANDSHAKE("handshake", Constants.integer.trace_connect_threshold),
+        /**
+         * A pairing phase with a device ended.
+         */
+        PAIRING("pairing", Constants.integer.trace_connect_threshold),
+        /**
+         * A ping was acked, or given up on, after the time traced.
+         */
+        ACK("ack", Constants.integer.trace_ack_threshold),
+        /**
+         * Discovery probes were sent.
+         */
+        DISCOVERY_PROBE("discovery.probe", Constants.integer.trace_discovery_threshold),
+        /**
+         * A device answered discovery after the time traced since the scan
+         * started.
+         */
+        DISCOVERY_RESPONSE("discovery.response", Constants.integer.trace_discovery_threshold);
+
+        private final String name;
+        private volatile long threshold;
+
+        private Event(String name, long thresholdMillis) {
+            this.name = name;
+            threshold = thresholdMillis * 1000000L;
+        }
+
+        /**
+         * @return name of the event, such as {@code "send"}.
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return ns an occurrence must last to be traced.
+         */
+        public long getThreshold() {
+            return threshold;
+        }
+
+        /**
+         * @param threshold ns an occurrence must last to be traced, 0 to
+         *            trace all.
+         */
+        public void setThreshold(long threshold) {
+            this.threshold = threshold;
+        }
+    }
+
+    /**
+     * Receives the trace events at or above their threshold. Called on the
+     * thread of the traced work, so it should return quickly.
+     */
+    public interface Sink {
+        /**
+         * @param event type of the event.
+         * @param start {@link System#nanoTime()} at the start of the event.
+         * @param duration ns the event lasted.
+         * @param detail what the event concerns, such as a device or
+         *            message type, or {@code null}.
+         */
+        void onEvent(Event event, long start, long duration, String detail);
+    }
+
+    /**
+     * Sink which logs the events.
+     */
+    public static final Sink LOG = new Sink() {
+        public void onEvent(Event event, long start, long duration, String detail) {
+            Log.i(LOG_TAG, event.getName() + (detail != null ? " " + detail : "") + " took "
+                    + duration / 1000 + "us");
+        }
+    };
+
+    private static volatile Sink sink;
+
+    private Trace() {
+    }
+
+    /**
+     * @param sink sink for the events, or {@code null} to stop tracing.
+     */
+    public static void setSink(Sink sink) {
+        Trace.sink = sink;
+    }
+
+    /**
+     * @return {@code true} if a sink is set.
+     */
+    public static boolean isEnabled() {
+        return sink != null;
+    }
+
+    /**
+     * Sets the threshold of all event types.
+     *
+     * @param threshold ns an occurrence must last to be traced, 0 to trace
+     *            all.
+     */
+    public static void setThresholds(long threshold) {
+        for (Event event : Event.values()) {
+            event.setThreshold(threshold);
+        }
+    }
+
+    /**
+     * @return start time to pass to {@link #end(Event, long, String)}, or 0
+     *         if tracing is off.
+     */
+    public static long start() {
+        return sink != null ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Ends an event, passing it to the sink if it lasted at least the
+     * threshold of its type.
+     *
+     * @param event type of the event.
+     * @param start value returned by {@link #start()}.
+     * @param detail what the event concerns, or {@code null}.
+     */
+    public static void end(Event event, long start, String detail) {
+        Sink current = sink;
+        if (current == null || start == 0) {
+            return;
+        }
+        long duration = System.nanoTime() - start;
+        if (duration >= event.threshold) {
+            current.onEvent(event, start, duration, detail);
+        }
+    }
+}